@@ -148,6 +148,9 @@ class BinaryExpr implements Expr {
   public Expr lhs;
   public Token binaryOp;
   public Expr rhs;
+  // the checked type of both operands (set by the semantic checker,
+  // null if unknown or if an operand is the null literal)
+  public DataType operandType;
 
   public void accept(Visitor v) {
     v.visit(this);
@@ -209,6 +212,9 @@ class NewArrayRValue implements NewRValue {
 class VarRef {
   public Token varName;
   public Optional<Expr> arrayExpr = Optional.empty();
+  // the struct the variable is a field of (set by the semantic
+  // checker, null for the first variable of a path)
+  public StructDef struct;
 }
 
 //----------------------------------------------------------------------
@@ -7,9 +7,14 @@
 
 package cpsc326;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 
 /**
@@ -29,6 +34,48 @@ public class CodeGenerator implements Visitor {
   /* struct defs for field names */
   private final Map<String, StructDef> structs = new HashMap<>();
 
+  /* the shape (field slots) of each struct (by name) */
+  private final Map<String, VMShape> shapes = new HashMap<>();
+
+  /* the largest function (in generated instructions) to inline */
+  private static final int INLINE_SIZE = 24;
+
+  /* the most inlined function bodies nested in each other */
+  private static final int INLINE_DEPTH = 3;
+
+  /* the number of times a function can be inlined into itself */
+  private static final int INLINE_RECURSION = 1;
+
+  /* whether to inline calls to small functions, replace structs that
+     don't escape by locals, and allocate arrays that don't escape in
+     arenas */
+  private final boolean optimize;
+
+  /* function defs for inlining (by name) */
+  private final Map<String, FunDef> functions = new HashMap<>();
+
+  /* generated (not inlined) code size of each function (by name) */
+  private final Map<String, Integer> functionSizes = new HashMap<>();
+
+  /* the function being generated followed by the functions being
+     inlined into it (innermost first) */
+  private final Deque<String> callChain = new ArrayDeque<>();
+
+  /* the return jumps of the function being inlined (or null if none) */
+  private List<Integer> returnJumps = null;
+
+  /* the array (by memory address) that each enclosing counted for
+     loop's variable (by memory address) is always a valid index of */
+  private final Map<Integer, Integer> inRangeIndexes = new HashMap<>();
+
+  /* the struct variable declarations whose fields are locals (named
+     variable.field) instead of a struct (see EscapeAnalyzer) */
+  private Set<VarStmt> localStructs = Set.of();
+
+  /* the array variable declarations whose arrays are allocated in the
+     call's arena (see EscapeAnalyzer) */
+  private Set<VarStmt> localArrays = Set.of();
+
 
   /**
    * Create a new Code Generator given a virtual machine
@@ -36,7 +83,20 @@ public class CodeGenerator implements Visitor {
    * @param vm the VM for storing generated frame templates
    */
   public CodeGenerator(VM vm) {
+    this(vm, false);
+  }
+
+  /**
+   * Create a new Code Generator given a virtual machine
+   *
+   * @param vm       the VM for storing generated frame templates
+   * @param optimize whether to inline calls to small functions,
+   *                 replace structs that don't escape by locals, and
+   *                 allocate arrays that don't escape in arenas
+   */
+  public CodeGenerator(VM vm, boolean optimize) {
     this.vm = vm;
+    this.optimize = optimize;
   }
 
   //----------------------------------------------------------------------
@@ -73,7 +133,267 @@ public class CodeGenerator implements Visitor {
       stmt.accept(this);
       if (stmt instanceof CallRValue)
         add(VMInstr.POP(), "clean up call rvalue statement");
+      // the statements after a return can't run
+      if (returns(stmt))
+        return;
+    }
+  }
+
+  /**
+   * Helper to check if a statement always returns: it is a return
+   * statement or an if statement whose branches all return.
+   */
+  private boolean returns(Stmt stmt) {
+    if (stmt instanceof ReturnStmt)
+      return true;
+    if (!(stmt instanceof IfStmt ifStmt) || !returns(ifStmt.ifStmts))
+      return false;
+    if (ifStmt.elseIf.isPresent())
+      return returns(ifStmt.elseIf.get());
+    return ifStmt.elseStmts.isPresent() && returns(ifStmt.elseStmts.get());
+  }
+
+  /**
+   * Helper to find the array a for loop counts over: the loop must be
+   * of the form "for i from k to size(a) - j" (with literals k >= 0
+   * and j >= 1) and not assign i or a in its body, so that i is always
+   * a valid index of a in the body.
+   *
+   * @return the array's memory address (or null if not counted)
+   */
+  private Integer countedArray(ForStmt node) {
+    if (!isIntLiteral(node.fromExpr, 0) || !(node.toExpr instanceof BinaryExpr to) ||
+        to.binaryOp.tokenType != TokenType.MINUS || !isIntLiteral(to.rhs, 1))
+      return null;
+    if (!(to.lhs instanceof BasicExpr size) || !(size.rvalue instanceof CallRValue call) ||
+        !call.funName.lexeme.equals("size") || !isSimple(call.args.getFirst()) ||
+        !(((BasicExpr) call.args.getFirst()).rvalue instanceof VarRValue array))
+      return null;
+    String arrayName = array.path.getFirst().varName.lexeme;
+    if (assigns(node.stmts, arrayName) || assigns(node.stmts, node.varName.lexeme))
+      return null;
+    return varTable.get(arrayName);
+  }
+
+  /**
+   * Helper to check if an expression is an int literal of at least the
+   * given value.
+   */
+  private boolean isIntLiteral(Expr expr, int min) {
+    if (!(expr instanceof BasicExpr basic) || !(basic.rvalue instanceof SimpleRValue value) ||
+        value.literal.tokenType != TokenType.INT_VAL)
+      return false;
+    try {
+      return Integer.parseInt(value.literal.lexeme) >= min;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Helper to check if statements (or the statements within them)
+   * assign a variable with the given name.
+   */
+  private boolean assigns(List<Stmt> stmts, String name) {
+    for (Stmt stmt : stmts) {
+      if (stmt instanceof AssignStmt assign && assign.lvalue.size() == 1 &&
+          assign.lvalue.getFirst().arrayExpr.isEmpty() && assign.lvalue.getFirst().varName.lexeme.equals(name))
+        return true;
+      if (stmt instanceof WhileStmt loop && assigns(loop.stmts, name))
+        return true;
+      if (stmt instanceof ForStmt loop && assigns(loop.stmts, name))
+        return true;
+      for (IfStmt branch = stmt instanceof IfStmt ifStmt ? ifStmt : null; branch != null;
+           branch = branch.elseIf.orElse(null)) {
+        if (assigns(branch.ifStmts, name) || (branch.elseStmts.isPresent() && assigns(branch.elseStmts.get(), name)))
+          return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Helper to get the instruction for an array access of a variable,
+   * without checks if the index is a counted for loop's variable
+   * that is always in range.
+   *
+   * @param ref     the variable and its index
+   * @param checked the checked instruction (GETI or SETI)
+   */
+  private VMInstr arrayAccess(VarRef ref, VMInstr checked) {
+    if (isSimple(ref.arrayExpr.get()) && ((BasicExpr) ref.arrayExpr.get()).rvalue instanceof VarRValue index) {
+      Integer array = inRangeIndexes.get(varTable.get(index.path.getFirst().varName.lexeme));
+      if (array != null && array == varTable.get(ref.varName.lexeme))
+        return checked.opcode == OpCode.GETI ? VMInstr.GETI_U() : VMInstr.SETI_U();
     }
+    return checked;
+  }
+
+  /**
+   * Helper to generate a struct variable declaration whose struct
+   * doesn't escape, storing each of the new struct's field values in
+   * a local (named variable.field) instead.
+   */
+  private void localStruct(VarStmt node) {
+    NewStructRValue struct = (NewStructRValue) ((BasicExpr) node.expr.get()).rvalue;
+    List<VarDef> fields = structs.get(struct.structName.lexeme).fields;
+    for (int i = 0; i < fields.size(); ++i) {
+      if (i < struct.args.size())
+        struct.args.get(i).accept(this);
+      else
+        add(VMInstr.PUSH(VM.NULL));
+    }
+    for (VarDef field : fields)
+      varTable.add(node.varName.lexeme + "." + field.varName.lexeme);
+    for (VarDef field : fields.reversed())
+      add(VMInstr.STORE(varTable.get(node.varName.lexeme + "." + field.varName.lexeme)));
+  }
+
+  /**
+   * Helper to get the memory address of a struct variable's field
+   * that is a local (see localStruct), or -1 if the variable (the
+   * innermost one with its name) is an actual struct.
+   *
+   * @param var   the struct variable
+   * @param field the field
+   */
+  private int fieldAddress(VarRef var, VarRef field) {
+    // the field's local is declared after the variables in scope before it
+    int address = varTable.get(var.varName.lexeme + "." + field.varName.lexeme);
+    return address > varTable.get(var.varName.lexeme) ? address : -1;
+  }
+
+  /**
+   * Helper to get the GETF or SETF operand for a field reference: the
+   * field's slot in its struct's shape (or just its name if the
+   * struct isn't known).
+   */
+  private Object field(VarRef var) {
+    if (var.struct == null)
+      return var.varName.lexeme;
+    return shapes.get(var.struct.structName.lexeme).field(var.varName.lexeme);
+  }
+
+  /**
+   * Helper to check if a list of statements always returns.
+   */
+  private boolean returns(List<Stmt> stmts) {
+    return stmts.stream().anyMatch(this::returns);
+  }
+
+  /**
+   * Helper to generate a condition followed by jumps taken when the
+   * condition is false. The operands of an `and` or `or` get their
+   * own jumps, so the right-hand side is skipped once the left-hand
+   * side decides the result.
+   *
+   * @param condition the condition expression
+   * @return the indexes of the jumps to patch (see patchJumps)
+   */
+  private List<Integer> jumpIfFalse(Expr condition) {
+    if (condition instanceof BinaryExpr expr && expr.binaryOp.tokenType == TokenType.AND) {
+      List<Integer> jumps = new ArrayList<>(jumpIfFalse(expr.lhs));
+      jumps.addAll(jumpIfFalse(expr.rhs));
+      return jumps;
+    }
+    if (condition instanceof BinaryExpr expr && expr.binaryOp.tokenType == TokenType.OR) {
+      List<Integer> trueJumps = jumpIfTrue(expr.lhs);
+      List<Integer> jumps = jumpIfFalse(expr.rhs);
+      patchJumps(trueJumps);
+      return jumps;
+    }
+    if (condition instanceof UnaryExpr expr)
+      return jumpIfTrue(expr.expr);
+    condition.accept(this);
+    add(VMInstr.JMPF(-1));
+    return List.of(currTemplate.instructions.size() - 1);
+  }
+
+  /**
+   * Helper to generate a condition followed by jumps taken when the
+   * condition is true (see jumpIfFalse).
+   *
+   * @param condition the condition expression
+   * @return the indexes of the jumps to patch (see patchJumps)
+   */
+  private List<Integer> jumpIfTrue(Expr condition) {
+    if (condition instanceof BinaryExpr expr && expr.binaryOp.tokenType == TokenType.OR) {
+      List<Integer> jumps = new ArrayList<>(jumpIfTrue(expr.lhs));
+      jumps.addAll(jumpIfTrue(expr.rhs));
+      return jumps;
+    }
+    if (condition instanceof BinaryExpr expr && expr.binaryOp.tokenType == TokenType.AND) {
+      List<Integer> falseJumps = jumpIfFalse(expr.lhs);
+      List<Integer> jumps = jumpIfTrue(expr.rhs);
+      patchJumps(falseJumps);
+      return jumps;
+    }
+    if (condition instanceof UnaryExpr expr)
+      return jumpIfFalse(expr.expr);
+    condition.accept(this);
+    add(VMInstr.JMPT(-1));
+    return List.of(currTemplate.instructions.size() - 1);
+  }
+
+  /**
+   * Helper to point the given jump instructions at the next
+   * instruction to be added.
+   */
+  private void patchJumps(List<Integer> jumps) {
+    patchJumps(jumps, currTemplate.instructions.size());
+  }
+
+  /**
+   * Helper to point the given jump instructions at an instruction.
+   */
+  private void patchJumps(List<Integer> jumps, int target) {
+    for (int index : jumps)
+      currTemplate.instructions.get(index).operand = target;
+  }
+
+  /**
+   * Helper to check if a call to a user-defined function should be
+   * inlined: the function must be small, and only a bounded number of
+   * bodies (and of copies of a recursive function) are nested.
+   */
+  private boolean shouldInline(String funName) {
+    if (!optimize || !functions.containsKey(funName) || funName.equals("main"))
+      return false;
+    if (functionSizes.get(funName) > INLINE_SIZE || callChain.size() > INLINE_DEPTH)
+      return false;
+    return Collections.frequency(callChain, funName) <= INLINE_RECURSION;
+  }
+
+  /**
+   * Helper to generate the body of a function in place of a call to
+   * it, with the arguments on the stack. The parameters and locals of
+   * the function get memory addresses after the caller's variables,
+   * and each return jumps to the code after the body, leaving the
+   * returned value on the stack.
+   */
+  private void inlineCall(FunDef fun) {
+    callChain.push(fun.funName.lexeme);
+    List<Integer> callerReturnJumps = returnJumps;
+    returnJumps = new ArrayList<>();
+    varTable.pushEnvironment();
+    // the first argument is on top of the stack
+    for (var param : fun.params) {
+      varTable.add(param.varName.lexeme);
+      add(VMInstr.STORE(varTable.get(param.varName.lexeme)), "inlined " + fun.funName.lexeme + " argument");
+    }
+    execBody(fun.stmts);
+    int last = currTemplate.instructions.size() - 1;
+    if (!returns(fun.stmts))
+      add(VMInstr.PUSH(VM.NULL));
+    else if (returnJumps.contains(last)) {
+      // the last return can fall through instead
+      currTemplate.instructions.remove(last);
+      returnJumps.remove((Integer) last);
+    }
+    patchJumps(returnJumps);
+    varTable.popEnvironment();
+    returnJumps = callerReturnJumps;
+    callChain.pop();
   }
 
   //----------------------------------------------------------------------
@@ -87,6 +407,19 @@ public class CodeGenerator implements Visitor {
     // record each struct definitions and check for duplicate names
     for (StructDef s : node.structs)
       s.accept(this);
+    // size up the functions to inline from their code without inlining
+    if (optimize) {
+      VM sizes = new VM();
+      node.accept(new CodeGenerator(sizes));
+      for (FunDef f : node.functions) {
+        functions.put(f.funName.lexeme, f);
+        functionSizes.put(f.funName.lexeme, sizes.templates().get(f.funName.lexeme).instructions.size());
+      }
+      EscapeAnalyzer escapes = new EscapeAnalyzer();
+      node.accept(escapes);
+      localStructs = escapes.localStructs();
+      localArrays = escapes.localArrays();
+    }
     // generate each function
     for (FunDef f : node.functions)
       f.accept(this);
@@ -98,26 +431,28 @@ public class CodeGenerator implements Visitor {
    */
   public void visit(FunDef node) {
     currTemplate = new VMFrameTemplate(node.funName.lexeme);
+    callChain.push(node.funName.lexeme);
 
     varTable.pushEnvironment();
 
-    // parameters
-    for (var param : node.params) {
+    // parameters (the arguments are already in the first memory addresses)
+    for (var param : node.params)
       varTable.add(param.varName.lexeme);
-      add(VMInstr.STORE(varTable.get(param.varName.lexeme)));
-    }
+    currTemplate.numParams = node.params.size();
 
     // statements
     execBody(node.stmts);
 
-    // add a return null if no other return statement
-    if (node.stmts.isEmpty() || !(node.stmts.getLast() instanceof ReturnStmt)) {
+    // add a return null if the statements don't always return
+    if (!returns(node.stmts)) {
       add(VMInstr.PUSH(VM.NULL));
       add(VMInstr.RET());
     }
 
     varTable.popEnvironment();
+    currTemplate.maxLocals = varTable.maxVars();
 
+    callChain.pop();
     vm.add(currTemplate);
   }
 
@@ -127,6 +462,8 @@ public class CodeGenerator implements Visitor {
    */
   public void visit(StructDef node) {
     structs.put(node.structName.lexeme, node);
+    shapes.put(node.structName.lexeme, new VMShape(node.structName.lexeme,
+            node.fields.stream().map(field -> field.varName.lexeme).toList()));
   }
 
 
@@ -140,18 +477,37 @@ public class CodeGenerator implements Visitor {
 
   public void visit(ReturnStmt node) {
     node.expr.accept(this);
+    // an inlined function's return jumps to the code after its body
+    if (returnJumps != null) {
+      returnJumps.add(currTemplate.instructions.size());
+      add(VMInstr.JMP(-1));
+      return;
+    }
+    // a returned call can reuse this function's frame
+    VMInstr last = currTemplate.instructions.getLast();
+    if (last.opcode == OpCode.CALL)
+      currTemplate.instructions.set(currTemplate.instructions.size() - 1, VMInstr.TAILCALL((String) last.operand));
     add(VMInstr.RET());
   }
 
   public void visit(VarStmt node) {
-    varTable.add(node.varName.lexeme);
-    if (node.expr.isPresent()) {
+    if (localStructs.contains(node)) {
+      localStruct(node);
+      return;
+    }
+    // the variable is added after its initializer, whose (inlined)
+    // code may use the next memory addresses
+    if (localArrays.contains(node) && callChain.size() == 1) {
+      // (an inlined declaration's array would last for the caller's call)
+      NewArrayRValue array = (NewArrayRValue) ((BasicExpr) node.expr.get()).rvalue;
+      array.arrayExpr.accept(this);
+      add(VMInstr.ALLOCA_L(array.type.lexeme));
+    } else if (node.expr.isPresent())
       node.expr.get().accept(this);
-      add(VMInstr.STORE(varTable.get(node.varName.lexeme)));
-    } else {
+    else
       add(VMInstr.PUSH(VM.NULL));
-      add(VMInstr.STORE(varTable.get(node.varName.lexeme)));
-    }
+    varTable.add(node.varName.lexeme);
+    add(VMInstr.STORE(varTable.get(node.varName.lexeme)));
   }
 
   public void visit(AssignStmt node) {
@@ -168,7 +524,7 @@ public class CodeGenerator implements Visitor {
         first.arrayExpr.get().accept(this);
         // value
         node.expr.accept(this);
-        add(VMInstr.SETI());
+        add(arrayAccess(first, VMInstr.SETI()));
       } else {
         node.expr.accept(this);
         add(VMInstr.STORE(varTable.get(firstName)));
@@ -178,12 +534,22 @@ public class CodeGenerator implements Visitor {
 
     // otherwise...
 
-    add(VMInstr.LOAD(varTable.get(firstName)));
+    // the first field may be a local instead
+    int fieldAddress = fieldAddress(first, node.lvalue.get(1));
+    if (fieldAddress >= 0 && node.lvalue.size() == 2 && node.lvalue.get(1).arrayExpr.isEmpty()) {
+      node.expr.accept(this);
+      add(VMInstr.STORE(fieldAddress));
+      return;
+    }
+    if (fieldAddress >= 0)
+      add(VMInstr.LOAD(fieldAddress));
+    else
+      add(VMInstr.LOAD(varTable.get(firstName)));
 
     // process arrayExpr if present for first
     if (first.arrayExpr.isPresent()) {
       first.arrayExpr.get().accept(this);
-      add(VMInstr.GETI());
+      add(arrayAccess(first, VMInstr.GETI()));
     }
 
     boolean firstDone = true;
@@ -199,7 +565,8 @@ public class CodeGenerator implements Visitor {
 
       if (i + 1 == lvalue.size()) {
         if (var.arrayExpr.isPresent()) {
-          add(VMInstr.GETF(var.varName.lexeme));
+          if (i > 1 || fieldAddress < 0)
+            add(VMInstr.GETF(field(var)));
           // oid already on stack from GETF
           // index
           var.arrayExpr.get().accept(this);
@@ -208,12 +575,13 @@ public class CodeGenerator implements Visitor {
           add(VMInstr.SETI());
         } else {
           node.expr.accept(this);
-          add(VMInstr.SETF(var.varName.lexeme));
+          add(VMInstr.SETF(field(var)));
         }
         return;
       }
 
-      add(VMInstr.GETF(var.varName.lexeme));
+      if (i > 1 || fieldAddress < 0)
+        add(VMInstr.GETF(field(var)));
 
       if (var.arrayExpr.isPresent()) {
         var.arrayExpr.get().accept(this);
@@ -224,15 +592,16 @@ public class CodeGenerator implements Visitor {
   }
 
   public void visit(WhileStmt node) {
+    // the condition is tested at the bottom, so jump to it first
+    int entryJumpIndex = currTemplate.instructions.size();
+    add(VMInstr.JMP(-1));
     int loopStart = currTemplate.instructions.size();
-    node.condition.accept(this);
-    int jumpfIndex = currTemplate.instructions.size();
-    add(VMInstr.JMPF(-1));
     varTable.pushEnvironment();
     execBody(node.stmts);
     varTable.popEnvironment();
-    add(VMInstr.JMP(loopStart));
-    currTemplate.instructions.set(jumpfIndex, VMInstr.JMPF(currTemplate.instructions.size()));
+    // the condition jumps back to the body while it holds
+    currTemplate.instructions.get(entryJumpIndex).operand = currTemplate.instructions.size();
+    patchJumps(jumpIfTrue(node.condition), loopStart);
   }
 
   public void visit(ForStmt node) {
@@ -240,22 +609,25 @@ public class CodeGenerator implements Visitor {
     varTable.pushEnvironment();
 
     // populate stuff for the for stmt var
-    varTable.add(node.varName.lexeme);
     node.fromExpr.accept(this);
+    varTable.add(node.varName.lexeme);
     add(VMInstr.STORE(varTable.get(node.varName.lexeme)));
 
-    // loop start for the final jump
-    int loopStart = currTemplate.instructions.size();
+    // array accesses indexed by the variable may not need checks
+    Integer array = countedArray(node);
+    if (array != null)
+      inRangeIndexes.put(varTable.get(node.varName.lexeme), array);
 
-    // populate the condition code
-    add(VMInstr.LOAD(varTable.get(node.varName.lexeme)));
-    node.toExpr.accept(this);
-    add(VMInstr.CMPLE());
-    int jumpfIndex = currTemplate.instructions.size();
-    add(VMInstr.JMPF(-1));
+    // the condition is tested at the bottom, so jump to it first
+    int entryJumpIndex = currTemplate.instructions.size();
+    add(VMInstr.JMP(-1));
+    int loopStart = currTemplate.instructions.size();
 
-    // populate the body stmts
+    // populate the body stmts (in their own environment, as the bound
+    // after them must not see their variables)
+    varTable.pushEnvironment();
     execBody(node.stmts);
+    varTable.popEnvironment();
 
     // inc the stmt var
     add(VMInstr.LOAD(varTable.get(node.varName.lexeme)));
@@ -263,31 +635,35 @@ public class CodeGenerator implements Visitor {
     add(VMInstr.ADD());
     add(VMInstr.STORE(varTable.get(node.varName.lexeme)));
 
-    varTable.popEnvironment();
+    // populate the condition code, jumping back to the body while it holds
+    currTemplate.instructions.get(entryJumpIndex).operand = currTemplate.instructions.size();
+    add(VMInstr.LOAD(varTable.get(node.varName.lexeme)));
+    node.toExpr.accept(this);
+    add(VMInstr.CMPLE());
+    add(VMInstr.JMPT(loopStart));
 
-    // jump to the condition
-    add(VMInstr.JMP(loopStart));
-    // set the false jump to the end
-    currTemplate.instructions.set(jumpfIndex, VMInstr.JMPF(currTemplate.instructions.size()));
+    inRangeIndexes.remove(varTable.get(node.varName.lexeme));
+    varTable.popEnvironment();
   }
 
   public void visit(IfStmt node) {
-    // populate the condition
-    node.condition.accept(this);
-    // jump variable to get to after the stmts
-    int jumpfIndex = currTemplate.instructions.size();
-    add(VMInstr.JMPF(-1));
+    // populate the condition with jumps to get to after the stmts
+    List<Integer> falseJumps = jumpIfFalse(node.condition);
 
     // populate the main stmts
     varTable.pushEnvironment();
     execBody(node.ifStmts);
     varTable.popEnvironment();
 
-    int jumpToEndIndex = currTemplate.instructions.size();
-    add(VMInstr.JMP(-1));
+    // a branch that returns doesn't jump to the end
+    int jumpToEndIndex = -1;
+    if (!returns(node.ifStmts)) {
+      jumpToEndIndex = currTemplate.instructions.size();
+      add(VMInstr.JMP(-1));
+    }
 
-    // set that jump var to a proper val
-    currTemplate.instructions.set(jumpfIndex, VMInstr.JMPF(currTemplate.instructions.size()));
+    // set those jumps to a proper val
+    patchJumps(falseJumps);
 
     // populate elseIf if present
     node.elseIf.ifPresent(ifStmt -> ifStmt.accept(this));
@@ -300,7 +676,8 @@ public class CodeGenerator implements Visitor {
     }
 
     // Fix the jump after successful if stmt
-    currTemplate.instructions.set(jumpToEndIndex, VMInstr.JMP(currTemplate.instructions.size()));
+    if (jumpToEndIndex >= 0)
+      currTemplate.instructions.set(jumpToEndIndex, VMInstr.JMP(currTemplate.instructions.size()));
   }
 
   public void visit(BasicExpr node) {
@@ -313,6 +690,11 @@ public class CodeGenerator implements Visitor {
   }
 
   public void visit(BinaryExpr node) {
+    TokenType op = node.binaryOp.tokenType;
+    if ((op == TokenType.AND || op == TokenType.OR) && !isBoolLiteral(node.rhs)) {
+      shortCircuit(node);
+      return;
+    }
     if (node.binaryOp.tokenType == TokenType.GREATER || node.binaryOp.tokenType == TokenType.GREATER_EQ) {
       node.rhs.accept(this);
       node.lhs.accept(this);
@@ -322,24 +704,104 @@ public class CodeGenerator implements Visitor {
     }
     switch (node.binaryOp.tokenType) {
       // arithmetic
-      case PLUS -> add(VMInstr.ADD());
-      case MINUS -> add(VMInstr.SUB());
-      case TIMES -> add(VMInstr.MUL());
-      case DIVIDE -> add(VMInstr.DIV());
+      case PLUS -> add(specialize(node, VMInstr.IADD(), VMInstr.DADD(), VMInstr.SCONCAT(), VMInstr.ADD()));
+      case MINUS -> add(specialize(node, VMInstr.ISUB(), VMInstr.DSUB(), null, VMInstr.SUB()));
+      case TIMES -> add(specialize(node, VMInstr.IMUL(), VMInstr.DMUL(), null, VMInstr.MUL()));
+      case DIVIDE -> add(specialize(node, VMInstr.IDIV(), VMInstr.DDIV(), null, VMInstr.DIV()));
       // comparator
-      case EQUAL -> add(VMInstr.CMPEQ());
+      case EQUAL -> {
+        if (isIntOrBool(node)) add(VMInstr.ICMPEQ());
+        else add(VMInstr.CMPEQ());
+      }
       case NOT_EQUAL -> {
-        add(VMInstr.CMPEQ());
-        add(VMInstr.NOT());
+        if (isIntOrBool(node)) add(VMInstr.ICMPNE());
+        else {
+          add(VMInstr.CMPEQ());
+          add(VMInstr.NOT());
+        }
       }
-      case LESS, GREATER -> add(VMInstr.CMPLT());
-      case LESS_EQ, GREATER_EQ -> add(VMInstr.CMPLE());
+      case LESS, GREATER -> add(specialize(node, VMInstr.ICMPLT(), VMInstr.DCMPLT(), VMInstr.SCMPLT(), VMInstr.CMPLT()));
+      case LESS_EQ, GREATER_EQ -> add(specialize(node, VMInstr.ICMPLE(), VMInstr.DCMPLE(), VMInstr.SCMPLE(), VMInstr.CMPLE()));
       // boolean
       case AND -> add(VMInstr.AND());
       case OR -> add(VMInstr.OR());
     }
   }
 
+  /**
+   * Helper to generate an `and` or `or` that only evaluates its
+   * right-hand side if the left-hand side doesn't decide the result:
+   * <pre>
+   *   lhs DUP JMPF(end) POP rhs      (and)
+   *   lhs DUP JMPT(end) POP rhs      (or)
+   * </pre>
+   */
+  private void shortCircuit(BinaryExpr node) {
+    node.lhs.accept(this);
+    add(VMInstr.DUP());
+    List<Integer> jumps = List.of(currTemplate.instructions.size());
+    add(node.binaryOp.tokenType == TokenType.AND ? VMInstr.JMPF(-1) : VMInstr.JMPT(-1));
+    add(VMInstr.POP());
+    node.rhs.accept(this);
+    patchJumps(jumps);
+  }
+
+  /**
+   * Helper to check if an expression is true or false, which is
+   * cheaper to evaluate than a jump around it and (unlike any other
+   * right-hand side, such as a local that may be null) can't make AND
+   * or OR fail. The AND and OR instructions are kept for these.
+   */
+  private boolean isBoolLiteral(Expr expr) {
+    return expr instanceof BasicExpr basic && basic.rvalue instanceof SimpleRValue value &&
+            value.literal.tokenType == TokenType.BOOL_VAL;
+  }
+
+  /**
+   * Helper to check if an expression is a literal or a local variable.
+   */
+  private boolean isSimple(Expr expr) {
+    if (!(expr instanceof BasicExpr basic))
+      return false;
+    if (basic.rvalue instanceof SimpleRValue)
+      return true;
+    return basic.rvalue instanceof VarRValue var && var.path.size() == 1 &&
+            var.path.getFirst().arrayExpr.isEmpty();
+  }
+
+  /**
+   * Helper to pick the type-specialized instruction for a binary
+   * expression based on its checked operand type.
+   *
+   * @param node    the binary expression
+   * @param intOp   the instruction for int operands
+   * @param dblOp   the instruction for double operands
+   * @param strOp   the instruction for string operands (or null if none)
+   * @param generic the instruction to use if the type is not known
+   * @return the instruction to emit
+   */
+  private VMInstr specialize(BinaryExpr node, VMInstr intOp, VMInstr dblOp, VMInstr strOp, VMInstr generic) {
+    if (node.operandType == null || node.operandType.isArray)
+      return generic;
+    VMInstr instr = switch (node.operandType.type.tokenType) {
+      case INT_TYPE -> intOp;
+      case DOUBLE_TYPE -> dblOp;
+      case STRING_TYPE -> strOp;
+      default -> null;
+    };
+    return instr == null ? generic : instr;
+  }
+
+  /**
+   * Helper to check if both operands of a binary expression are
+   * known to be ints or bools (i.e., can be compared by value).
+   */
+  private boolean isIntOrBool(BinaryExpr node) {
+    return node.operandType != null && !node.operandType.isArray &&
+            (node.operandType.type.tokenType == TokenType.INT_TYPE ||
+                    node.operandType.type.tokenType == TokenType.BOOL_TYPE);
+  }
+
   public void visit(CallRValue node) {
     for (int i = node.args.size() - 1; i >= 0; i--) {
       node.args.get(i).accept(this);
@@ -394,6 +856,10 @@ public class CodeGenerator implements Visitor {
     }
 
     // handle user defined functions
+    if (shouldInline(node.funName.lexeme)) {
+      inlineCall(functions.get(node.funName.lexeme));
+      return;
+    }
     add(VMInstr.CALL(node.funName.lexeme));
     // TODO: Maybe deal with null returns?
   }
@@ -409,29 +875,35 @@ public class CodeGenerator implements Visitor {
   }
 
   public void visit(NewStructRValue node) {
-    add(VMInstr.ALLOCS());
+    VMShape shape = shapes.get(node.structName.lexeme);
+    add(VMInstr.ALLOCS(shape));
     for (int i = 0; i < node.args.size(); i++) {
       add(VMInstr.DUP());
       node.args.get(i).accept(this);
-      add(VMInstr.SETF(structs.get(node.structName.lexeme).fields.get(i).varName.lexeme));
+      add(VMInstr.SETF(shape.field(shape.fields.get(i))));
     }
   }
 
   public void visit(NewArrayRValue node) {
     node.arrayExpr.accept(this);
-    add(VMInstr.ALLOCA());
+    add(VMInstr.ALLOCA(node.type.lexeme));
 
   }
 
   public void visit(VarRValue node) {
     VarRef first = node.path.getFirst();
     var firstName = first.varName.lexeme;
-    add(VMInstr.LOAD(varTable.get(firstName)));
+    // the first field may be a local instead
+    int fieldAddress = node.path.size() > 1 ? fieldAddress(first, node.path.get(1)) : -1;
+    if (fieldAddress >= 0)
+      add(VMInstr.LOAD(fieldAddress));
+    else
+      add(VMInstr.LOAD(varTable.get(firstName)));
 
     // process arrayExpr if present for first
     if (first.arrayExpr.isPresent()) {
       first.arrayExpr.get().accept(this);
-      add(VMInstr.GETI());
+      add(arrayAccess(first, VMInstr.GETI()));
     }
 
     boolean firstDone = true;
@@ -441,7 +913,8 @@ public class CodeGenerator implements Visitor {
         continue;
       }
 
-      add(VMInstr.GETF(var.varName.lexeme));
+      if (var != node.path.get(1) || fieldAddress < 0)
+        add(VMInstr.GETF(field(var)));
 
       if (var.arrayExpr.isPresent()) {
         var.arrayExpr.get().accept(this);
@@ -0,0 +1,110 @@
+/**
+ * CPSC 326, Spring 2025
+ * Shared support for rewriting VM code.
+ */
+
+package cpsc326;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+
+/**
+ * Helpers for optimization passes that replace short instruction
+ * sequences in a frame template. Replacements may change the number
+ * of instructions; jump targets are fixed up afterward.
+ */
+final class CodeRewriter {
+
+  /**
+   * A pattern that may match the instructions starting at a given
+   * index, returning the match or null.
+   */
+  interface Pattern {
+    Match match(List<VMInstr> instrs, Set<Integer> targets, int i);
+  }
+
+  /**
+   * A matched sequence: the number of instructions matched and the
+   * instructions that replace them.
+   */
+  record Match(int length, List<VMInstr> replacement) {
+  }
+
+  private CodeRewriter() {
+  }
+
+  /**
+   * Apply a pattern once across the template's instructions.
+   *
+   * @param template the template to rewrite
+   * @param pattern  the pattern to apply
+   * @return true if any instructions were rewritten
+   */
+  static boolean rewrite(VMFrameTemplate template, Pattern pattern) {
+    List<VMInstr> instrs = template.instructions;
+    Set<Integer> targets = jumpTargets(instrs);
+    List<VMInstr> result = new ArrayList<>();
+    // the index of each original instruction in the result
+    int[] newIndex = new int[instrs.size() + 1];
+    boolean changed = false;
+    int i = 0;
+    while (i < instrs.size()) {
+      Match match = pattern.match(instrs, targets, i);
+      if (match == null) {
+        newIndex[i] = result.size();
+        result.add(instrs.get(i++));
+        continue;
+      }
+      changed = true;
+      for (int j = 0; j < match.length(); ++j)
+        newIndex[i + j] = result.size();
+      result.addAll(match.replacement());
+      i += match.length();
+    }
+    newIndex[instrs.size()] = result.size();
+    if (!changed)
+      return false;
+    // fix up the jump targets (invalid targets are left for the linker to report)
+    for (VMInstr instr : result) {
+      if (instr.isJump() && (int) instr.operand >= 0 && (int) instr.operand <= instrs.size())
+        instr.operand = newIndex[(int) instr.operand];
+    }
+    template.instructions = result;
+    return true;
+  }
+
+  /**
+   * Get the instruction the given distance after index i, or null if
+   * there isn't one or if any instruction in between is a jump target
+   * (in which case a pattern can't span it).
+   */
+  static VMInstr next(List<VMInstr> instrs, Set<Integer> targets, int i, int distance) {
+    for (int j = i + 1; j <= i + distance; ++j)
+      if (j >= instrs.size() || targets.contains(j))
+        return null;
+    return instrs.get(i + distance);
+  }
+
+  /**
+   * Get the set of instruction indexes that are jumped to.
+   */
+  static Set<Integer> jumpTargets(List<VMInstr> instrs) {
+    Set<Integer> targets = new HashSet<>();
+    for (VMInstr instr : instrs)
+      if (instr.isJump())
+        targets.add((int) instr.operand);
+    return targets;
+  }
+
+  /**
+   * Give a new instruction the comment of the one it replaces.
+   */
+  static VMInstr copy(VMInstr instr, VMInstr replaced) {
+    instr.comment = replaced.comment;
+    return instr;
+  }
+
+}
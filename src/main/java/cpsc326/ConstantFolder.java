@@ -0,0 +1,189 @@
+/**
+ * CPSC 326, Spring 2025
+ * Constant folding and propagation of generated VM code.
+ */
+
+package cpsc326;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static cpsc326.CodeRewriter.*;
+
+
+/**
+ * Evaluates operations on constant operands at compile time:
+ * <pre>
+ *   PUSH(a) PUSH(b) ADD          =>  PUSH(a + b)  (and the other binary ops)
+ *   PUSH(a) NOT                  =>  PUSH(not a)  (and TOSTR, TOINT, TODBL)
+ *   PUSH(true) JMPF(i)           =>  (removed)
+ *   PUSH(false) JMPF(i)          =>  JMP(i)          (and JMPT)
+ * </pre>
+ * and propagates constants through locals that are stored only once
+ * (from a PUSH), replacing each later LOAD of the local with a PUSH
+ * of its value. Variables can only be used after their declaration
+ * in generated code, so each of these LOADs runs after the store.
+ * Parameters are stored by the caller, so they're never propagated.
+ * <p>
+ * An operation is only folded if it can't fail; division by zero,
+ * null operands, and mismatched types are left to fail at run time.
+ */
+public class ConstantFolder {
+
+  /**
+   * Fold and propagate constants in each of the given VM's frame
+   * templates. This should be done before the VM is linked.
+   *
+   * @param vm the vm whose templates are optimized
+   */
+  public void optimize(VM vm) {
+    for (VMFrameTemplate template : vm.templates().values())
+      optimize(template);
+  }
+
+  /**
+   * Fold and propagate constants in the given frame template.
+   *
+   * @param template the template to optimize
+   */
+  public void optimize(VMFrameTemplate template) {
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      while (rewrite(template, this::fold))
+        changed = true;
+      changed |= propagate(template);
+    }
+  }
+
+  /**
+   * The folding patterns.
+   */
+  private Match fold(List<VMInstr> instrs, Set<Integer> targets, int i) {
+    VMInstr instr = instrs.get(i);
+    if (instr.opcode != OpCode.PUSH)
+      return null;
+    VMInstr next = next(instrs, targets, i, 1);
+    if (next == null)
+      return null;
+    // unary operations and branches
+    if ((next.opcode == OpCode.JMPF || next.opcode == OpCode.JMPT) && instr.operand instanceof Boolean b) {
+      boolean taken = b == (next.opcode == OpCode.JMPT);
+      return new Match(2, taken ? List.of(copy(VMInstr.JMP((int) next.operand), next)) : List.of());
+    }
+    Object value = evaluate(next.opcode, instr.operand);
+    if (value != null)
+      return new Match(2, List.of(copy(VMInstr.PUSH(value), next)));
+    // binary operations
+    VMInstr op = next(instrs, targets, i, 2);
+    if (next.opcode != OpCode.PUSH || op == null)
+      return null;
+    value = evaluate(op.opcode, instr.operand, next.operand);
+    if (value != null)
+      return new Match(3, List.of(copy(VMInstr.PUSH(value), op)));
+    return null;
+  }
+
+  /**
+   * Replace loads of locals that are stored once from a constant.
+   *
+   * @return true if any loads were replaced
+   */
+  private boolean propagate(VMFrameTemplate template) {
+    List<VMInstr> instrs = template.instructions;
+    Set<Integer> targets = jumpTargets(instrs);
+    // the index of the only store to each local (or -1 if more than one)
+    Map<Object, Integer> stores = new HashMap<>();
+    for (int i = 0; i < instrs.size(); ++i) {
+      VMInstr instr = instrs.get(i);
+      if (instr.opcode == OpCode.STORE)
+        stores.put(instr.operand, stores.containsKey(instr.operand) ? -1 : i);
+    }
+    boolean changed = false;
+    for (int i = 0; i < instrs.size(); ++i) {
+      VMInstr instr = instrs.get(i);
+      Integer store = stores.get(instr.operand);
+      if (instr.opcode != OpCode.LOAD || (int) instr.operand < template.numParams || store == null ||
+              store < 1 || store > i || targets.contains(store))
+        continue;
+      VMInstr push = instrs.get(store - 1);
+      if (push.opcode != OpCode.PUSH)
+        continue;
+      instrs.set(i, copy(VMInstr.PUSH(push.operand), instr));
+      changed = true;
+    }
+    return changed;
+  }
+
+  /**
+   * Evaluate a unary operation on a constant.
+   *
+   * @return the result, or null if the operation can't be folded
+   */
+  private Object evaluate(OpCode opcode, Object x) {
+    return switch (opcode) {
+      case NOT -> x instanceof Boolean b ? !b : null;
+      case TOSTR -> x instanceof Integer || x instanceof Double ? String.valueOf(x) : null;
+      case TOINT -> x instanceof Double d ? (Object) d.intValue() : null;
+      case TODBL -> x instanceof Integer n ? (Object) n.doubleValue() : null;
+      default -> null;
+    };
+  }
+
+  /**
+   * Evaluate a binary operation on constants y and x (pushed in that
+   * order), matching the VM's semantics.
+   *
+   * @return the result, or null if the operation can't be folded
+   */
+  private Object evaluate(OpCode opcode, Object y, Object x) {
+    switch (opcode) {
+      case CMPEQ, ICMPEQ, CMPNE, ICMPNE -> {
+        boolean equal = VMValue.equal(VMValue.tagOf(y), VMValue.bitsOf(y), y, VMValue.tagOf(x), VMValue.bitsOf(x), x);
+        return (opcode == OpCode.CMPEQ || opcode == OpCode.ICMPEQ) == equal;
+      }
+      case AND -> {
+        return y instanceof Boolean a && x instanceof Boolean b ? a && b : null;
+      }
+      case OR -> {
+        return y instanceof Boolean a && x instanceof Boolean b ? a || b : null;
+      }
+      default -> {
+      }
+    }
+    if (y instanceof Integer a && x instanceof Integer b) {
+      return switch (opcode) {
+        case ADD, IADD -> a + b;
+        case SUB, ISUB -> a - b;
+        case MUL, IMUL -> a * b;
+        case DIV, IDIV -> b != 0 ? a / b : null;
+        case CMPLT, ICMPLT -> a < b;
+        case CMPLE, ICMPLE -> a <= b;
+        default -> null;
+      };
+    }
+    if (y instanceof Double a && x instanceof Double b) {
+      return switch (opcode) {
+        case ADD, DADD -> a + b;
+        case SUB, DSUB -> a - b;
+        case MUL, DMUL -> a * b;
+        case DIV, DDIV -> b != 0.0 ? a / b : null;
+        case CMPLT, DCMPLT -> a < b;
+        case CMPLE, DCMPLE -> a <= b;
+        default -> null;
+      };
+    }
+    if (y instanceof String a && x instanceof String b) {
+      return switch (opcode) {
+        case ADD, SCONCAT -> a + b;
+        case CMPLT, SCMPLT -> a.compareTo(b) < 0;
+        case CMPLE, SCMPLE -> a.compareTo(b) <= 0;
+        default -> null;
+      };
+    }
+    return null;
+  }
+
+}
@@ -0,0 +1,257 @@
+/**
+ * CPSC 326, Spring 2025
+ * Control flow graph of a frame template's VM code.
+ */
+
+package cpsc326;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+
+/**
+ * Splits a frame template's instructions into basic blocks: each
+ * block is entered only at its first instruction and left only after
+ * its last, which is the only jump (or RET) in the block. Passes can
+ * rewrite the instructions of a block (keeping its last jump) and then
+ * lower the graph back into the template, which recomputes the jump
+ * targets from the blocks they jump to.
+ * <p>
+ * The blocks are kept in code order. The last block is always an
+ * empty exit block, the target of jumps to the end of the code (which
+ * stop the frame).
+ */
+public class ControlFlowGraph {
+
+  /**
+   * A basic block.
+   */
+  public static class BasicBlock {
+
+    /* the block's position in the graph's blocks */
+    public int index;
+
+    /* the block's instructions */
+    public List<VMInstr> instructions = new ArrayList<>();
+
+    /* the block jumped to by the last instruction (or null if none) */
+    public BasicBlock target;
+
+    /* the blocks that can run next */
+    public List<BasicBlock> successors = new ArrayList<>();
+
+    /* the blocks that can run just before */
+    public List<BasicBlock> predecessors = new ArrayList<>();
+
+    /**
+     * Get the block's last instruction (or null if empty).
+     */
+    public VMInstr last() {
+      return instructions.isEmpty() ? null : instructions.getLast();
+    }
+
+    /**
+     * Check if the block ends with an instruction that doesn't fall
+     * through to the next block.
+     */
+    public boolean endsFlow() {
+      VMInstr last = last();
+      return last != null && (last.opcode == OpCode.JMP || last.opcode == OpCode.RET);
+    }
+  }
+
+  /* the template the graph was built from */
+  public final VMFrameTemplate template;
+
+  /* the blocks in code order, ending with the exit block */
+  public final List<BasicBlock> blocks = new ArrayList<>();
+
+  /* the blocks dominating each block (by index), computed on demand */
+  private List<BitSet> dominators = null;
+
+
+  /**
+   * Build the graph of a template.
+   *
+   * @param template the template (whose jump targets must be valid)
+   */
+  public ControlFlowGraph(VMFrameTemplate template) {
+    this.template = template;
+    List<VMInstr> instrs = template.instructions;
+    // the block starting at each leader instruction
+    BasicBlock[] leaders = new BasicBlock[instrs.size() + 1];
+    leaders[0] = new BasicBlock();
+    leaders[instrs.size()] = new BasicBlock();
+    for (int i = 0; i < instrs.size(); ++i) {
+      VMInstr instr = instrs.get(i);
+      if (instr.isJump() && leaders[(int) instr.operand] == null)
+        leaders[(int) instr.operand] = new BasicBlock();
+      if ((instr.isJump() || instr.opcode == OpCode.RET) && leaders[i + 1] == null)
+        leaders[i + 1] = new BasicBlock();
+    }
+    BasicBlock block = null;
+    for (int i = 0; i <= instrs.size(); ++i) {
+      if (leaders[i] != null) {
+        block = leaders[i];
+        block.index = blocks.size();
+        blocks.add(block);
+      }
+      if (i < instrs.size()) {
+        block.instructions.add(instrs.get(i));
+        if (instrs.get(i).isJump())
+          block.target = leaders[(int) instrs.get(i).operand];
+      }
+    }
+    for (BasicBlock b : blocks) {
+      if (b.target != null)
+        addEdge(b, b.target);
+      if (!b.endsFlow() && b.index + 1 < blocks.size())
+        addEdge(b, blocks.get(b.index + 1));
+    }
+  }
+
+  /**
+   * Check if a template's jump targets are valid (so that its graph
+   * can be built).
+   */
+  public static boolean isValid(VMFrameTemplate template) {
+    for (VMInstr instr : template.instructions)
+      if (instr.isJump() && ((int) instr.operand < 0 || (int) instr.operand > template.instructions.size()))
+        return false;
+    return true;
+  }
+
+  // helper functions
+
+  /**
+   * Add an edge between two blocks (once).
+   */
+  private void addEdge(BasicBlock from, BasicBlock to) {
+    if (from.successors.contains(to))
+      return;
+    from.successors.add(to);
+    to.predecessors.add(from);
+  }
+
+  /**
+   * Get the blocks reachable from the entry block in reverse
+   * postorder (each block before its successors, except along back
+   * edges).
+   */
+  public List<BasicBlock> reversePostorder() {
+    List<BasicBlock> order = new ArrayList<>();
+    postorder(blocks.getFirst(), new BitSet(), order);
+    return order.reversed();
+  }
+
+  /**
+   * Add the blocks reachable from a block in postorder.
+   */
+  private void postorder(BasicBlock block, BitSet visited, List<BasicBlock> order) {
+    visited.set(block.index);
+    for (BasicBlock successor : block.successors)
+      if (!visited.get(successor.index))
+        postorder(successor, visited, order);
+    order.add(block);
+  }
+
+  /**
+   * Check if every path from the entry block to block b goes through
+   * block a.
+   */
+  public boolean dominates(BasicBlock a, BasicBlock b) {
+    if (dominators == null)
+      computeDominators();
+    return dominators.get(b.index).get(a.index);
+  }
+
+  /**
+   * Compute the dominators of each block, intersecting the dominators
+   * of each block's predecessors until nothing changes.
+   */
+  private void computeDominators() {
+    List<BasicBlock> order = reversePostorder();
+    dominators = new ArrayList<>();
+    for (BasicBlock b : blocks) {
+      BitSet all = new BitSet();
+      all.set(0, blocks.size());
+      dominators.add(all);
+    }
+    dominators.get(0).clear();
+    dominators.get(0).set(0);
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (BasicBlock b : order) {
+        if (b.index == 0)
+          continue;
+        BitSet dom = new BitSet();
+        dom.set(0, blocks.size());
+        for (BasicBlock p : b.predecessors)
+          dom.and(dominators.get(p.index));
+        dom.set(b.index);
+        if (!dom.equals(dominators.get(b.index))) {
+          dominators.set(b.index, dom);
+          changed = true;
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the blocks of the natural loop of a back edge (from a block to
+   * a block dominating it): the header and the blocks that reach the
+   * back edge without going through the header.
+   *
+   * @param from   the block jumping back
+   * @param header the loop header
+   * @return the loop's blocks (by index)
+   */
+  public BitSet loop(BasicBlock from, BasicBlock header) {
+    BitSet body = new BitSet();
+    body.set(header.index);
+    List<BasicBlock> worklist = new ArrayList<>(List.of(from));
+    while (!worklist.isEmpty()) {
+      BasicBlock b = worklist.removeLast();
+      if (body.get(b.index))
+        continue;
+      body.set(b.index);
+      worklist.addAll(b.predecessors);
+    }
+    return body;
+  }
+
+  /**
+   * Get the number of memory addresses the template uses (at least
+   * its maxLocals and parameters), i.e., the next unused address.
+   */
+  public int memorySize() {
+    int size = Math.max(template.maxLocals, template.numParams);
+    for (VMInstr instr : template.instructions)
+      for (int address : VMVerifier.addresses(instr))
+        size = Math.max(size, address + 1);
+    return size;
+  }
+
+  /**
+   * Replace the template's instructions with the blocks' instructions
+   * in order, pointing each jump at the start of its target block.
+   */
+  public void lower() {
+    int[] starts = new int[blocks.size()];
+    int start = 0;
+    for (BasicBlock b : blocks) {
+      starts[b.index] = start;
+      start += b.instructions.size();
+    }
+    List<VMInstr> instrs = new ArrayList<>();
+    for (BasicBlock b : blocks) {
+      if (b.target != null)
+        b.last().operand = starts[b.target.index];
+      instrs.addAll(b.instructions);
+    }
+    template.instructions = instrs;
+  }
+
+}
@@ -0,0 +1,173 @@
+/**
+ * CPSC 326, Spring 2025
+ * Dead code and dead store elimination of generated VM code.
+ */
+
+package cpsc326;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+import cpsc326.ControlFlowGraph.BasicBlock;
+import cpsc326.ValueNumberer.Entry;
+import cpsc326.ValueNumberer.Tracker;
+
+
+/**
+ * Removes the code of each frame template that can't run or whose
+ * results are never used:
+ * <ul>
+ *   <li>the blocks of the control flow graph that can't be reached
+ *       from the entry block are emptied; and
+ *   <li>a STORE to a local that isn't live (i.e., isn't loaded again
+ *       before being stored again or the frame ends) is removed.
+ * </ul>
+ * The value of a dead store is popped instead, unless the
+ * instructions computing it can't fail (see ValueNumberer.cannotFail),
+ * so calls and other side effects still happen:
+ * <pre>
+ *   ... (value v) STORE(x)  =>  ... (value v) POP    if x isn't live
+ *   LOAD(y) STORE(x)        =>  (removed)            if x isn't live
+ * </pre>
+ * Removing a store can make the locals its value used dead, so stores
+ * are removed until there are no more.
+ */
+public class DeadCodeEliminator {
+
+  /**
+   * A replacement of the instructions of a block from start up to end.
+   */
+  private record Replacement(int start, int end, List<VMInstr> instructions) {
+  }
+
+
+  /**
+   * Remove the dead code in each of the given VM's frame templates.
+   * This should be done before the VM is linked.
+   *
+   * @param vm the vm whose templates are optimized
+   */
+  public void optimize(VM vm) {
+    for (VMFrameTemplate template : vm.templates().values())
+      optimize(template);
+  }
+
+  /**
+   * Remove the dead code in the given frame template.
+   *
+   * @param template the template to optimize
+   */
+  public void optimize(VMFrameTemplate template) {
+    if (!ControlFlowGraph.isValid(template))
+      return;
+    ControlFlowGraph graph = new ControlFlowGraph(template);
+    List<BasicBlock> reachable = graph.reversePostorder();
+    BitSet reached = new BitSet();
+    for (BasicBlock block : reachable)
+      reached.set(block.index);
+    boolean changed = false;
+    for (BasicBlock block : graph.blocks) {
+      if (!reached.get(block.index) && !block.instructions.isEmpty()) {
+        block.instructions.clear();
+        block.target = null;
+        changed = true;
+      }
+    }
+    boolean removed = true;
+    while (removed) {
+      removed = false;
+      List<BitSet> liveOut = liveOut(graph, reachable);
+      for (BasicBlock block : reachable)
+        removed |= removeDeadStores(block, liveOut.get(block.index));
+      changed |= removed;
+    }
+    if (changed)
+      graph.lower();
+  }
+
+  // helper functions
+
+  /**
+   * Find the locals live at the end of each reachable block: those
+   * live at the start of one of its successors, until nothing
+   * changes.
+   */
+  private List<BitSet> liveOut(ControlFlowGraph graph, List<BasicBlock> reachable) {
+    List<BitSet> liveIn = new ArrayList<>();
+    List<BitSet> liveOut = new ArrayList<>();
+    for (BasicBlock block : graph.blocks) {
+      liveIn.add(new BitSet());
+      liveOut.add(new BitSet());
+    }
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (BasicBlock block : reachable.reversed()) {
+        BitSet live = new BitSet();
+        for (BasicBlock successor : block.successors)
+          live.or(liveIn.get(successor.index));
+        liveOut.set(block.index, (BitSet) live.clone());
+        for (VMInstr instr : block.instructions.reversed())
+          liveBefore(instr, live);
+        if (!live.equals(liveIn.get(block.index))) {
+          liveIn.set(block.index, live);
+          changed = true;
+        }
+      }
+    }
+    return liveOut;
+  }
+
+  /**
+   * Update the locals live after an instruction to those live before
+   * it.
+   */
+  private void liveBefore(VMInstr instr, BitSet live) {
+    for (int address : VMVerifier.addresses(instr)) {
+      if (instr.opcode == OpCode.STORE)
+        live.clear(address);
+      else
+        live.set(address);
+    }
+  }
+
+  /**
+   * Remove the stores of a block to locals that aren't live.
+   *
+   * @param block   the block to rewrite
+   * @param liveOut the locals live at the end of the block
+   * @return true if any stores were removed
+   */
+  private boolean removeDeadStores(BasicBlock block, BitSet liveOut) {
+    List<VMInstr> instrs = block.instructions;
+    // the locals live after each instruction
+    BitSet[] liveAfter = new BitSet[instrs.size()];
+    BitSet live = (BitSet) liveOut.clone();
+    for (int i = instrs.size() - 1; i >= 0; --i) {
+      liveAfter[i] = (BitSet) live.clone();
+      liveBefore(instrs.get(i), live);
+    }
+    List<Replacement> replacements = new ArrayList<>();
+    Tracker tracker = new Tracker(Map.of());
+    for (int i = 0; i < instrs.size(); ++i) {
+      VMInstr instr = instrs.get(i);
+      Entry stored = tracker.peek();
+      tracker.step(instr, i);
+      if (instr.opcode != OpCode.STORE || liveAfter[i].get((int) instr.operand))
+        continue;
+      if (stored.start() >= 0 && stored.end() == i &&
+          instrs.subList(stored.start(), i).stream().allMatch(x -> ValueNumberer.cannotFail(x.opcode)))
+        replacements.add(new Replacement(stored.start(), i + 1, List.of()));
+      else
+        replacements.add(new Replacement(i, i + 1, List.of(CodeRewriter.copy(VMInstr.POP(), instr))));
+    }
+    for (Replacement replacement : replacements.reversed()) {
+      instrs.subList(replacement.start(), replacement.end()).clear();
+      instrs.addAll(replacement.start(), replacement.instructions());
+    }
+    return !replacements.isEmpty();
+  }
+
+}
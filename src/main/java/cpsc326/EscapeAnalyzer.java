@@ -0,0 +1,252 @@
+/**
+ * CPSC 326, Spring 2025
+ * Escape analysis of struct and array variables.
+ */
+
+package cpsc326;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Finds the struct variables of each function whose struct never
+ * leaves the function, so that the code generator can replace the
+ * struct by a local for each of its fields. A variable's struct
+ * doesn't escape if:
+ * <ul>
+ *   <li>the variable is declared once in the function (and isn't a
+ *       parameter or for loop variable), with a new struct;
+ *   <li>the variable is never assigned; and
+ *   <li>each use of the variable accesses one of its fields (as in
+ *       p.x, p.x = e, or p.x.y), so the struct itself is never passed,
+ *       returned, stored, or compared.
+ * </ul>
+ * Since the variable can't be null and no other variable can refer to
+ * its struct, reading and writing its fields can't fail and can only
+ * be done through the variable.
+ * <p>
+ * Likewise, it finds the array variables whose array never outlives
+ * the function's call, so that the array can be allocated in the
+ * call's arena (see VMArena). These are declared once in the function
+ * with a new array, outside of any loop (so each call allocates at
+ * most one array for the variable), are never assigned, and are only
+ * indexed (as in xs[i], xs[i] = e, or xs[i].x) or passed to size.
+ */
+public class EscapeAnalyzer implements Visitor {
+
+  /* the variable declarations whose structs don't escape */
+  private final Set<VarStmt> localStructs = new HashSet<>();
+
+  /* the variable declarations whose arrays don't escape */
+  private final Set<VarStmt> localArrays = new HashSet<>();
+
+  /* the declarations of each variable of the current function (by name) */
+  private final Map<String, List<VarStmt>> declarations = new HashMap<>();
+
+  /* the names of the current function's variables that escape (or
+     aren't declared by a single var statement) */
+  private final Set<String> escaping = new HashSet<>();
+
+  /* the names of the current function's variables whose arrays escape
+     (or aren't declared by a single var statement outside of loops) */
+  private final Set<String> escapingArrays = new HashSet<>();
+
+  /* the number of loops the current statement is in */
+  private int loops = 0;
+
+
+  /**
+   * Get the variable declarations (of the functions visited) whose
+   * structs don't escape.
+   */
+  public Set<VarStmt> localStructs() {
+    return localStructs;
+  }
+
+  /**
+   * Get the variable declarations (of the functions visited) whose
+   * arrays don't escape.
+   */
+  public Set<VarStmt> localArrays() {
+    return localArrays;
+  }
+
+  //----------------------------------------------------------------------
+  // Helper functions
+
+  /**
+   * Helper to visit the index expressions of a variable path.
+   */
+  private void visitIndexes(List<VarRef> path) {
+    for (VarRef var : path)
+      var.arrayExpr.ifPresent(expr -> expr.accept(this));
+  }
+
+  /**
+   * Helper to record a use of a variable path: it must access a field
+   * of a struct variable, or an element of an array variable, that
+   * doesn't escape.
+   */
+  private void use(List<VarRef> path) {
+    VarRef first = path.getFirst();
+    if (path.size() == 1 || first.arrayExpr.isPresent())
+      escaping.add(first.varName.lexeme);
+    if (first.arrayExpr.isEmpty())
+      escapingArrays.add(first.varName.lexeme);
+    visitIndexes(path);
+  }
+
+  /**
+   * Helper to record that a variable's struct or array escapes.
+   */
+  private void escape(String name) {
+    escaping.add(name);
+    escapingArrays.add(name);
+  }
+
+  /**
+   * Helper to visit a list of statements.
+   */
+  private void visitAll(List<Stmt> stmts) {
+    for (Stmt stmt : stmts)
+      stmt.accept(this);
+  }
+
+  //----------------------------------------------------------------------
+  // Visitors for programs, functions, and structs
+
+  public void visit(Program node) {
+    for (FunDef f : node.functions)
+      f.accept(this);
+  }
+
+  public void visit(FunDef node) {
+    declarations.clear();
+    escaping.clear();
+    escapingArrays.clear();
+    for (VarDef param : node.params)
+      escape(param.varName.lexeme);
+    visitAll(node.stmts);
+    for (var declared : declarations.entrySet()) {
+      List<VarStmt> stmts = declared.getValue();
+      if (stmts.size() != 1)
+        continue;
+      if (!escaping.contains(declared.getKey()))
+        localStructs.add(stmts.getFirst());
+      if (!escapingArrays.contains(declared.getKey()))
+        localArrays.add(stmts.getFirst());
+    }
+  }
+
+  public void visit(StructDef node) {
+    // nothing to do here
+  }
+
+  public void visit(DataType node) {
+    // nothing to do here
+  }
+
+  public void visit(VarDef node) {
+    // nothing to do here
+  }
+
+  //----------------------------------------------------------------------
+  // Visitors for statements
+
+  public void visit(ReturnStmt node) {
+    node.expr.accept(this);
+  }
+
+  public void visit(VarStmt node) {
+    String name = node.varName.lexeme;
+    declarations.computeIfAbsent(name, n -> new ArrayList<>()).add(node);
+    RValue rvalue = node.expr.isPresent() && node.expr.get() instanceof BasicExpr basic ? basic.rvalue : null;
+    if (!(rvalue instanceof NewStructRValue))
+      escaping.add(name);
+    if (!(rvalue instanceof NewArrayRValue) || loops > 0)
+      escapingArrays.add(name);
+    node.expr.ifPresent(expr -> expr.accept(this));
+  }
+
+  public void visit(AssignStmt node) {
+    // assigning the variable itself (not an element of it) replaces its struct
+    if (node.lvalue.size() == 1 && node.lvalue.getFirst().arrayExpr.isEmpty())
+      escape(node.lvalue.getFirst().varName.lexeme);
+    else
+      use(node.lvalue);
+    node.expr.accept(this);
+  }
+
+  public void visit(WhileStmt node) {
+    node.condition.accept(this);
+    ++loops;
+    visitAll(node.stmts);
+    --loops;
+  }
+
+  public void visit(ForStmt node) {
+    escape(node.varName.lexeme);
+    node.fromExpr.accept(this);
+    node.toExpr.accept(this);
+    ++loops;
+    visitAll(node.stmts);
+    --loops;
+  }
+
+  public void visit(IfStmt node) {
+    node.condition.accept(this);
+    visitAll(node.ifStmts);
+    node.elseIf.ifPresent(elseIf -> elseIf.accept(this));
+    node.elseStmts.ifPresent(this::visitAll);
+  }
+
+  //----------------------------------------------------------------------
+  // Visitors for expressions
+
+  public void visit(BasicExpr node) {
+    node.rvalue.accept(this);
+  }
+
+  public void visit(UnaryExpr node) {
+    node.expr.accept(this);
+  }
+
+  public void visit(BinaryExpr node) {
+    node.lhs.accept(this);
+    node.rhs.accept(this);
+  }
+
+  public void visit(CallRValue node) {
+    // the size of an array doesn't let it escape
+    if (node.funName.lexeme.equals("size") && node.args.getFirst() instanceof BasicExpr basic &&
+        basic.rvalue instanceof VarRValue var && var.path.size() == 1 && var.path.getFirst().arrayExpr.isEmpty()) {
+      escaping.add(var.path.getFirst().varName.lexeme);
+      return;
+    }
+    for (Expr arg : node.args)
+      arg.accept(this);
+  }
+
+  public void visit(SimpleRValue node) {
+    // nothing to do here
+  }
+
+  public void visit(NewStructRValue node) {
+    for (Expr arg : node.args)
+      arg.accept(this);
+  }
+
+  public void visit(NewArrayRValue node) {
+    node.arrayExpr.accept(this);
+  }
+
+  public void visit(VarRValue node) {
+    use(node.path);
+  }
+
+}
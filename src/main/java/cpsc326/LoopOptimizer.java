@@ -0,0 +1,188 @@
+/**
+ * CPSC 326, Spring 2025
+ * Loop-invariant code motion of generated VM code.
+ */
+
+package cpsc326;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import cpsc326.ControlFlowGraph.BasicBlock;
+import cpsc326.ValueNumberer.Entry;
+import cpsc326.ValueNumberer.Tracker;
+
+
+/**
+ * Hoists loop-invariant computations out of each loop of a frame
+ * template. A loop is found from each back edge of the control flow
+ * graph (a jump to a block dominating the jump). Its header runs
+ * every time the loop is entered, so a computation in the header can
+ * be moved to the loop's preheader (the only block entering the loop,
+ * which always continues to the header) as long as:
+ * <ul>
+ *   <li>it only uses constants and locals not stored in the loop,
+ *       with pure instructions (see ValueNumberer.isPure);
+ *   <li>it isn't just a PUSH or a LOAD; and
+ *   <li>only instructions without side effects, that can't fail or
+ *       are also hoisted, come before it in the header, so any
+ *       failure happens the same way.
+ * </ul>
+ * The computation is stored in a new local in the preheader and
+ * loaded in the header:
+ * <pre>
+ *   preheader:  ... JMP(h)       =>  ... (computation) STORE(t) JMP(h)
+ *   header:     ... (computation) ...  =>  ... LOAD(t) ...
+ * </pre>
+ * For a while or for loop, the header is the condition, so a bound
+ * like size(xs) - 1 is computed once. Running ValueNumberer afterward
+ * replaces the same computation elsewhere in the loop.
+ */
+public class LoopOptimizer {
+
+  /**
+   * Hoist loop-invariant code in each of the given VM's frame
+   * templates. This should be done before the VM is linked.
+   *
+   * @param vm the vm whose templates are optimized
+   */
+  public void optimize(VM vm) {
+    for (VMFrameTemplate template : vm.templates().values())
+      optimize(template);
+  }
+
+  /**
+   * Hoist loop-invariant code in the given frame template.
+   *
+   * @param template the template to optimize
+   */
+  public void optimize(VMFrameTemplate template) {
+    if (!ControlFlowGraph.isValid(template))
+      return;
+    ControlFlowGraph graph = new ControlFlowGraph(template);
+    // the blocks of each loop (by header)
+    Map<BasicBlock, BitSet> loops = new HashMap<>();
+    for (BasicBlock block : graph.reversePostorder())
+      for (BasicBlock successor : block.successors)
+        if (graph.dominates(successor, block))
+          loops.computeIfAbsent(successor, header -> new BitSet()).or(graph.loop(block, successor));
+    int next = graph.memorySize();
+    boolean changed = false;
+    for (BasicBlock header : graph.blocks) {
+      BitSet loop = loops.get(header);
+      BasicBlock preheader = loop == null ? null : preheader(header, loop);
+      if (preheader == null)
+        continue;
+      // replacing the last computation first keeps the indexes of the others
+      int end = preheader.instructions.size() - (preheader.endsFlow() ? 1 : 0);
+      List<Entry> invariants = invariants(header, stored(graph, loop));
+      next += invariants.size();
+      for (Entry computation : invariants.reversed()) {
+        List<VMInstr> code = header.instructions.subList(computation.start(), computation.end());
+        List<VMInstr> hoisted = new ArrayList<>();
+        for (VMInstr instr : code)
+          hoisted.add(new VMInstr(instr.opcode, instr.operand));
+        hoisted.add(VMInstr.STORE(--next));
+        preheader.instructions.addAll(end, hoisted);
+        VMInstr load = CodeRewriter.copy(VMInstr.LOAD(next), code.getLast());
+        code.clear();
+        code.add(load);
+        changed = true;
+      }
+      next += invariants.size();
+    }
+    if (changed) {
+      template.maxLocals = next;
+      graph.lower();
+    }
+  }
+
+  // helper functions
+
+  /**
+   * Get the preheader of a loop: the only block entering the loop's
+   * header from outside the loop, if it always continues to the
+   * header (or null if there isn't one).
+   */
+  private BasicBlock preheader(BasicBlock header, BitSet loop) {
+    List<BasicBlock> entering = header.predecessors.stream().filter(p -> !loop.get(p.index)).toList();
+    if (entering.size() != 1)
+      return null;
+    BasicBlock preheader = entering.getFirst();
+    VMInstr last = preheader.last();
+    if (preheader.successors.size() != 1 || (last != null && last.isJump() && last.opcode != OpCode.JMP))
+      return null;
+    return preheader;
+  }
+
+  /**
+   * Get the locals stored in a loop's blocks.
+   */
+  private BitSet stored(ControlFlowGraph graph, BitSet loop) {
+    BitSet stored = new BitSet();
+    for (BasicBlock block : graph.blocks) {
+      if (!loop.get(block.index))
+        continue;
+      for (VMInstr instr : block.instructions)
+        if (instr.opcode == OpCode.STORE || instr.opcode == OpCode.INC_LOCAL)
+          stored.set((int) instr.operand);
+    }
+    return stored;
+  }
+
+  /**
+   * Get the largest invariant computations in a loop header (in code
+   * order, not overlapping).
+   *
+   * @param header the loop header
+   * @param stored the locals stored in the loop
+   */
+  private List<Entry> invariants(BasicBlock header, BitSet stored) {
+    List<VMInstr> instrs = header.instructions;
+    List<Entry> invariants = new ArrayList<>();
+    Tracker tracker = new Tracker(Map.of());
+    for (int i = 0; i < instrs.size(); ++i) {
+      VMInstr instr = instrs.get(i);
+      tracker.step(instr, i);
+      if (!ValueNumberer.isPure(instr.opcode)) {
+        // stop at the first instruction with side effects
+        if (!isLocal(instr.opcode))
+          break;
+        continue;
+      }
+      Entry entry = tracker.peek();
+      if (entry.value() != null && entry.start() >= 0 && isInvariant(instrs.subList(entry.start(), i + 1), stored)) {
+        invariants.removeIf(inner -> inner.start() >= entry.start());
+        invariants.add(entry);
+      } else if (!ValueNumberer.cannotFail(instr.opcode))
+        // computations after a failure that isn't hoisted must stay after it
+        break;
+    }
+    return invariants;
+  }
+
+  /**
+   * Check if an instruction only uses the operand stack and memory
+   * (and can't fail).
+   */
+  private boolean isLocal(OpCode opcode) {
+    return switch (opcode) {
+      case PUSH, POP, LOAD, STORE, DUP, NOP -> true;
+      default -> false;
+    };
+  }
+
+  /**
+   * Check if a computation only uses locals not stored in the loop.
+   */
+  private boolean isInvariant(List<VMInstr> code, BitSet stored) {
+    for (VMInstr instr : code)
+      if (instr.opcode == OpCode.LOAD && stored.get((int) instr.operand))
+        return false;
+    return true;
+  }
+
+}
@@ -6,6 +6,7 @@
 package cpsc326;
 
 import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
@@ -92,18 +93,26 @@ public class MyPL {
 
   /**
    * Output the intermediate representation of the given mypl
-   * program.
+   * program. If optimizing, the representation is output both
+   * before and after optimization.
    *
-   * @param input The mypl program as an input stream
+   * @param input    The mypl program as an input stream
+   * @param optimize Whether to optimize the generated code
    */
-  private static void irMode(InputStream input) {
+  private static void irMode(InputStream input, boolean optimize) {
     try {
       Lexer lexer = new Lexer(input);
       ASTParser parser = new ASTParser(lexer);
       Program p = parser.parse();
       p.accept(new SemanticChecker());
       VM vm = new VM();
-      p.accept(new CodeGenerator(vm));
+      p.accept(new CodeGenerator(vm, optimize));
+      if (optimize) {
+        System.out.println("// before optimization");
+        System.out.println(vm);
+        optimize(vm);
+        System.out.println("// after optimization");
+      }
       System.out.println(vm);
     } catch (MyPLException e) {
       System.err.println(e.getMessage());
@@ -113,16 +122,20 @@ public class MyPL {
   /**
    * Run the given mypl program.
    *
-   * @param input The mypl program as an input stream
+   * @param input    The mypl program as an input stream
+   * @param optimize Whether to optimize the generated code
    */
-  private static void runMode(InputStream input) {
+  private static void runMode(InputStream input, boolean optimize) {
     try {
       Lexer lexer = new Lexer(input);
       ASTParser parser = new ASTParser(lexer);
       Program p = parser.parse();
       p.accept(new SemanticChecker());
       VM vm = new VM();
-      p.accept(new CodeGenerator(vm));
+      p.accept(new CodeGenerator(vm, optimize));
+      if (optimize)
+        optimize(vm);
+      vm.link();
       vm.run();
     } catch (MyPLException e) {
       System.err.println(e.getMessage());
@@ -132,9 +145,10 @@ public class MyPL {
   /**
    * Run the given mypl program in debug mode.
    *
-   * @param input The mypl program as an input stream
+   * @param input    The mypl program as an input stream
+   * @param optimize Whether to optimize the generated code
    */
-  private static void debugMode(InputStream input) {
+  private static void debugMode(InputStream input, boolean optimize) {
     try {
       Lexer lexer = new Lexer(input);
       ASTParser parser = new ASTParser(lexer);
@@ -142,13 +156,31 @@ public class MyPL {
       p.accept(new SemanticChecker());
       VM vm = new VM();
       vm.debugMode(true);
-      p.accept(new CodeGenerator(vm));
+      p.accept(new CodeGenerator(vm, optimize));
+      if (optimize)
+        optimize(vm);
+      vm.link();
       vm.run();
     } catch (MyPLException e) {
       System.err.println(e.getMessage());
     }
   }
 
+  /**
+   * Run the optimization passes over the generated code.
+   *
+   * @param vm The vm holding the generated code
+   */
+  static void optimize(VM vm) {
+    new ConstantFolder().optimize(vm);
+    new LoopOptimizer().optimize(vm);
+    new ValueNumberer().optimize(vm);
+    new PathOptimizer().optimize(vm);
+    new DeadCodeEliminator().optimize(vm);
+    new ConstantFolder().optimize(vm);
+    new PeepholeOptimizer().optimize(vm);
+  }
+
   /**
    * Parse the command line options and run the given mypl program in
    * the corresponding mode (either lex, parse, print, check, ir, or
@@ -164,6 +196,9 @@ public class MyPL {
             .choices("LEX", "PARSE", "PRINT", "CHECK", "IR", "RUN", "DEBUG")
             .setDefault("RUN")
             .help("specify execution mode");
+    cmdParser.addArgument("-O", "--optimize")
+            .action(Arguments.storeTrue())
+            .help("optimize the generated code (IR, RUN, and DEBUG modes)");
     cmdParser.addArgument("file").nargs("?").help("mypl file to execute");
     // validate the command line arguments
     Namespace ns = null;
@@ -185,8 +220,9 @@ public class MyPL {
     }
     // call corresponding execution mode
     String mode = ns.getString("mode");
+    boolean optimize = ns.getBoolean("optimize");
     if (mode == null || mode.equals("RUN"))
-      runMode(input);
+      runMode(input, optimize);
     else if (mode.equals("LEX"))
       lexMode(input);
     else if (mode.equals("PARSE"))
@@ -196,9 +232,9 @@ public class MyPL {
     else if (mode.equals("CHECK"))
       checkMode(input);
     else if (mode.equals("IR"))
-      irMode(input);
+      irMode(input, optimize);
     else if (mode.equals("DEBUG"))
-      debugMode(input);
+      debugMode(input, optimize);
   }
 
 }
@@ -26,16 +26,40 @@ public enum OpCode {
   OR,      // pop x, pop y, push (y or x)
   NOT,     // pop x, push (not x)
 
+  // type-specialized operators (emitted for checked operand types, or
+  // quickened from the generic operators at run time; each falls back
+  // to the generic operator if its operands have some other type)
+  IADD,    // pop int x, pop int y, push (y + x)
+  DADD,    // pop double x, pop double y, push (y + x)
+  SCONCAT, // pop string x, pop string y, push (y + x)
+  ISUB,    // pop int x, pop int y, push (y - x)
+  DSUB,    // pop double x, pop double y, push (y - x)
+  IMUL,    // pop int x, pop int y, push (y * x)
+  DMUL,    // pop double x, pop double y, push (y * x)
+  IDIV,    // pop int x, pop int y, push (y // x)
+  DDIV,    // pop double x, pop double y, push (y / x)
+  ICMPLT,  // pop int x, pop int y, push (y < x)
+  DCMPLT,  // pop double x, pop double y, push (y < x)
+  SCMPLT,  // pop string x, pop string y, push (y < x)
+  ICMPLE,  // pop int x, pop int y, push (y <= x)
+  DCMPLE,  // pop double x, pop double y, push (y <= x)
+  SCMPLE,  // pop string x, pop string y, push (y <= x)
+  ICMPEQ,  // pop int/bool x, pop int/bool y, push (y == x)
+  ICMPNE,  // pop int/bool x, pop int/bool y, push (y != x)
+
   // jump and branch
   JMP,     // jump to given instruction offset A
   JMPF,    // pop x, if x is False jump to instruction offset A
+  JMPT,    // pop x, if x is True jump to instruction offset A
 
   // functions
   CALL,    // call function A (pop and push arguments)
+  TAILCALL, // call function A in place of the current function (followed by a RET)
   RET,     // return from current function
 
   // built ins
   WRITE,   // pop x, print x to standard output
+  WRITELN, // pop x, print x and a newline to standard output
   READ,    // read standard input, push result onto stack
   LEN,     // pop string x, push length(x) if str, else push obj(x).length
   GETC,    // pop int x, pop string y, push y[x]
@@ -49,14 +73,29 @@ public enum OpCode {
   WAIT,    // pop x, wait for/join tid x, push return of threaded func
 
   // heap
-  ALLOCS,  // allocate struct object, push oid x
-  SETF,    // pop value x, pop oid y, set obj(y)[A] = x
-  GETF,    // pop oid x, push obj(x)[A] onto stack
-  ALLOCA,  // pop int x, allocate array object with x None values, push oid
-  SETI,    // pop value x, pop index y, pop oid z, set array obj(z)[y] = x
-  GETI,    // pop index x, pop oid y, push obj(y)[x] onto stack
+  ALLOCS,  // allocate struct object with shape A (or none), push ref x
+  SETF,    // pop value x, pop ref y, set obj(y)[A] = x
+  GETF,    // pop ref x, push obj(x)[A] onto stack
+  ALLOCA,  // pop int x, allocate array object of type A (or any) with x None values, push ref
+  SETI,    // pop value x, pop index y, pop ref z, set array obj(z)[y] = x
+  GETI,    // pop index x, pop ref y, push obj(y)[x] onto stack
+  SETI_U,  // SETI without checks (the array exists and the index is in range)
+  GETI_U,  // GETI without checks (the array exists and the index is in range)
+  ALLOCA_L,  // ALLOCA in the current call's arena (the array doesn't outlive the call)
 
   // special
   DUP,     // pop x, push x, push x
-  NOP      // do nothing
+  NOP,     // do nothing
+
+  // superinstructions (fused sequences of the instructions above)
+  INC_LOCAL,   // add 1 to the int at memory address A (LOAD A, PUSH 1, ADD, STORE A)
+  LOAD_LOAD,   // push values at memory addresses A and B (LOAD A, LOAD B)
+  LOAD_PUSH,   // push value at memory address A, push B (LOAD A, PUSH B)
+  LOAD_GETF,   // push obj(x)[B] for the ref x at memory address A (LOAD A, GETF B)
+  CMPLT_JMPF,  // pop x, pop y, if not (y < x) jump to instruction offset A
+  CMPLE_JMPF,  // pop x, pop y, if not (y <= x) jump to instruction offset A
+  CMPEQ_JMPF,  // pop x, pop y, if not (y == x) jump to instruction offset A
+  CMPNE_JMPF,  // pop x, pop y, if not (y != x) jump to instruction offset A
+  CMPLT_JMPT,  // pop x, pop y, if (y < x) jump to instruction offset A
+  CMPLE_JMPT   // pop x, pop y, if (y <= x) jump to instruction offset A
 }
@@ -0,0 +1,159 @@
+/**
+ * CPSC 326, Spring 2025
+ * Common subexpression elimination of struct and array access paths.
+ */
+
+package cpsc326;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import cpsc326.ControlFlowGraph.BasicBlock;
+import cpsc326.ValueNumberer.Entry;
+import cpsc326.ValueNumberer.Tracker;
+import cpsc326.ValueNumberer.Value;
+
+
+/**
+ * Caches access paths (like node.left.right, or xs[i].val) that are
+ * computed more than once within a basic block. The first time the
+ * path is computed, its object is also stored in a new local, and the
+ * later computations just load it:
+ * <pre>
+ *   LOAD(n) GETF(left) GETF(right) ...  =>  LOAD(n) GETF(left) GETF(right) DUP STORE(t) ...
+ *   LOAD(n) GETF(left) GETF(right)      =>  LOAD(t)
+ * </pre>
+ * A path is the same if it has the same value (see ValueNumberer), so
+ * a path is computed again after a SETF of one of its fields, a SETI
+ * (if it indexes an array), a call, or a store to a local it uses.
+ * Only the longest repeated path is cached, not the paths within it.
+ */
+public class PathOptimizer {
+
+  /**
+   * A computation of a path from start up to end in a block, and the
+   * end of the first computation of the same path (or -1 if this is
+   * the first).
+   */
+  private record Access(Value value, int start, int end, int first) {
+
+    /**
+     * Check if the access contains another.
+     */
+    boolean contains(Access other) {
+      return start <= other.start && other.end <= end && this != other;
+    }
+  }
+
+  /**
+   * An insertion of instructions at an index of a block, replacing
+   * the instructions from the index up to end.
+   */
+  private record Edit(int start, int end, List<VMInstr> instructions) {
+  }
+
+
+  /**
+   * Cache the repeated paths in each of the given VM's frame
+   * templates. This should be done before the VM is linked.
+   *
+   * @param vm the vm whose templates are optimized
+   */
+  public void optimize(VM vm) {
+    for (VMFrameTemplate template : vm.templates().values())
+      optimize(template);
+  }
+
+  /**
+   * Cache the repeated paths in the given frame template.
+   *
+   * @param template the template to optimize
+   */
+  public void optimize(VMFrameTemplate template) {
+    if (!ControlFlowGraph.isValid(template))
+      return;
+    ControlFlowGraph graph = new ControlFlowGraph(template);
+    int next = graph.memorySize();
+    int start = next;
+    for (BasicBlock block : graph.blocks)
+      next = rewrite(block, next);
+    if (next != start) {
+      template.maxLocals = next;
+      graph.lower();
+    }
+  }
+
+  // helper functions
+
+  /**
+   * Cache the repeated paths in a block.
+   *
+   * @param block the block to rewrite
+   * @param next  the next unused memory address
+   * @return the next unused memory address after the new locals
+   */
+  private int rewrite(BasicBlock block, int next) {
+    List<VMInstr> instrs = block.instructions;
+    List<Access> accesses = new ArrayList<>();
+    // the first computation of each path since it last changed
+    Map<Value, Access> firsts = new HashMap<>();
+    Tracker tracker = new Tracker(Map.of());
+    for (int i = 0; i < instrs.size(); ++i) {
+      VMInstr instr = instrs.get(i);
+      tracker.step(instr, i);
+      firsts.keySet().removeIf(changes(instr));
+      if (!ValueNumberer.isRead(instr.opcode))
+        continue;
+      Entry entry = tracker.peek();
+      if (entry.value() == null || entry.start() < 0)
+        continue;
+      Access first = firsts.get(entry.value());
+      Access access = new Access(entry.value(), entry.start(), i + 1, first == null ? -1 : first.end());
+      accesses.add(access);
+      if (first == null)
+        firsts.put(entry.value(), access);
+    }
+    // cache the longest repeated paths, in a local for each first computation
+    List<Access> repeated = accesses.stream().filter(access -> access.first() >= 0).toList();
+    List<Edit> edits = new ArrayList<>();
+    Map<Integer, Integer> cached = new HashMap<>();
+    for (Access access : repeated) {
+      if (repeated.stream().anyMatch(other -> other.contains(access)))
+        continue;
+      Integer local = cached.get(access.first());
+      if (local == null) {
+        local = next++;
+        cached.put(access.first(), local);
+        edits.add(new Edit(access.first(), access.first(), List.of(VMInstr.DUP(), VMInstr.STORE(local))));
+      }
+      VMInstr last = instrs.get(access.end() - 1);
+      edits.add(new Edit(access.start(), access.end(), List.of(CodeRewriter.copy(VMInstr.LOAD(local), last))));
+    }
+    // apply the edits from the last, replacing before inserting at the same index
+    edits.sort(Comparator.comparingInt(Edit::start).thenComparingInt(Edit::end).reversed());
+    for (Edit edit : edits) {
+      instrs.subList(edit.start(), edit.end()).clear();
+      instrs.addAll(edit.start(), edit.instructions());
+    }
+    return next;
+  }
+
+  /**
+   * Get the paths an instruction might change, i.e., that can't be
+   * loaded from a local cached before the instruction.
+   */
+  private Predicate<Value> changes(VMInstr instr) {
+    return switch (instr.opcode) {
+      case SETF -> value -> value.reads(OpCode.GETF, instr.operand);
+      case SETI, SETI_U -> Value::readsArray;
+      case CALL, TAILCALL, THREAD, WAIT -> Value::readsHeap;
+      case STORE, INC_LOCAL -> value -> value.uses((int) instr.operand);
+      default -> value -> false;
+    };
+  }
+
+}
@@ -0,0 +1,176 @@
+/**
+ * CPSC 326, Spring 2025
+ * Peephole optimization of generated VM code.
+ */
+
+package cpsc326;
+
+import java.util.List;
+import java.util.Set;
+
+import static cpsc326.CodeRewriter.*;
+
+
+/**
+ * Rewrites short instruction sequences in each frame template and
+ * fixes up jump targets afterward. Redundant sequences are first
+ * simplified:
+ * <pre>
+ *   CMPEQ NOT                    =>  CMPNE   (and the other negations)
+ *   NOT JMPF(i)                  =>  JMPT(i) (and NOT JMPT)
+ *   WRITE PUSH("\n") WRITE       =>  WRITELN
+ *   PUSH(x) POP, LOAD(x) POP,
+ *   DUP POP                      =>  (removed)
+ *   STORE(x) LOAD(x)             =>  DUP STORE(x)
+ *   JMP(i+1)                     =>  (removed)
+ * </pre>
+ * and then the most frequently executed sequences are fused into
+ * superinstructions:
+ * <pre>
+ *   LOAD(x) PUSH(1) ADD STORE(x) =>  INC_LOCAL(x)
+ *   LOAD(x) LOAD(y)              =>  LOAD_LOAD(x, y)
+ *   LOAD(x) PUSH(y)              =>  LOAD_PUSH(x, y)
+ *   LOAD(x) GETF(f)              =>  LOAD_GETF(x, f)
+ *   CMPLT JMPF(i)                =>  CMPLT_JMPF(i)   (and CMPLE, CMPEQ, CMPNE)
+ *   CMPLT JMPT(i)                =>  CMPLT_JMPT(i)   (and CMPLE)
+ *   CMPEQ JMPT(i)                =>  CMPNE_JMPF(i)   (and CMPNE)
+ * </pre>
+ * A pattern is only applied if none of its instructions (other than
+ * the first) is a jump target. Each phase is applied until no more
+ * of its patterns match.
+ */
+public class PeepholeOptimizer {
+
+  /**
+   * Optimize each of the given VM's frame templates. This should be
+   * done before the VM is linked.
+   *
+   * @param vm the vm whose templates are optimized
+   */
+  public void optimize(VM vm) {
+    for (VMFrameTemplate template : vm.templates().values())
+      optimize(template);
+  }
+
+  /**
+   * Optimize the given frame template in place.
+   *
+   * @param template the template to optimize
+   */
+  public void optimize(VMFrameTemplate template) {
+    while (rewrite(template, this::simplify))
+      ;
+    while (rewrite(template, this::fuse))
+      ;
+  }
+
+  /**
+   * The simplification patterns.
+   */
+  private Match simplify(List<VMInstr> instrs, Set<Integer> targets, int i) {
+    VMInstr instr = instrs.get(i);
+    VMInstr next = next(instrs, targets, i, 1);
+    VMInstr after = next(instrs, targets, i, 2);
+    if (next != null && next.opcode == OpCode.NOT && negation(instr.opcode) != null)
+      return new Match(2, List.of(copy(new VMInstr(negation(instr.opcode)), instr)));
+    if (next != null && instr.opcode == OpCode.NOT && (next.opcode == OpCode.JMPF || next.opcode == OpCode.JMPT)) {
+      int target = (int) next.operand;
+      return new Match(2, List.of(copy(next.opcode == OpCode.JMPF ? VMInstr.JMPT(target) : VMInstr.JMPF(target), next)));
+    }
+    if (next != null && next.opcode == OpCode.POP &&
+            (instr.opcode == OpCode.PUSH || instr.opcode == OpCode.LOAD || instr.opcode == OpCode.DUP))
+      return new Match(2, List.of());
+    if (next != null && instr.opcode == OpCode.STORE && next.opcode == OpCode.LOAD &&
+            instr.operand.equals(next.operand) && !isIncrement(instrs, targets, i + 1))
+      return new Match(2, List.of(VMInstr.DUP(), instr));
+    if (after != null && instr.opcode == OpCode.WRITE && next.opcode == OpCode.PUSH &&
+            "\n".equals(next.operand) && after.opcode == OpCode.WRITE)
+      return new Match(3, List.of(copy(VMInstr.WRITELN(), instr)));
+    if (instr.opcode == OpCode.JMP && (int) instr.operand == i + 1)
+      return new Match(1, List.of());
+    return null;
+  }
+
+  /**
+   * The superinstruction patterns.
+   */
+  private Match fuse(List<VMInstr> instrs, Set<Integer> targets, int i) {
+    VMInstr instr = instrs.get(i);
+    VMInstr next = next(instrs, targets, i, 1);
+    if (next == null)
+      return null;
+    if (instr.opcode == OpCode.LOAD) {
+      // LOAD(x) PUSH(1) ADD STORE(x), or (after simplification) with DUP STORE(x)
+      if (isIncrement(instrs, targets, i)) {
+        VMInstr store = instrs.get(i + 3);
+        if (store.opcode == OpCode.STORE)
+          return new Match(4, List.of(copy(VMInstr.INC_LOCAL((int) instr.operand), store)));
+        return new Match(5, List.of(copy(VMInstr.INC_LOCAL((int) instr.operand), instrs.get(i + 4)),
+                VMInstr.LOAD((int) instr.operand)));
+      }
+      if (next.opcode == OpCode.LOAD)
+        return new Match(2, List.of(VMInstr.LOAD_LOAD((int) instr.operand, (int) next.operand)));
+      if (next.opcode == OpCode.PUSH)
+        return new Match(2, List.of(VMInstr.LOAD_PUSH((int) instr.operand, next.operand)));
+      if (next.opcode == OpCode.GETF)
+        return new Match(2, List.of(VMInstr.LOAD_GETF((int) instr.operand, next.operand)));
+    }
+    if (next.opcode == OpCode.JMPF) {
+      VMInstr fused = switch (instr.opcode) {
+        case CMPLT, ICMPLT -> VMInstr.CMPLT_JMPF((int) next.operand);
+        case CMPLE, ICMPLE -> VMInstr.CMPLE_JMPF((int) next.operand);
+        case CMPEQ, ICMPEQ -> VMInstr.CMPEQ_JMPF((int) next.operand);
+        case CMPNE, ICMPNE -> VMInstr.CMPNE_JMPF((int) next.operand);
+        default -> null;
+      };
+      if (fused != null)
+        return new Match(2, List.of(copy(fused, next)));
+    }
+    if (next.opcode == OpCode.JMPT) {
+      VMInstr fused = switch (instr.opcode) {
+        case CMPLT, ICMPLT -> VMInstr.CMPLT_JMPT((int) next.operand);
+        case CMPLE, ICMPLE -> VMInstr.CMPLE_JMPT((int) next.operand);
+        case CMPEQ, ICMPEQ -> VMInstr.CMPNE_JMPF((int) next.operand);
+        case CMPNE, ICMPNE -> VMInstr.CMPEQ_JMPF((int) next.operand);
+        default -> null;
+      };
+      if (fused != null)
+        return new Match(2, List.of(copy(fused, next)));
+    }
+    return null;
+  }
+
+  /**
+   * Check if the instructions starting at index i increment a local:
+   * LOAD(x) PUSH(1) ADD STORE(x) or LOAD(x) PUSH(1) ADD DUP STORE(x).
+   */
+  private boolean isIncrement(List<VMInstr> instrs, Set<Integer> targets, int i) {
+    VMInstr load = instrs.get(i);
+    VMInstr push = next(instrs, targets, i, 1);
+    VMInstr add = next(instrs, targets, i, 2);
+    VMInstr store = next(instrs, targets, i, 3);
+    if (load.opcode != OpCode.LOAD || store == null || push.opcode != OpCode.PUSH ||
+            !Integer.valueOf(1).equals(push.operand) || (add.opcode != OpCode.ADD && add.opcode != OpCode.IADD))
+      return false;
+    if (store.opcode == OpCode.STORE)
+      return load.operand.equals(store.operand);
+    VMInstr dupStore = next(instrs, targets, i, 4);
+    return store.opcode == OpCode.DUP && dupStore != null && dupStore.opcode == OpCode.STORE &&
+            load.operand.equals(dupStore.operand);
+  }
+
+  /**
+   * Get the comparison that is the negation of the given one (or null
+   * if the opcode isn't an equality comparison).
+   */
+  private OpCode negation(OpCode opcode) {
+    return switch (opcode) {
+      case CMPEQ -> OpCode.CMPNE;
+      case CMPNE -> OpCode.CMPEQ;
+      case ICMPEQ -> OpCode.ICMPNE;
+      case ICMPNE -> OpCode.ICMPEQ;
+      default -> null;
+    };
+  }
+
+}
@@ -287,6 +287,7 @@ public class SemanticChecker implements Visitor {
       if (!structs.containsKey(current.type.lexeme)) error("Not a struct, cannot get fields", current.type);
       // check if parent does have var as a field
       if (!isStructField(varName, structs.get(curName))) error("Struct does not have field", var.varName);
+      var.struct = structs.get(curName);
 
       // update current
       current = new DataType();
@@ -404,6 +405,9 @@ public class SemanticChecker implements Visitor {
             && rhsType.type.tokenType != TokenType.VOID_TYPE && lhsType.type.tokenType != TokenType.VOID_TYPE) {
       error("Type across binary operator must be the same", node.binaryOp);
     }
+    // record the operand type for the code generator
+    if (lhsType.type.tokenType != TokenType.VOID_TYPE && rhsType.type.tokenType != TokenType.VOID_TYPE)
+      node.operandType = lhsType;
     if (List.of("<", "<=", ">", ">=").contains(node.binaryOp.lexeme)) {
       DataType type = new DataType();
       type.type = new Token(TokenType.BOOL_TYPE, "bool", node.binaryOp.line, node.binaryOp.column);
@@ -699,6 +703,7 @@ public class SemanticChecker implements Visitor {
       if (!structs.containsKey(current.type.lexeme)) error("Not a struct, cannot get fields", current.type);
       // check if parent does have var as a field
       if (!isStructField(varName, structs.get(curName))) error("Struct does not have field", var.varName);
+      var.struct = structs.get(curName);
 
       // update current
       current = new DataType();
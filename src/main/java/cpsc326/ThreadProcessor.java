@@ -24,8 +24,8 @@ public class ThreadProcessor {
   /* reference to main vm */
   private VM vm;
 
-  /* the operand stack */
-  private final Deque<Object> operandStack = new ArrayDeque<>();
+  /* the value stack (frame memory and operands) */
+  private final VMStack operandStack = new VMStack();
 
   /* the function (frame) call stack */
   private final Deque<VMFrame> callStack = new ArrayDeque<>();
@@ -48,6 +48,9 @@ public class ThreadProcessor {
     thread = new Thread(() -> {
       vm.process(funcName, operandStack, callStack);
       returnVal = Optional.of(operandStack.pop());
+      // the thread is kept (for its result) after it completes, so
+      // drop the references left on its stack
+      operandStack.popTo(0, operandStack.refs.length);
     });
 
     thread.start();
@@ -14,6 +14,8 @@ import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import static cpsc326.VMValue.*;
+
 /**
  * MyPL virtual machine for running MyPL programs (as VM
  * instructions).
@@ -27,17 +29,11 @@ public class VM {
     }
   };
 
-  /* the array heap as an oid to list mapping */
-  private final Map<Integer, List<Object>> arrayHeap = new ConcurrentHashMap<>();
-
-  /* the struct heap as an oid to object (field to value map) mapping */
-  private final Map<Integer, Map<String, Object>> structHeap = new ConcurrentHashMap<>();
-
   /* the threads as a tid to Thread (field to thread) mapping */
   private final Map<Integer, ThreadProcessor> threads = new ConcurrentHashMap<>();
 
-  /* the operand stack */
-  private final Deque<Object> operandStack = new ArrayDeque<>();
+  /* the value stack (frame memory and operands) */
+  private final VMStack operandStack = new VMStack();
 
   /* the function (frame) call stack */
   private final Deque<VMFrame> callStack = new ArrayDeque<>();
@@ -45,6 +41,15 @@ public class VM {
   /* the set of program function definitions (frame templates) */
   private final Map<String, VMFrameTemplate> templates = new HashMap<>();
 
+  /* the linked functions by name (null until the templates are linked) */
+  private Map<String, VMFunction> functions = null;
+
+  /* the linked functions by function index (the CALL operand) */
+  private VMFunction[] functionTable;
+
+  /* for decoding opcodes in the linked instruction streams */
+  private static final OpCode[] OPCODES = OpCode.values();
+
   /* the next unused object id */
   private final AtomicInteger nextObjectId = new AtomicInteger(2025);
 
@@ -74,9 +79,9 @@ public class VM {
    */
   private void error(String msg, VMFrame frame) {
     String s = "%s in %s at %d: %s";
-    String name = frame.template.functionName;
-    int pc = frame.pc - 1;
-    VMInstr instr = frame.template.instructions.get(pc);
+    String name = frame.function.name();
+    int pc = frame.function.instructionIndex(frame.pc - 1);
+    VMInstr instr = frame.function.template.instructions.get(pc);
     MyPLException.vmError(String.format(s, msg, name, pc, instr));
   }
 
@@ -87,6 +92,30 @@ public class VM {
    */
   public void add(VMFrameTemplate template) {
     templates.put(template.functionName, template);
+    functions = null;
+  }
+
+  /**
+   * Verify each frame template (see VMVerifier) and link it into its
+   * executable form, resolving each CALL to the index of the called
+   * function. This is done automatically (if needed) before the
+   * program is run.
+   */
+  public void link() {
+    Map<String, VMVerifier.Summary> summaries = new VMVerifier(templates).verify();
+    List<VMFrameTemplate> linkOrder = new ArrayList<>(templates.values());
+    Map<String, Integer> functionIndexes = new HashMap<>();
+    for (int i = 0; i < linkOrder.size(); ++i)
+      functionIndexes.put(linkOrder.get(i).functionName, i);
+    Map<String, VMFunction> linked = new HashMap<>();
+    VMFunction[] table = new VMFunction[linkOrder.size()];
+    for (int i = 0; i < linkOrder.size(); ++i) {
+      VMFrameTemplate template = linkOrder.get(i);
+      table[i] = new VMFunction(template, summaries.get(template.functionName), functionIndexes);
+      linked.put(table[i].name(), table[i]);
+    }
+    functionTable = table;
+    functions = linked;
   }
 
   /**
@@ -104,8 +133,9 @@ public class VM {
   public String toString() {
     String s = "";
     for (var funName : templates.keySet()) {
-      s += String.format("\nFrame '%s'\n", funName);
       VMFrameTemplate template = templates.get(funName);
+      s += String.format("\nFrame '%s'", funName);
+      s += template.numParams > 0 ? String.format(" (params: %d)\n", template.numParams) : "\n";
       for (int i = 0; i < template.instructions.size(); ++i)
         s += String.format("  %d: %s\n", i, template.instructions.get(i));
     }
@@ -115,137 +145,373 @@ public class VM {
   // Additional helpers for implementing the VM instructions
 
   /**
-   * Helper to ensure the given value isn't NULL
+   * Helper to get the tag shared by the top two stack values,
+   * ensuring neither is null and that both have the same type
    *
-   * @param x     the value to check
-   * @param frame the current stack frame
+   * @param s  the operand stack
+   * @param op the name of the operation (for error messages)
+   * @param f  the current stack frame
    */
-  private void ensureNotNull(Object x, VMFrame frame) {
-    if (x == NULL)
-      error("null value error", frame);
+  private byte operandTag(VMStack s, String op, VMFrame f) {
+    byte x = s.peekTag(0);
+    byte y = s.peekTag(1);
+    if (x == VMValue.NULL || y == VMValue.NULL)
+      error(op + " called with null operand", f);
+    else if (x != y)
+      error(op + " called with mismatched operand types", f);
+    return y;
   }
 
   /**
-   * Helper to add two objects
+   * Helper to add the top two values: pop x, pop y, push (y + x)
    */
-  private Object addHelper(Object x, Object y) {
-    if (x instanceof Integer)
-      return (int) x + (int) y;
-    else if (x instanceof Double)
-      return (double) x + (double) y;
+  private void addHelper(VMStack s, VMFrame f) {
+    byte tag = operandTag(s, "ADD", f);
+    int x = --s.sp;
+    int y = x - 1;
+    if (tag == INT)
+      s.vals[y] = (int) s.vals[y] + (int) s.vals[x];
+    else if (tag == DOUBLE)
+      s.vals[y] = bits(asDouble(s.vals[y]) + asDouble(s.vals[x]));
+    else if (tag == REF)
+      s.refs[y] = (String) s.refs[y] + (String) s.refs[x];
     else
-      return x + (String) y;
+      error("ADD called with non int/double/string operands", f);
   }
 
   /**
-   * Helper to subtract two objects
+   * Helper to subtract the top two values: pop x, pop y, push (y - x)
    */
-  private Object subHelper(Object x, Object y) {
-    if (x instanceof Integer)
-      return (int) x - (int) y;
+  private void subHelper(VMStack s, VMFrame f) {
+    byte tag = operandTag(s, "SUB", f);
+    int x = --s.sp;
+    int y = x - 1;
+    if (tag == INT)
+      s.vals[y] = (int) s.vals[y] - (int) s.vals[x];
+    else if (tag == DOUBLE)
+      s.vals[y] = bits(asDouble(s.vals[y]) - asDouble(s.vals[x]));
     else
-      return (double) x - (double) y;
+      error("SUB called with non int/double operands", f);
   }
 
   /**
-   * Helper to multiply two objects
+   * Helper to multiply the top two values: pop x, pop y, push (y * x)
    */
-  private Object mulHelper(Object x, Object y) {
-    if (x instanceof Integer)
-      return (int) x * (int) y;
+  private void mulHelper(VMStack s, VMFrame f) {
+    byte tag = operandTag(s, "MUL", f);
+    int x = --s.sp;
+    int y = x - 1;
+    if (tag == INT)
+      s.vals[y] = (int) s.vals[y] * (int) s.vals[x];
+    else if (tag == DOUBLE)
+      s.vals[y] = bits(asDouble(s.vals[y]) * asDouble(s.vals[x]));
     else
-      return (double) x * (double) y;
+      error("MUL called with non int/double operands", f);
   }
 
   /**
-   * Helper to divide two objects
+   * Helper to divide the top two values: pop x, pop y, push (y / x)
    */
-  private Object divHelper(Object x, Object y, VMFrame f) {
-    if (x instanceof Integer && (int) y != 0)
-      return (int) x / (int) y;
-    else if (x instanceof Double && (double) y != 0.0)
-      return (double) x / (double) y;
-    else
+  private void divHelper(VMStack s, VMFrame f) {
+    byte tag = operandTag(s, "DIV", f);
+    int x = --s.sp;
+    int y = x - 1;
+    if (tag == INT && (int) s.vals[x] != 0)
+      s.vals[y] = (int) s.vals[y] / (int) s.vals[x];
+    else if (tag == DOUBLE && asDouble(s.vals[x]) != 0.0)
+      s.vals[y] = bits(asDouble(s.vals[y]) / asDouble(s.vals[x]));
+    else if (tag == INT || tag == DOUBLE)
       error("division by zero error", f);
-    return null;
+    else
+      error("DIV called with non int/double operands", f);
   }
 
   /**
-   * Helper to compare if first object less than second
+   * Helper to compare the top two values: pop x, pop y, push (y < x)
+   * or (y <= x) when orEqual is true
    */
-  private Object cmpltHelper(Object x, Object y) {
-    if (x instanceof Integer)
-      return (int) x < (int) y;
-    else if (x instanceof Double)
-      return (double) x < (double) y;
+  private void cmpHelper(VMStack s, VMFrame f, boolean orEqual) {
+    byte tag = operandTag(s, orEqual ? "CMPLE" : "CMPLT", f);
+    int x = --s.sp;
+    int y = x - 1;
+    int cmp = 0;
+    if (tag == INT)
+      cmp = Integer.compare((int) s.vals[y], (int) s.vals[x]);
+    else if (tag == DOUBLE)
+      cmp = asDouble(s.vals[y]) < asDouble(s.vals[x]) ? -1 : (asDouble(s.vals[y]) == asDouble(s.vals[x]) ? 0 : 1);
+    else if (tag == REF)
+      cmp = ((String) s.refs[y]).compareTo((String) s.refs[x]);
     else
-      return ((String) x).compareTo((String) y) < 0;
+      error((orEqual ? "CMPLE" : "CMPLT") + " called with non int/double/string operands", f);
+    s.tags[y] = BOOL;
+    s.refs[y] = null;
+    s.vals[y] = (cmp < 0 || (orEqual && cmp == 0)) ? 1 : 0;
   }
 
   /**
-   * Helper to compare if first object less than or equal second
+   * Helper to check the top two values for equality: pop x, pop y,
+   * push (y == x)
    */
-  private Object cmpleHelper(Object x, Object y) {
-    if (x instanceof Integer)
-      return (int) x <= (int) y;
-    else if (x instanceof Double)
-      return (double) x <= (double) y;
-    else
-      return ((String) x).compareTo((String) y) <= 0;
+  private boolean equalHelper(VMStack s) {
+    int x = --s.sp;
+    int y = --s.sp;
+    return VMValue.equal(s.tags[y], s.vals[y], s.refs[y], s.tags[x], s.vals[x], s.refs[x]);
+  }
+
+  // quickening (in-place specialization of generic instructions)
+
+  /**
+   * Guard for a type-specialized instruction: check that the top two
+   * stack values both have the given tag.
+   */
+  private static boolean guard(VMStack s, byte tag) {
+    return s.tags[s.sp - 1] == tag && s.tags[s.sp - 2] == tag;
+  }
+
+  /**
+   * Guard for ICMPEQ and ICMPNE: check that the top two stack values
+   * can be compared by their bits alone (same tag, and not a double
+   * or a reference).
+   */
+  private static boolean equalityGuard(VMStack s) {
+    byte x = s.tags[s.sp - 1];
+    return x == s.tags[s.sp - 2] && x != DOUBLE && x != REF;
+  }
+
+  /**
+   * Rewrite a generic instruction in place as the variant specialized
+   * for the types of its (top two) operands. Nothing is rewritten if
+   * the operands have different types, are null, or there is no
+   * variant for their type. The instruction stream may be shared by
+   * several threads, but every rewrite is a single int store and every
+   * variant checks its own guard, so races only cost a re-quickening.
+   *
+   * @param s     the operand stack
+   * @param code  the instruction stream
+   * @param pc    the code offset of the instruction
+   * @param intOp the variant for int operands
+   * @param dblOp the variant for double operands
+   * @param strOp the variant for string operands (or null if none)
+   */
+  private static void quicken(VMStack s, int[] code, int pc, OpCode intOp, OpCode dblOp, OpCode strOp) {
+    byte tag = s.tags[s.sp - 1];
+    if (tag != s.tags[s.sp - 2])
+      return;
+    OpCode op = switch (tag) {
+      case INT -> intOp;
+      case DOUBLE -> dblOp;
+      case REF -> strOp;
+      default -> null;
+    };
+    if (op != null)
+      code[pc] = op.ordinal();
+  }
+
+  /**
+   * Rewrite a generic CMPEQ or CMPNE in place as the given int/bool
+   * variant if its operands are both ints or both bools.
+   */
+  private static void quickenEqual(VMStack s, int[] code, int pc, OpCode op) {
+    byte tag = s.tags[s.sp - 1];
+    if (tag == s.tags[s.sp - 2] && (tag == INT || tag == BOOL))
+      code[pc] = op.ordinal();
+  }
+
+  /**
+   * Rewrite a specialized instruction whose guard failed back to its
+   * generic form (it will be re-quickened the next time it runs).
+   *
+   * @param code    the instruction stream
+   * @param f       the current frame (just past the instruction)
+   * @param generic the generic instruction
+   */
+  private static void deoptimize(int[] code, VMFrame f, OpCode generic) {
+    code[f.pc - 1] = generic.ordinal();
+  }
+
+  /**
+   * Helper to pop two double values (checked by typeCheck) and push
+   * the result of comparing them (y < x) or (y <= x)
+   */
+  private void dblCompare(VMStack s, boolean orEqual) {
+    int x = --s.sp;
+    int y = x - 1;
+    double dx = asDouble(s.vals[x]);
+    double dy = asDouble(s.vals[y]);
+    s.tags[y] = BOOL;
+    s.vals[y] = (orEqual ? dy <= dx : dy < dx) ? 1 : 0;
+  }
+
+  /**
+   * Helper to pop two string values (checked by typeCheck) and push
+   * the result of comparing them (y < x) or (y <= x)
+   */
+  private void strCompare(VMStack s, boolean orEqual) {
+    int x = --s.sp;
+    int y = x - 1;
+    int cmp = ((String) s.refs[y]).compareTo((String) s.refs[x]);
+    s.tags[y] = BOOL;
+    s.refs[y] = null;
+    s.vals[y] = (orEqual ? cmp <= 0 : cmp < 0) ? 1 : 0;
+  }
+
+  /**
+   * Helper to pop a boolean value (ensuring it is a boolean)
+   */
+  private boolean popBool(VMStack s, String op, VMFrame f) {
+    if (s.peekTag(0) != BOOL)
+      error(op + " called on non-boolean type", f);
+    return s.popBool();
+  }
+
+  /**
+   * Helper to pop a struct reference, ensuring it isn't NULL
+   */
+  private VMStruct popStruct(VMStack s, String msg, VMFrame f) {
+    if (s.peekTag(0) == VMValue.NULL)
+      error(msg, f);
+    return (VMStruct) s.popRef();
+  }
+
+  // calls
+
+  /**
+   * Create a frame for a call to the given function. The arguments
+   * on top of the stack become the frame's first memory addresses,
+   * and the rest of its memory is reserved above them along with
+   * room for its operands.
+   *
+   * @param function the function being called
+   * @param s        the value stack
+   * @return the new frame
+   */
+  private static VMFrame enter(VMFunction function, VMStack s) {
+    VMFrame frame = new VMFrame(function, s.sp - function.numParams);
+    s.ensureCapacity(function.maxLocals - function.numParams + function.maxStack);
+    s.sp = frame.base + function.maxLocals;
+    return frame;
+  }
+
+  /**
+   * Discard a returning frame's memory, moving the values it left on
+   * the stack (normally just the return value) down in its place. The
+   * references in the rest of the slots the frame has held (see
+   * VMFrame.top) are cleared, so the objects only the frame referred to
+   * can be reclaimed. A frame without memory may consume its caller's
+   * operands instead, and then there is nothing to move.
+   *
+   * @param frame the returning frame
+   * @param s     the value stack
+   */
+  private static void leave(VMFrame frame, VMStack s) {
+    int operands = frame.base + frame.function.maxLocals;
+    int n = s.sp - operands;
+    if (n < 0)
+      return;
+    s.moveDown(operands, frame.base, n);
+    s.popTo(frame.base + n, frame.top);
+  }
+
+  /**
+   * Reuse a frame for a tail call to the given function, moving the
+   * arguments on top of the stack down over the frame's memory. The
+   * frame's operand stack must hold only the arguments.
+   *
+   * @param frame    the frame to reuse
+   * @param function the function being called
+   * @param s        the value stack
+   */
+  private static void reenter(VMFrame frame, VMFunction function, VMStack s) {
+    s.moveDown(s.sp - function.numParams, frame.base, function.numParams);
+    s.sp = frame.base + function.numParams;
+    s.ensureCapacity(function.maxLocals - function.numParams + function.maxStack);
+    s.sp = frame.base + function.maxLocals;
+    frame.function = function;
+    frame.pc = function.entry;
+    frame.top = Math.max(frame.top, frame.base + function.maxLocals + function.maxStack);
   }
 
   // the main run method
 
+  /**
+   * Get the program's frame templates (by function name). The VM must
+   * be (re)linked if the templates are modified.
+   */
+  public Map<String, VMFrameTemplate> templates() {
+    return templates;
+  }
+
+  /**
+   * Get the linked function with the given name (or null if the
+   * program has not been linked or there is no such function).
+   */
+  VMFunction function(String name) {
+    return functions == null ? null : functions.get(name);
+  }
+
   /**
    * Execute the program
    */
   public void run() {
+    if (functions == null)
+      link();
     process("main", operandStack, callStack);
   }
 
-  public void process(String startingFunc, Deque<Object> operandStack, Deque<VMFrame> callStack) {
+  /**
+   * Execute the given function until it returns.
+   *
+   * @param startingFunc the name of the function to execute
+   * @param operandStack the operand stack to execute with
+   * @param callStack    the call stack to execute with
+   */
+  public void process(String startingFunc, VMStack operandStack, Deque<VMFrame> callStack) {
     // grab the main frame and "instantiate" it
-    if (!templates.containsKey(startingFunc))
+    if (!functions.containsKey(startingFunc))
       error("No " + startingFunc + " function");
-    VMFrame frame = new VMFrame(templates.get(startingFunc));
+    VMFunction function = functions.get(startingFunc);
+    if (operandStack.sp < function.numParams + function.stackArgs)
+      error("Missing arguments for " + startingFunc + " function");
+    VMFrame frame = enter(function, operandStack);
     callStack.push(frame);
+    int[] code = function.code;
+    VMArena arena = new VMArena();
 
     // run loop until out of call frames or instructions in the frame
-    while (!callStack.isEmpty() && frame.pc < frame.template.instructions.size()) {
+    while (!callStack.isEmpty() && frame.pc < code.length) {
       // get the next instruction
-      VMInstr instr = frame.template.instructions.get(frame.pc);
+      OpCode opcode = OPCODES[code[frame.pc]];
 
       // for debugging:
       if (debug) {
+        int index = frame.function.instructionIndex(frame.pc);
         System.out.println();
-        System.out.println("\t FRAME.........: " + frame.template.functionName);
-        System.out.println("\t PC............: " + frame.pc);
-        System.out.println("\t INSTRUCTION...: " + instr);
-        Object val = operandStack.isEmpty() ? null : operandStack.peek();
+        System.out.println("\t FRAME.........: " + frame.function.name());
+        System.out.println("\t PC............: " + index);
+        System.out.println("\t INSTRUCTION...: " + frame.function.template.get(index));
+        Object val = operandStack.sp > frame.base + function.maxLocals ? operandStack.peek() : null;
         System.out.println("\t NEXT OPERAND..: " + val);
       }
 
       // increment the pc
       ++frame.pc;
 
-      switch (instr.opcode) {
+      switch (opcode) {
         //----------------------------------------------------------------------
         // Literals and Variables
         //----------------------------------------------------------------------
 
         // push operand A
-        case PUSH -> operandStack.push(instr.operand);
+        case PUSH -> {
+          int index = code[frame.pc++];
+          operandStack.push(function.constantTags[index], function.constantBits[index], function.constants[index]);
+        }
         // pop x
-        case POP -> operandStack.pop();
+        case POP -> operandStack.drop();
         // push value at memory address (operand) A
-        case LOAD -> operandStack.push(frame.memory.get((int) instr.operand));
+        case LOAD -> frame.load(code[frame.pc++], operandStack);
         // pop x, store x at memory address (operand) A
-        case STORE -> {
-          Object val = operandStack.pop();
-          if (frame.memory.size() <= (int) instr.operand) frame.memory.add(VM.NULL);
-          if (frame.memory.size() <= (int) instr.operand) error("Invalid store index", frame);
-          frame.memory.set((int) instr.operand, val);
-        }
+        case STORE -> frame.store(code[frame.pc++], operandStack);
 
         //----------------------------------------------------------------------
         // arithmetic, relational, and logical operators
@@ -253,103 +519,231 @@ public class VM {
 
         // pop x, pop y, push (y + x)
         case ADD -> {
-          Object x = operandStack.pop();
-          Object y = operandStack.pop();
-          if ((x.equals(VM.NULL) || y.equals(VM.NULL))) {
-            error("ADD called with null operand", frame);
-          } else {
-            operandStack.push(addHelper(y, x));
-          }
+          quicken(operandStack, code, frame.pc - 1, OpCode.IADD, OpCode.DADD, OpCode.SCONCAT);
+          addHelper(operandStack, frame);
         }
         // pop x, pop y, push (y - x)
         case SUB -> {
-          Object x = operandStack.pop();
-          Object y = operandStack.pop();
-          if ((x.equals(VM.NULL) || y.equals(VM.NULL))) {
-            error("SUB called with null operand", frame);
-          } else {
-            operandStack.push(subHelper(y, x));
-          }
+          quicken(operandStack, code, frame.pc - 1, OpCode.ISUB, OpCode.DSUB, null);
+          subHelper(operandStack, frame);
         }
         // pop x, pop y, push (y * x)
         case MUL -> {
-          Object x = operandStack.pop();
-          Object y = operandStack.pop();
-          if ((x.equals(VM.NULL) || y.equals(VM.NULL))) {
-            error("MUL called with null operand", frame);
-          } else {
-            operandStack.push(mulHelper(y, x));
-          }
+          quicken(operandStack, code, frame.pc - 1, OpCode.IMUL, OpCode.DMUL, null);
+          mulHelper(operandStack, frame);
         }
         // pop x, pop y, push (y // x) or (y / x)
         case DIV -> {
-          Object x = operandStack.pop();
-          Object y = operandStack.pop();
-          if ((x.equals(VM.NULL) || y.equals(VM.NULL))) {
-            error("DIV called with null operand", frame);
-          } else {
-            operandStack.push(divHelper(y, x, frame));
-          }
+          quicken(operandStack, code, frame.pc - 1, OpCode.IDIV, OpCode.DDIV, null);
+          divHelper(operandStack, frame);
         }
         // pop x, pop y, push (y < x)
         case CMPLT -> {
-          Object x = operandStack.pop();
-          Object y = operandStack.pop();
-          if ((x.equals(VM.NULL) || y.equals(VM.NULL))) {
-            error("CMPLT called with null operand", frame);
-          } else {
-            operandStack.push(cmpltHelper(y, x));
-          }
+          quicken(operandStack, code, frame.pc - 1, OpCode.ICMPLT, OpCode.DCMPLT, OpCode.SCMPLT);
+          cmpHelper(operandStack, frame, false);
         }
         // pop x, pop y, push (y <= x)
         case CMPLE -> {
-          Object x = operandStack.pop();
-          Object y = operandStack.pop();
-          if ((x.equals(VM.NULL) || y.equals(VM.NULL))) {
-            error("CMPLE called with null operand", frame);
-          } else {
-            operandStack.push(cmpleHelper(y, x));
-          }
+          quicken(operandStack, code, frame.pc - 1, OpCode.ICMPLE, OpCode.DCMPLE, OpCode.SCMPLE);
+          cmpHelper(operandStack, frame, true);
         }
         // pop x, pop y, push (y == x)
         case CMPEQ -> {
-          Object x = operandStack.pop();
-          Object y = operandStack.pop();
-          operandStack.push(x.equals(y));
+          quickenEqual(operandStack, code, frame.pc - 1, OpCode.ICMPEQ);
+          operandStack.pushBool(equalHelper(operandStack));
         }
         // pop x, pop y, push (y != x)
         case CMPNE -> {
-          Object x = operandStack.pop();
-          Object y = operandStack.pop();
-          operandStack.push(!x.equals(y));
+          quickenEqual(operandStack, code, frame.pc - 1, OpCode.ICMPNE);
+          operandStack.pushBool(!equalHelper(operandStack));
         }
         // pop x, pop y, push (y and x)
         case AND -> {
-          Object x = operandStack.pop();
-          Object y = operandStack.pop();
-          if (x instanceof Boolean && y instanceof Boolean) {
-            operandStack.push((Boolean) x && (Boolean) y);
-          } else {
-            error("AND called on non-boolean types", frame);
-          }
+          boolean x = popBool(operandStack, "AND", frame);
+          boolean y = popBool(operandStack, "AND", frame);
+          operandStack.pushBool(y && x);
         }
         // pop x, pop y, push (y or x)
         case OR -> {
-          Object x = operandStack.pop();
-          Object y = operandStack.pop();
-          if (x instanceof Boolean && y instanceof Boolean) {
-            operandStack.push((Boolean) x || (Boolean) y);
+          boolean x = popBool(operandStack, "OR", frame);
+          boolean y = popBool(operandStack, "OR", frame);
+          operandStack.pushBool(y || x);
+        }
+        // pop x, push (not x)
+        case NOT -> operandStack.pushBool(!popBool(operandStack, "NOT", frame));
+
+        //----------------------------------------------------------------------
+        // type-specialized operators
+        //----------------------------------------------------------------------
+
+        // pop int x, pop int y, push (y + x)
+        case IADD -> {
+          if (guard(operandStack, INT)) {
+            int x = --operandStack.sp;
+            operandStack.vals[x - 1] = (int) operandStack.vals[x - 1] + (int) operandStack.vals[x];
           } else {
-            error("OR called on non-boolean types", frame);
+            deoptimize(code, frame, OpCode.ADD);
+            addHelper(operandStack, frame);
           }
         }
-        // pop x, push (not x)
-        case NOT -> {
-          Object x = operandStack.pop();
-          if (x instanceof Boolean) {
-            operandStack.push(!(Boolean) x);
+        // pop double x, pop double y, push (y + x)
+        case DADD -> {
+          if (guard(operandStack, DOUBLE)) {
+            int x = --operandStack.sp;
+            operandStack.vals[x - 1] = bits(asDouble(operandStack.vals[x - 1]) + asDouble(operandStack.vals[x]));
+          } else {
+            deoptimize(code, frame, OpCode.ADD);
+            addHelper(operandStack, frame);
+          }
+        }
+        // pop string x, pop string y, push (y + x)
+        case SCONCAT -> {
+          if (guard(operandStack, REF)) {
+            int x = --operandStack.sp;
+            operandStack.refs[x - 1] = (String) operandStack.refs[x - 1] + (String) operandStack.refs[x];
+          } else {
+            deoptimize(code, frame, OpCode.ADD);
+            addHelper(operandStack, frame);
+          }
+        }
+        // pop int x, pop int y, push (y - x)
+        case ISUB -> {
+          if (guard(operandStack, INT)) {
+            int x = --operandStack.sp;
+            operandStack.vals[x - 1] = (int) operandStack.vals[x - 1] - (int) operandStack.vals[x];
+          } else {
+            deoptimize(code, frame, OpCode.SUB);
+            subHelper(operandStack, frame);
+          }
+        }
+        // pop double x, pop double y, push (y - x)
+        case DSUB -> {
+          if (guard(operandStack, DOUBLE)) {
+            int x = --operandStack.sp;
+            operandStack.vals[x - 1] = bits(asDouble(operandStack.vals[x - 1]) - asDouble(operandStack.vals[x]));
+          } else {
+            deoptimize(code, frame, OpCode.SUB);
+            subHelper(operandStack, frame);
+          }
+        }
+        // pop int x, pop int y, push (y * x)
+        case IMUL -> {
+          if (guard(operandStack, INT)) {
+            int x = --operandStack.sp;
+            operandStack.vals[x - 1] = (int) operandStack.vals[x - 1] * (int) operandStack.vals[x];
+          } else {
+            deoptimize(code, frame, OpCode.MUL);
+            mulHelper(operandStack, frame);
+          }
+        }
+        // pop double x, pop double y, push (y * x)
+        case DMUL -> {
+          if (guard(operandStack, DOUBLE)) {
+            int x = --operandStack.sp;
+            operandStack.vals[x - 1] = bits(asDouble(operandStack.vals[x - 1]) * asDouble(operandStack.vals[x]));
+          } else {
+            deoptimize(code, frame, OpCode.MUL);
+            mulHelper(operandStack, frame);
+          }
+        }
+        // pop int x, pop int y, push (y // x)
+        case IDIV -> {
+          if (guard(operandStack, INT) && (int) operandStack.vals[operandStack.sp - 1] != 0) {
+            int x = --operandStack.sp;
+            operandStack.vals[x - 1] = (int) operandStack.vals[x - 1] / (int) operandStack.vals[x];
+          } else {
+            deoptimize(code, frame, OpCode.DIV);
+            divHelper(operandStack, frame);
+          }
+        }
+        // pop double x, pop double y, push (y / x)
+        case DDIV -> {
+          if (guard(operandStack, DOUBLE) && asDouble(operandStack.vals[operandStack.sp - 1]) != 0.0) {
+            int x = --operandStack.sp;
+            operandStack.vals[x - 1] = bits(asDouble(operandStack.vals[x - 1]) / asDouble(operandStack.vals[x]));
+          } else {
+            deoptimize(code, frame, OpCode.DIV);
+            divHelper(operandStack, frame);
+          }
+        }
+        // pop int x, pop int y, push (y < x)
+        case ICMPLT -> {
+          if (guard(operandStack, INT)) {
+            int x = --operandStack.sp;
+            operandStack.tags[x - 1] = BOOL;
+            operandStack.vals[x - 1] = (int) operandStack.vals[x - 1] < (int) operandStack.vals[x] ? 1 : 0;
+          } else {
+            deoptimize(code, frame, OpCode.CMPLT);
+            cmpHelper(operandStack, frame, false);
+          }
+        }
+        // pop double x, pop double y, push (y < x)
+        case DCMPLT -> {
+          if (guard(operandStack, DOUBLE)) {
+            dblCompare(operandStack, false);
+          } else {
+            deoptimize(code, frame, OpCode.CMPLT);
+            cmpHelper(operandStack, frame, false);
+          }
+        }
+        // pop string x, pop string y, push (y < x)
+        case SCMPLT -> {
+          if (guard(operandStack, REF)) {
+            strCompare(operandStack, false);
+          } else {
+            deoptimize(code, frame, OpCode.CMPLT);
+            cmpHelper(operandStack, frame, false);
+          }
+        }
+        // pop int x, pop int y, push (y <= x)
+        case ICMPLE -> {
+          if (guard(operandStack, INT)) {
+            int x = --operandStack.sp;
+            operandStack.tags[x - 1] = BOOL;
+            operandStack.vals[x - 1] = (int) operandStack.vals[x - 1] <= (int) operandStack.vals[x] ? 1 : 0;
+          } else {
+            deoptimize(code, frame, OpCode.CMPLE);
+            cmpHelper(operandStack, frame, true);
+          }
+        }
+        // pop double x, pop double y, push (y <= x)
+        case DCMPLE -> {
+          if (guard(operandStack, DOUBLE)) {
+            dblCompare(operandStack, true);
+          } else {
+            deoptimize(code, frame, OpCode.CMPLE);
+            cmpHelper(operandStack, frame, true);
+          }
+        }
+        // pop string x, pop string y, push (y <= x)
+        case SCMPLE -> {
+          if (guard(operandStack, REF)) {
+            strCompare(operandStack, true);
+          } else {
+            deoptimize(code, frame, OpCode.CMPLE);
+            cmpHelper(operandStack, frame, true);
+          }
+        }
+        // pop int/bool x, pop int/bool y, push (y == x)
+        case ICMPEQ -> {
+          if (equalityGuard(operandStack)) {
+            int x = --operandStack.sp;
+            int y = --operandStack.sp;
+            operandStack.pushBool(operandStack.tags[x] == VMValue.NULL || operandStack.vals[x] == operandStack.vals[y]);
           } else {
-            error("NOT called on non-boolean type", frame);
+            deoptimize(code, frame, OpCode.CMPEQ);
+            operandStack.pushBool(equalHelper(operandStack));
+          }
+        }
+        // pop int/bool x, pop int/bool y, push (y != x)
+        case ICMPNE -> {
+          if (equalityGuard(operandStack)) {
+            int x = --operandStack.sp;
+            int y = --operandStack.sp;
+            operandStack.pushBool(!(operandStack.tags[x] == VMValue.NULL || operandStack.vals[x] == operandStack.vals[y]));
+          } else {
+            deoptimize(code, frame, OpCode.CMPNE);
+            operandStack.pushBool(!equalHelper(operandStack));
           }
         }
 
@@ -358,12 +752,21 @@ public class VM {
         //----------------------------------------------------------------------
 
         // jump to given instruction offset A
-        case JMP -> frame.pc = (int) instr.operand;
+        case JMP -> frame.pc = code[frame.pc];
         // pop x, if x is False jump to instruction offset A
         case JMPF -> {
-          Object x = operandStack.pop();
-          if (!(Boolean) x) {
-            frame.pc = (int) instr.operand;
+          if (!popBool(operandStack, "JMPF", frame)) {
+            frame.pc = code[frame.pc];
+          } else {
+            ++frame.pc;
+          }
+        }
+        // pop x, if x is True jump to instruction offset A
+        case JMPT -> {
+          if (popBool(operandStack, "JMPT", frame)) {
+            frame.pc = code[frame.pc];
+          } else {
+            ++frame.pc;
           }
         }
 
@@ -373,14 +776,42 @@ public class VM {
 
         // call function A (pop and push arguments)
         case CALL -> {
-          VMFrame callFrame = new VMFrame(templates.get((String) instr.operand));
-          frame = callFrame;
-          callStack.push(callFrame);
+          function = functionTable[code[frame.pc++]];
+          frame = enter(function, operandStack);
+          callStack.push(frame);
+          code = function.code;
+        }
+        // call function A in place of the current function
+        case TAILCALL -> {
+          VMFunction callee = functionTable[code[frame.pc++]];
+          if (callee.stackArgs == 0 && function.stackArgs == 0 &&
+              operandStack.sp - callee.numParams == frame.base + function.maxLocals) {
+            // nothing else is left to return, so the frame can be reused
+            // (and its arrays released)
+            if (frame.arena >= 0) {
+              arena.release(frame.arena);
+              frame.arena = -1;
+            }
+            reenter(frame, callee, operandStack);
+          } else {
+            // the following RET returns the other values too
+            frame = enter(callee, operandStack);
+            callStack.push(frame);
+          }
+          function = callee;
+          code = function.code;
         }
         // return from current function
         case RET -> {
+          if (frame.arena >= 0)
+            arena.release(frame.arena);
+          leave(frame, operandStack);
           callStack.pop();
           frame = callStack.peek();
+          if (frame != null) {
+            function = frame.function;
+            code = function.code;
+          }
         }
 
         //----------------------------------------------------------------------
@@ -388,7 +819,15 @@ public class VM {
         //----------------------------------------------------------------------
 
         // pop x, print x to standard output
-        case WRITE -> System.out.print(operandStack.pop());
+        case WRITE -> {
+          int x = --operandStack.sp;
+          System.out.print(VMValue.toString(operandStack.tags[x], operandStack.vals[x], operandStack.refs[x]));
+        }
+        // pop x, print x and a newline to standard output
+        case WRITELN -> {
+          int x = --operandStack.sp;
+          System.out.print(VMValue.toString(operandStack.tags[x], operandStack.vals[x], operandStack.refs[x]) + "\n");
+        }
         // read standard input, push result onto stack
         case READ -> {
           BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
@@ -401,53 +840,55 @@ public class VM {
         }
         // pop string x, push length(x) if str, else push obj(x).length
         case LEN -> {
-          Object x = operandStack.pop();
-          if (x.equals(VM.NULL)) error("LEN called with null argument", frame);
-          if (x instanceof String) {
-            operandStack.push(((String) x).length());
+          byte tag = operandStack.peekTag(0);
+          if (tag == VMValue.NULL) error("LEN called with null argument", frame);
+          if (operandStack.refs[operandStack.sp - 1] instanceof String) {
+            operandStack.pushInt(((String) operandStack.popRef()).length());
           } else {
-            operandStack.push(arrayHeap.get((int) x).size());
+            operandStack.pushInt(((VMArray) operandStack.popRef()).size());
           }
         }
         // pop int x, pop string y, push y[x]
         case GETC -> {
-          Object x = operandStack.pop();
-          Object y = operandStack.pop();
-          if (y.equals(VM.NULL) || x.equals(VM.NULL)) error("GETC called with null argument", frame);
-          if ((int) x < 0 || (int) x >= ((String) y).length()) error("GETC called with oob index", frame);
-          operandStack.push(Character.toString(((String) y).charAt((int) x)));
+          if (operandStack.peekTag(0) == VMValue.NULL || operandStack.peekTag(1) == VMValue.NULL)
+            error("GETC called with null argument", frame);
+          int x = operandStack.popInt();
+          String y = (String) operandStack.popRef();
+          if (x < 0 || x >= y.length()) error("GETC called with oob index", frame);
+          operandStack.pushRef(Character.toString(y.charAt(x)));
         }
         // pop x, push int(x)
         case TOINT -> {
-          Object x = operandStack.pop();
-          if (x.equals(VM.NULL)) error("TOINT called with null argument", frame);
-          if (x instanceof String) {
+          byte tag = operandStack.peekTag(0);
+          if (tag == VMValue.NULL) error("TOINT called with null argument", frame);
+          if (tag == REF) {
             try {
-              operandStack.push(Integer.parseInt((String) x));
+              operandStack.pushInt(Integer.parseInt((String) operandStack.popRef()));
             } catch (Exception e) {
               error("TOINT called on bad string");
             }
-          } else if (x instanceof Double) operandStack.push(((Double) x).intValue());
+          } else if (tag == DOUBLE) operandStack.pushInt((int) operandStack.popDouble());
           else error("TOINT called with non String/Double type", frame);
         }
         // pop x, push double(x)
         case TODBL -> {
-          Object x = operandStack.pop();
-          if (x.equals(VM.NULL)) error("TODBL called with null argument", frame);
-          if (x instanceof String) {
+          byte tag = operandStack.peekTag(0);
+          if (tag == VMValue.NULL) error("TODBL called with null argument", frame);
+          if (tag == REF) {
             try {
-              operandStack.push(Double.parseDouble((String) x));
+              operandStack.pushDouble(Double.parseDouble((String) operandStack.popRef()));
             } catch (Exception e) {
               error("TODBL called on bad string");
             }
-          } else if (x instanceof Integer) operandStack.push(((Integer) x).doubleValue());
+          } else if (tag == INT) operandStack.pushDouble(operandStack.popInt());
           else error("TODBL called with non String/Integer type", frame);
         }
         // pop x, push str(x)
         case TOSTR -> {
-          Object x = operandStack.pop();
-          if (x.equals(VM.NULL)) error("TOSTR called with null argument", frame);
-          if (x instanceof Double || x instanceof Integer) operandStack.push(String.valueOf(x));
+          byte tag = operandStack.peekTag(0);
+          if (tag == VMValue.NULL) error("TOSTR called with null argument", frame);
+          if (tag == INT) operandStack.pushRef(String.valueOf(operandStack.popInt()));
+          else if (tag == DOUBLE) operandStack.pushRef(String.valueOf(operandStack.popDouble()));
           else error("TOSTR called with non Double/Integer type", frame);
         }
 
@@ -457,15 +898,14 @@ public class VM {
 
         // pop x function, pop y arguments similar to call, starts a new thread of function x - pushes arguments y onto the new op stack
         case THREAD -> {
-          ThreadProcessor thread = new ThreadProcessor(nextThreadId.get(), this, (String) operandStack.pop(), operandStack.pop());
+          ThreadProcessor thread = new ThreadProcessor(nextThreadId.get(), this, (String) operandStack.popRef(), operandStack.pop());
           threads.put(nextThreadId.get(), thread);
-          operandStack.push(nextThreadId.getAndIncrement());
+          operandStack.pushInt(nextThreadId.getAndIncrement());
         }
         // pop x, wait for/join tid x, push return of threaded func
         case WAIT -> {
-          Object x = operandStack.pop();
-          if (x.equals(VM.NULL)) error("WAIT called with null operand", frame);
-          Integer tid = (Integer) x;
+          if (operandStack.peekTag(0) == VMValue.NULL) error("WAIT called with null operand", frame);
+          int tid = operandStack.popInt();
           if (!threads.containsKey(tid)) error("WAIT called on non-existent thread", frame);
           ThreadProcessor threadProcessor = threads.get(tid);
           try {
@@ -481,57 +921,73 @@ public class VM {
         // heap
         //----------------------------------------------------------------------
 
-        // allocate struct object, push oid x
+        // allocate struct object with shape A, push ref x
         case ALLOCS -> {
-          structHeap.put(nextObjectId.get(), new HashMap<>());
-          operandStack.push(nextObjectId.getAndIncrement());
+          VMShape shape = (VMShape) function.constants[code[frame.pc++]];
+          operandStack.pushRef(new VMStruct(nextObjectId.getAndIncrement(), shape));
         }
-        // pop value x, pop oid y, set obj(y)[A] = x
+        // pop value x, pop ref y, set obj(y)[A] = x
         case SETF -> {
+          Object field = function.constants[code[frame.pc++]];
           Object x = operandStack.pop();
-          Object y = operandStack.pop();
-          if (y.equals(VM.NULL)) error("SETF called with null OID", frame);
-          structHeap.get((Integer) y).put((String) instr.operand, x);
+          popStruct(operandStack, "SETF called with null OID", frame).set(field, x);
         }
-        // pop oid x, push obj(x)[A] onto stack
+        // pop ref x, push obj(x)[A] onto stack
         case GETF -> {
-          Object x = operandStack.pop();
-          if (x.equals(VM.NULL)) error("GETF called with null OID", frame);
-          operandStack.push(structHeap.get((Integer) x).get((String) instr.operand));
+          Object field = function.constants[code[frame.pc++]];
+          operandStack.push(popStruct(operandStack, "GETF called with null OID", frame).get(field));
         }
-        // pop int x, allocate array object with x None values, push oid
+        // pop int x, allocate array object with x None values (of the
+        // element type given by the operand), push ref
         case ALLOCA -> {
-          Object x = operandStack.pop();
-          List<Object> array = new ArrayList<>();
-          if (x.equals(VM.NULL) || (int) x < 0) error("ALLOCA called with bad length ( < 0 or null)", frame);
-          for (int i = 0; i < (Integer) x; i++) {
-            array.add(VM.NULL);
-          }
-          arrayHeap.put(nextObjectId.get(), array);
-          operandStack.push(nextObjectId.getAndIncrement());
+          if (operandStack.peekTag(0) == VMValue.NULL || (int) operandStack.vals[operandStack.sp - 1] < 0)
+            error("ALLOCA called with bad length ( < 0 or null)", frame);
+          int x = operandStack.popInt();
+          operandStack.pushRef(VMArray.of(nextObjectId.getAndIncrement(), (String) function.constants[code[frame.pc++]], x));
         }
-        // pop value x, pop index y, pop oid z, set array obj(z)[y] = x
+        // pop value x, pop index y, pop ref z, set array obj(z)[y] = x
         case SETI -> {
-          Object x = operandStack.pop();
-          Object y = operandStack.pop();
-          Object z = operandStack.pop();
-          if (z.equals(VM.NULL) || !arrayHeap.containsKey((int) z))
+          int sp = operandStack.sp;
+          byte yTag = operandStack.tags[sp - 2];
+          int y = (int) operandStack.vals[sp - 2];
+          if (!(operandStack.refs[sp - 3] instanceof VMArray))
             error("SETI called on non-existent or null array", frame);
-          var array = arrayHeap.get((int) z);
-          if (y.equals(VM.NULL) || (int) y >= array.size() || (int) y < 0)
+          VMArray array = (VMArray) operandStack.refs[sp - 3];
+          if (yTag == VMValue.NULL || y >= array.size() || y < 0)
             error("SETI called with out of bounds or null index", frame);
-          array.set((int) y, x);
+          array.pop(y, operandStack);
+          operandStack.sp -= 2;
         }
-        // pop index x, pop oid y, push obj(y)[x] onto stack
+        // pop index x, pop ref y, push obj(y)[x] onto stack
         case GETI -> {
-          Object x = operandStack.pop();
-          Object y = operandStack.pop();
-          if (y.equals(VM.NULL) || !arrayHeap.containsKey((int) y))
+          byte xTag = operandStack.peekTag(0);
+          int x = operandStack.popInt();
+          if (!(operandStack.refs[operandStack.sp - 1] instanceof VMArray))
             error("GETI called on non-existent or null array", frame);
-          var array = arrayHeap.get((int) y);
-          if (x.equals(VM.NULL) || (int) x >= array.size() || (int) x < 0)
+          VMArray array = (VMArray) operandStack.popRef();
+          if (xTag == VMValue.NULL || x >= array.size() || x < 0)
             error("GETI called with out of bounds index", frame);
-          operandStack.push(array.get((int) x));
+          array.push(x, operandStack);
+        }
+        // SETI, for an array and index known to be valid
+        case SETI_U -> {
+          int sp = operandStack.sp;
+          ((VMArray) operandStack.refs[sp - 3]).pop((int) operandStack.vals[sp - 2], operandStack);
+          operandStack.sp -= 2;
+        }
+        // GETI, for an array and index known to be valid
+        case GETI_U -> {
+          int x = operandStack.popInt();
+          ((VMArray) operandStack.popRef()).push(x, operandStack);
+        }
+        // ALLOCA, for an array released when the current call returns
+        case ALLOCA_L -> {
+          if (operandStack.peekTag(0) == VMValue.NULL || (int) operandStack.vals[operandStack.sp - 1] < 0)
+            error("ALLOCA called with bad length ( < 0 or null)", frame);
+          int x = operandStack.popInt();
+          if (frame.arena < 0)
+            frame.arena = arena.mark();
+          operandStack.pushRef(arena.allocate((String) function.constants[code[frame.pc++]], x, nextObjectId));
         }
 
         //----------------------------------------------------------------------
@@ -539,34 +995,101 @@ public class VM {
         //----------------------------------------------------------------------
 
         // pop x, push x, push x
-        case DUP -> {
-          Object val = operandStack.pop();
-          operandStack.push(val);
-          operandStack.push(val);
-        }
+        case DUP -> operandStack.dup();
         // do nothing
         case NOP -> {
         }
 
-        default -> error("Unsupported operation: " + instr);
+        //----------------------------------------------------------------------
+        // superinstructions
+        //----------------------------------------------------------------------
+
+        // add 1 to the int at memory address A
+        case INC_LOCAL -> {
+          int address = code[frame.pc++];
+          int slot = frame.base + address;
+          if (operandStack.tags[slot] != INT)
+            error(operandStack.tags[slot] == VMValue.NULL ? "ADD called with null operand"
+                    : "ADD called with mismatched operand types", frame);
+          operandStack.vals[slot] = (int) operandStack.vals[slot] + 1;
+        }
+        // push values at memory addresses A and B
+        case LOAD_LOAD -> {
+          int address1 = code[frame.pc++];
+          int address2 = code[frame.pc++];
+          frame.load(address1, operandStack);
+          frame.load(address2, operandStack);
+        }
+        // push value at memory address A, push B
+        case LOAD_PUSH -> {
+          int address = code[frame.pc++];
+          int index = code[frame.pc++];
+          frame.load(address, operandStack);
+          operandStack.push(function.constantTags[index], function.constantBits[index], function.constants[index]);
+        }
+        // push obj(x)[B] for the ref x at memory address A
+        case LOAD_GETF -> {
+          int address = code[frame.pc++];
+          Object field = function.constants[code[frame.pc++]];
+          int slot = frame.base + address;
+          if (operandStack.tags[slot] == VMValue.NULL) error("GETF called with null OID", frame);
+          operandStack.push(((VMStruct) operandStack.refs[slot]).get(field));
+        }
+        // pop x, pop y, if not (y < x) jump to instruction offset A
+        case CMPLT_JMPF -> {
+          boolean result;
+          if (guard(operandStack, INT)) {
+            int x = operandStack.sp -= 2;
+            result = (int) operandStack.vals[x] < (int) operandStack.vals[x + 1];
+          } else {
+            cmpHelper(operandStack, frame, false);
+            result = operandStack.popBool();
+          }
+          frame.pc = result ? frame.pc + 1 : code[frame.pc];
+        }
+        // pop x, pop y, if not (y <= x) jump to instruction offset A
+        case CMPLE_JMPF -> {
+          boolean result;
+          if (guard(operandStack, INT)) {
+            int x = operandStack.sp -= 2;
+            result = (int) operandStack.vals[x] <= (int) operandStack.vals[x + 1];
+          } else {
+            cmpHelper(operandStack, frame, true);
+            result = operandStack.popBool();
+          }
+          frame.pc = result ? frame.pc + 1 : code[frame.pc];
+        }
+        // pop x, pop y, if not (y == x) jump to instruction offset A
+        case CMPEQ_JMPF -> frame.pc = equalHelper(operandStack) ? frame.pc + 1 : code[frame.pc];
+        // pop x, pop y, if not (y != x) jump to instruction offset A
+        case CMPNE_JMPF -> frame.pc = equalHelper(operandStack) ? code[frame.pc] : frame.pc + 1;
+        // pop x, pop y, if (y < x) jump to instruction offset A
+        case CMPLT_JMPT -> {
+          boolean result;
+          if (guard(operandStack, INT)) {
+            int x = operandStack.sp -= 2;
+            result = (int) operandStack.vals[x] < (int) operandStack.vals[x + 1];
+          } else {
+            cmpHelper(operandStack, frame, false);
+            result = operandStack.popBool();
+          }
+          frame.pc = result ? code[frame.pc] : frame.pc + 1;
+        }
+        // pop x, pop y, if (y <= x) jump to instruction offset A
+        case CMPLE_JMPT -> {
+          boolean result;
+          if (guard(operandStack, INT)) {
+            int x = operandStack.sp -= 2;
+            result = (int) operandStack.vals[x] <= (int) operandStack.vals[x + 1];
+          } else {
+            cmpHelper(operandStack, frame, true);
+            result = operandStack.popBool();
+          }
+          frame.pc = result ? code[frame.pc] : frame.pc + 1;
+        }
+
+        default -> error("Unsupported operation: " + opcode);
       }
     }
   }
 }
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
@@ -0,0 +1,93 @@
+/**
+ * CPSC 326, Spring 2025
+ * Per-call array allocation for the VM.
+ */
+
+package cpsc326;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * The arena of a thread's calls. ALLOCA_L allocates an array that
+ * never outlives the call allocating it (see EscapeAnalyzer) in the
+ * arena, and all of a call's arrays are released together when the
+ * call returns (see VMFrame). A released array is cleared, so it
+ * doesn't keep the objects it referred to reachable, and reused by a
+ * later ALLOCA_L of the same element type and length instead of
+ * allocating a new one, so functions that are called often with
+ * scratch arrays don't keep creating garbage. Only a bounded number
+ * of (not too large) released arrays are kept for reuse. Each thread
+ * has its own arena, so the arena isn't synchronized.
+ */
+public class VMArena {
+
+  /* the most released arrays kept for reuse */
+  private static final int MAX_FREE = 32;
+
+  /* the longest released array kept for reuse */
+  private static final int MAX_LENGTH = 1 << 16;
+
+  /**
+   * An array of the arena.
+   *
+   * @param elementType the array's element type (as given to ALLOCA_L)
+   * @param array       the array
+   */
+  private record Entry(String elementType, VMArray array) {
+  }
+
+  /* the arrays of the active calls (in allocation order) */
+  private final List<Entry> used = new ArrayList<>();
+
+  /* the released arrays that can be reused */
+  private final List<Entry> free = new ArrayList<>();
+
+
+  /**
+   * Get the mark to release the arrays allocated from now on.
+   */
+  public int mark() {
+    return used.size();
+  }
+
+  /**
+   * Allocate an array with all null elements, reusing a released (and
+   * so cleared) array if there is one of the same element type and
+   * length.
+   *
+   * @param elementType the element type's name
+   * @param length      the number of elements
+   * @param ids         the VM's object ids (for a new array's oid)
+   */
+  public VMArray allocate(String elementType, int length, AtomicInteger ids) {
+    for (int i = free.size() - 1; i >= 0; --i) {
+      Entry entry = free.get(i);
+      if (entry.array.size() == length && entry.elementType.equals(elementType)) {
+        free.set(i, free.getLast());
+        free.removeLast();
+        used.add(entry);
+        return entry.array;
+      }
+    }
+    VMArray array = VMArray.of(ids.getAndIncrement(), elementType, length);
+    used.add(new Entry(elementType, array));
+    return array;
+  }
+
+  /**
+   * Release the arrays allocated since the given mark.
+   */
+  public void release(int mark) {
+    while (used.size() > mark) {
+      Entry entry = used.removeLast();
+      if (free.size() < MAX_FREE && entry.array.size() <= MAX_LENGTH) {
+        entry.array.clear();
+        free.add(entry);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,314 @@
+/**
+ * CPSC 326, Spring 2025
+ * Array objects of the VM heap.
+ */
+
+package cpsc326;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static cpsc326.VMValue.*;
+
+
+/**
+ * An array object. Its elements are stored by element type, so that
+ * int, double, and bool elements aren't boxed: ints in an int[],
+ * doubles in a double[], and bools in a byte[], each with a mask of
+ * the elements that aren't null (as elements start out null). Large
+ * int and double arrays are stored off the JVM heap instead (see
+ * OffHeap). Strings, structs, and elements of arrays allocated without
+ * a type are stored as references. Elements are moved directly between
+ * the array and a VMStack. Each element is stored in its own array
+ * slot (not in the bits of a shared word), so threads can set
+ * different elements of an array at the same time.
+ */
+public abstract class VMArray extends VMObject {
+
+  /* the length from which int and double arrays are stored off heap */
+  public static final int OFF_HEAP_LENGTH = 1 << 20;
+
+  /**
+   * Create an array with all null elements.
+   *
+   * @param oid         the array's oid
+   * @param elementType the element type's name (or null if unknown)
+   * @param length      the number of elements
+   */
+  public static VMArray of(int oid, String elementType, int length) {
+    if (elementType == null)
+      return new Refs(oid, length);
+    return switch (elementType) {
+      case "int" -> length < OFF_HEAP_LENGTH ? new Ints(oid, length) : new OffHeapInts(oid, length);
+      case "double" -> length < OFF_HEAP_LENGTH ? new Doubles(oid, length) : new OffHeapDoubles(oid, length);
+      case "bool" -> new Bools(oid, length);
+      default -> new Refs(oid, length);
+    };
+  }
+
+  /**
+   * Create an array with the given oid.
+   */
+  protected VMArray(int oid) {
+    super(oid);
+  }
+
+  /**
+   * Get the number of elements.
+   */
+  public abstract int size();
+
+  /**
+   * Set all the elements to null.
+   */
+  public abstract void clear();
+
+  /**
+   * Push an element onto a stack.
+   *
+   * @param i     the element's index (in range)
+   * @param stack the stack to push onto
+   */
+  public abstract void push(int i, VMStack stack);
+
+  /**
+   * Pop the top value of a stack into an element.
+   *
+   * @param i     the element's index (in range)
+   * @param stack the stack to pop from
+   */
+  public abstract void pop(int i, VMStack stack);
+
+  /**
+   * Int elements.
+   */
+  private static final class Ints extends VMArray {
+
+    private final int[] values;
+    private final boolean[] set;
+
+    Ints(int oid, int length) {
+      super(oid);
+      values = new int[length];
+      set = new boolean[length];
+    }
+
+    public int size() {
+      return values.length;
+    }
+
+    public void clear() {
+      Arrays.fill(set, false);
+    }
+
+    public void push(int i, VMStack stack) {
+      if (set[i])
+        stack.pushInt(values[i]);
+      else
+        stack.pushNull();
+    }
+
+    public void pop(int i, VMStack stack) {
+      set[i] = stack.peekTag(0) != NULL;
+      values[i] = (int) stack.vals[--stack.sp];
+    }
+  }
+
+  /**
+   * Double elements.
+   */
+  private static final class Doubles extends VMArray {
+
+    private final double[] values;
+    private final boolean[] set;
+
+    Doubles(int oid, int length) {
+      super(oid);
+      values = new double[length];
+      set = new boolean[length];
+    }
+
+    public int size() {
+      return values.length;
+    }
+
+    public void clear() {
+      Arrays.fill(set, false);
+    }
+
+    public void push(int i, VMStack stack) {
+      if (set[i])
+        stack.pushDouble(values[i]);
+      else
+        stack.pushNull();
+    }
+
+    public void pop(int i, VMStack stack) {
+      set[i] = stack.peekTag(0) != NULL;
+      values[i] = asDouble(stack.vals[--stack.sp]);
+    }
+  }
+
+  /**
+   * Bool elements (0 for null, 1 for false, and 2 for true).
+   */
+  private static final class Bools extends VMArray {
+
+    private final byte[] values;
+
+    Bools(int oid, int length) {
+      super(oid);
+      values = new byte[length];
+    }
+
+    public int size() {
+      return values.length;
+    }
+
+    public void clear() {
+      Arrays.fill(values, (byte) 0);
+    }
+
+    public void push(int i, VMStack stack) {
+      if (values[i] == 0)
+        stack.pushNull();
+      else
+        stack.pushBool(values[i] == 2);
+    }
+
+    public void pop(int i, VMStack stack) {
+      byte tag = stack.peekTag(0);
+      values[i] = (byte) (tag == NULL ? 0 : stack.vals[stack.sp - 1] != 0 ? 2 : 1);
+      stack.drop();
+    }
+  }
+
+  /**
+   * Reference (or untyped) elements.
+   */
+  private static final class Refs extends VMArray {
+
+    private final Object[] values;
+
+    Refs(int oid, int length) {
+      super(oid);
+      values = new Object[length];
+      Arrays.fill(values, VM.NULL);
+    }
+
+    public int size() {
+      return values.length;
+    }
+
+    public void clear() {
+      Arrays.fill(values, VM.NULL);
+    }
+
+    public void push(int i, VMStack stack) {
+      stack.push(values[i]);
+    }
+
+    public void pop(int i, VMStack stack) {
+      values[i] = stack.pop();
+    }
+  }
+
+  /**
+   * Elements stored off the JVM heap, in direct buffers, so that the
+   * garbage collector never copies them (the buffers are freed once
+   * the array is unreachable). A direct buffer holds at most 2GB, so
+   * the elements are split into chunks of 2^CHUNK_BITS elements, each
+   * with a buffer of values and a buffer of masks (0 for null).
+   */
+  private abstract static class OffHeap extends VMArray {
+
+    static final int CHUNK_BITS = 27;
+    static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
+    private final int length;
+    final ByteBuffer[] values;
+    final ByteBuffer[] set;
+
+    OffHeap(int oid, int length, int elementSize) {
+      super(oid);
+      this.length = length;
+      int chunks = (int) (((long) length + CHUNK_MASK) >>> CHUNK_BITS);
+      values = new ByteBuffer[chunks];
+      set = new ByteBuffer[chunks];
+      for (int c = 0; c < chunks; ++c) {
+        int n = Math.min(length - (c << CHUNK_BITS), 1 << CHUNK_BITS);
+        values[c] = ByteBuffer.allocateDirect(n * elementSize).order(ByteOrder.nativeOrder());
+        set[c] = ByteBuffer.allocateDirect(n);
+      }
+    }
+
+    public int size() {
+      return length;
+    }
+
+    public void clear() {
+      for (ByteBuffer mask : set)
+        for (int i = 0; i < mask.capacity(); ++i)
+          mask.put(i, (byte) 0);
+    }
+
+    public void pop(int i, VMStack stack) {
+      byte tag = stack.peekTag(0);
+      set[i >>> CHUNK_BITS].put(i & CHUNK_MASK, (byte) (tag == NULL ? 0 : 1));
+      put(i, stack.vals[--stack.sp]);
+    }
+
+    /**
+     * Store an element's bits (in range).
+     */
+    abstract void put(int i, long bits);
+  }
+
+  /**
+   * Int elements (off heap).
+   */
+  private static final class OffHeapInts extends OffHeap {
+
+    OffHeapInts(int oid, int length) {
+      super(oid, length, Integer.BYTES);
+    }
+
+    public void push(int i, VMStack stack) {
+      int c = i >>> CHUNK_BITS;
+      int j = i & CHUNK_MASK;
+      if (set[c].get(j) != 0)
+        stack.pushInt(values[c].getInt(j * Integer.BYTES));
+      else
+        stack.pushNull();
+    }
+
+    void put(int i, long bits) {
+      values[i >>> CHUNK_BITS].putInt((i & CHUNK_MASK) * Integer.BYTES, (int) bits);
+    }
+  }
+
+  /**
+   * Double elements (off heap).
+   */
+  private static final class OffHeapDoubles extends OffHeap {
+
+    OffHeapDoubles(int oid, int length) {
+      super(oid, length, Double.BYTES);
+    }
+
+    public void push(int i, VMStack stack) {
+      int c = i >>> CHUNK_BITS;
+      int j = i & CHUNK_MASK;
+      if (set[c].get(j) != 0)
+        stack.pushDouble(values[c].getDouble(j * Double.BYTES));
+      else
+        stack.pushNull();
+    }
+
+    void put(int i, long bits) {
+      values[i >>> CHUNK_BITS].putLong((i & CHUNK_MASK) * Double.BYTES, bits);
+    }
+  }
+
+}
@@ -5,30 +5,68 @@
 
 package cpsc326;
 
-import java.util.ArrayList;
-import java.util.List;
-
 /**
- * Class for representing function call information.
+ * Class for representing function call information. A frame's
+ * memory is a window of its thread's value stack: memory address a
+ * is stack slot base + a, and the frame's operands are pushed above
+ * its (function's maxLocals) memory addresses. The arguments of a
+ * call are already on the stack, so they become the first addresses
+ * of the callee's window without being copied (see VMFunction).
  */
 public class VMFrame {
 
-  /* the template this frame is an instance of */
-  public VMFrameTemplate template;
+  /* the (linked) function this frame is an instance of */
+  public VMFunction function;
 
-  /* the memory associated with variables of the frame */
-  public List<Object> memory = new ArrayList<>();
+  /* the stack slot of memory address 0 */
+  public int base;
 
   /* the current instruction index (program counter) */
-  public int pc = 0;
+  public int pc;
+
+  /* the arena mark of the frame's arrays (or -1 if it has none) */
+  public int arena = -1;
+
+  /* the end of the largest window (memory and operands) the frame has
+     held, as a frame reused by tail calls may shrink */
+  public int top;
 
 
   /**
-   * Create (instantiate) a frame with the given template
+   * Create (instantiate) a frame with the given function whose
+   * memory starts at the given stack slot. The function's parameters
+   * are already stored.
    */
-  public VMFrame(VMFrameTemplate template) {
-    this.template = template;
+  public VMFrame(VMFunction function, int base) {
+    this.function = function;
+    this.base = base;
+    this.pc = function.entry;
+    this.top = base + function.maxLocals + function.maxStack;
   }
 
-}
+  /**
+   * Push the value at the given memory address onto the stack.
+   *
+   * @param address the memory address
+   * @param stack   the value stack
+   */
+  public void load(int address, VMStack stack) {
+    int slot = base + address;
+    stack.push(stack.tags[slot], stack.vals[slot], stack.refs[slot]);
+  }
+
+  /**
+   * Pop the top value of the stack into the given memory address.
+   *
+   * @param address the memory address
+   * @param stack   the value stack
+   */
+  public void store(int address, VMStack stack) {
+    int top = --stack.sp;
+    int slot = base + address;
+    stack.tags[slot] = stack.tags[top];
+    stack.vals[slot] = stack.vals[top];
+    stack.refs[slot] = stack.refs[top];
+  }
 
+}
@@ -19,6 +19,12 @@ public class VMFrameTemplate {
   /* list of instructions defining the function */
   public List<VMInstr> instructions = new ArrayList<>();
 
+  /* number of parameters (passed in the first memory addresses) */
+  public int numParams = 0;
+
+  /* number of memory addresses used (0 if unknown, see VMFunction) */
+  public int maxLocals = 0;
+
   /**
    * Create a new template
    */
@@ -0,0 +1,188 @@
+/**
+ * CPSC 326, Spring 2025
+ * The linked (executable) form of a frame template.
+ */
+
+package cpsc326;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A frame template that has been linked into a compact instruction
+ * stream. Each instruction is an opcode (the OpCode ordinal)
+ * followed by its int operands (see operandCount). Operands are
+ * either memory addresses (LOAD, STORE, ...), code offsets (JMP,
+ * JMPF, ...), function indexes (CALL), or indexes into the
+ * function's constant pool (PUSH, SETF, GETF, ...).
+ * <p>
+ * A call's arguments are pushed (last to first) before the CALL and
+ * stay where they are on the value stack, becoming the first
+ * numParams memory addresses of the callee's frame. These are the
+ * template's parameters followed by any addresses stored (in order)
+ * by STOREs that begin the template, which the linker folds into the
+ * call; execution starts after them. The template must have been
+ * verified (see VMVerifier), so the VM doesn't check its operand
+ * stack or memory accesses. Since the last argument is
+ * deepest, parameter addresses are reversed in the encoded
+ * instructions (see slot). A function that uses its arguments some
+ * other way must leave them on the stack, so it can't have any
+ * memory addresses.
+ */
+public class VMFunction {
+
+  /* the template this function was linked from */
+  public final VMFrameTemplate template;
+
+  /* the encoded instruction stream */
+  public final int[] code;
+
+  /* the constant pool referenced by PUSH, SETF, and GETF */
+  public final Object[] constants;
+
+  /* the constant pool pre-decoded into tagged values (see VMValue) */
+  public final byte[] constantTags;
+  public final long[] constantBits;
+
+  /* the number of arguments the function takes (see above) */
+  public final int numParams;
+
+  /* the number of memory addresses the function's frames use */
+  public final int maxLocals;
+
+  /* the most operands the function's frames have on the stack at once */
+  public final int maxStack;
+
+  /* the number of its caller's operands the function consumes (see VMVerifier) */
+  public final int stackArgs;
+
+  /* the code offset where execution starts (just past the prologue) */
+  public final int entry;
+
+  /* the code offset of each instruction (by instruction index) */
+  private final int[] starts;
+
+
+  /**
+   * Link the given template.
+   *
+   * @param template        the (verified) template to link
+   * @param summary         the verifier's summary of the template
+   * @param functionIndexes the index of each function the template may call
+   */
+  public VMFunction(VMFrameTemplate template, VMVerifier.Summary summary, Map<String, Integer> functionIndexes) {
+    this.template = template;
+    List<VMInstr> instructions = template.instructions;
+    numParams = summary.numParams();
+    maxLocals = summary.maxLocals();
+    maxStack = summary.maxStack();
+    stackArgs = summary.stackArgs();
+
+    // compute the code offset of each instruction (plus the end offset)
+    starts = new int[instructions.size() + 1];
+    int offset = 0;
+    for (int i = 0; i < instructions.size(); ++i) {
+      starts[i] = offset;
+      offset += 1 + operandCount(instructions.get(i).opcode);
+    }
+    starts[instructions.size()] = offset;
+
+    // encode each instruction
+    code = new int[offset];
+    List<Object> pool = new ArrayList<>();
+    Map<Object, Integer> poolIndexes = new HashMap<>();
+    for (int i = 0; i < instructions.size(); ++i) {
+      VMInstr instr = instructions.get(i);
+      int pc = starts[i];
+      code[pc] = instr.opcode.ordinal();
+      switch (instr.opcode) {
+        case LOAD, STORE, INC_LOCAL -> code[pc + 1] = slot((int) instr.operand);
+        case JMP, JMPF, JMPT, CMPLT_JMPF, CMPLE_JMPF, CMPEQ_JMPF, CMPNE_JMPF, CMPLT_JMPT, CMPLE_JMPT ->
+                code[pc + 1] = starts[(int) instr.operand];
+        case CALL, TAILCALL -> code[pc + 1] = functionIndexes.get((String) instr.operand);
+        case PUSH, SETF, GETF -> code[pc + 1] = constant(instr.operand, pool, poolIndexes);
+        case ALLOCS -> code[pc + 1] = constant(instr.operand == null ? VMShape.EMPTY : instr.operand, pool, poolIndexes);
+        case ALLOCA, ALLOCA_L -> code[pc + 1] = constant(instr.operand == null ? "" : instr.operand, pool, poolIndexes);
+        case LOAD_LOAD -> {
+          Object[] operands = (Object[]) instr.operand;
+          code[pc + 1] = slot((int) operands[0]);
+          code[pc + 2] = slot((int) operands[1]);
+        }
+        case LOAD_PUSH, LOAD_GETF -> {
+          Object[] operands = (Object[]) instr.operand;
+          code[pc + 1] = slot((int) operands[0]);
+          code[pc + 2] = constant(operands[1], pool, poolIndexes);
+        }
+        default -> {
+        }
+      }
+    }
+    entry = starts[summary.prologue()];
+    constants = pool.toArray();
+    constantTags = new byte[constants.length];
+    constantBits = new long[constants.length];
+    for (int i = 0; i < constants.length; ++i) {
+      constantTags[i] = VMValue.tagOf(constants[i]);
+      constantBits[i] = VMValue.bitsOf(constants[i]);
+    }
+  }
+
+  /**
+   * Get the frame slot (offset from the frame's base) of a memory
+   * address. The arguments were pushed last to first, so the
+   * parameter addresses are reversed.
+   */
+  private int slot(int address) {
+    return address < numParams ? numParams - 1 - address : address;
+  }
+
+  /**
+   * Get the index of a value in the constant pool, adding it if needed.
+   */
+  private static int constant(Object value, List<Object> pool, Map<Object, Integer> poolIndexes) {
+    Integer index = poolIndexes.get(value);
+    if (index == null) {
+      index = pool.size();
+      pool.add(value);
+      poolIndexes.put(value, index);
+    }
+    return index;
+  }
+
+  /**
+   * Get the number of operands that follow the given opcode.
+   *
+   * @param opcode the opcode to check
+   * @return the number of int operands in the encoded instruction
+   */
+  public static int operandCount(OpCode opcode) {
+    return switch (opcode) {
+      case PUSH, LOAD, STORE, JMP, JMPF, JMPT, CALL, TAILCALL, ALLOCS, ALLOCA, ALLOCA_L, SETF, GETF, INC_LOCAL,
+           CMPLT_JMPF, CMPLE_JMPF, CMPEQ_JMPF, CMPNE_JMPF, CMPLT_JMPT, CMPLE_JMPT -> 1;
+      case LOAD_LOAD, LOAD_PUSH, LOAD_GETF -> 2;
+      default -> 0;
+    };
+  }
+
+  /**
+   * Find the instruction that contains the given code offset.
+   *
+   * @param pc a code offset
+   * @return the index of the instruction in the template
+   */
+  public int instructionIndex(int pc) {
+    int i = Arrays.binarySearch(starts, pc);
+    return i >= 0 ? i : -i - 2;
+  }
+
+  /**
+   * Get the name of the function.
+   */
+  public String name() {
+    return template.functionName;
+  }
+
+}
@@ -10,6 +10,7 @@ package cpsc326;
  */
 public class VMInstr {
   public OpCode opcode;
+  // the operand (an Object[] for instructions with more than one)
   public Object operand;
   public String comment = "";
 
@@ -95,6 +96,74 @@ public class VMInstr {
     return new VMInstr(OpCode.NOT);
   }
 
+  public static VMInstr IADD() {
+    return new VMInstr(OpCode.IADD);
+  }
+
+  public static VMInstr DADD() {
+    return new VMInstr(OpCode.DADD);
+  }
+
+  public static VMInstr SCONCAT() {
+    return new VMInstr(OpCode.SCONCAT);
+  }
+
+  public static VMInstr ISUB() {
+    return new VMInstr(OpCode.ISUB);
+  }
+
+  public static VMInstr DSUB() {
+    return new VMInstr(OpCode.DSUB);
+  }
+
+  public static VMInstr IMUL() {
+    return new VMInstr(OpCode.IMUL);
+  }
+
+  public static VMInstr DMUL() {
+    return new VMInstr(OpCode.DMUL);
+  }
+
+  public static VMInstr IDIV() {
+    return new VMInstr(OpCode.IDIV);
+  }
+
+  public static VMInstr DDIV() {
+    return new VMInstr(OpCode.DDIV);
+  }
+
+  public static VMInstr ICMPLT() {
+    return new VMInstr(OpCode.ICMPLT);
+  }
+
+  public static VMInstr DCMPLT() {
+    return new VMInstr(OpCode.DCMPLT);
+  }
+
+  public static VMInstr SCMPLT() {
+    return new VMInstr(OpCode.SCMPLT);
+  }
+
+  public static VMInstr ICMPLE() {
+    return new VMInstr(OpCode.ICMPLE);
+  }
+
+  public static VMInstr DCMPLE() {
+    return new VMInstr(OpCode.DCMPLE);
+  }
+
+  public static VMInstr SCMPLE() {
+    return new VMInstr(OpCode.SCMPLE);
+  }
+
+  public static VMInstr ICMPEQ() {
+    return new VMInstr(OpCode.ICMPEQ);
+  }
+
+  public static VMInstr ICMPNE() {
+    return new VMInstr(OpCode.ICMPNE);
+  }
+
   public static VMInstr JMP(int offset) {
     return new VMInstr(OpCode.JMP, offset);
   }
@@ -103,10 +172,18 @@ public class VMInstr {
     return new VMInstr(OpCode.JMPF, offset);
   }
 
+  public static VMInstr JMPT(int offset) {
+    return new VMInstr(OpCode.JMPT, offset);
+  }
+
   public static VMInstr CALL(String functionName) {
     return new VMInstr(OpCode.CALL, functionName);
   }
 
+  public static VMInstr TAILCALL(String functionName) {
+    return new VMInstr(OpCode.TAILCALL, functionName);
+  }
+
   public static VMInstr RET() {
     return new VMInstr(OpCode.RET);
   }
@@ -115,6 +192,10 @@ public class VMInstr {
     return new VMInstr(OpCode.WRITE);
   }
 
+  public static VMInstr WRITELN() {
+    return new VMInstr(OpCode.WRITELN);
+  }
+
   public static VMInstr READ() {
     return new VMInstr(OpCode.READ);
   }
@@ -151,11 +232,17 @@ public class VMInstr {
     return new VMInstr(OpCode.ALLOCS);
   }
 
-  public static VMInstr SETF(String field) {
+  public static VMInstr ALLOCS(VMShape shape) {
+    return new VMInstr(OpCode.ALLOCS, shape);
+  }
+
+  // the field is its name or a VMShape.Field
+  public static VMInstr SETF(Object field) {
     return new VMInstr(OpCode.SETF, field);
   }
 
-  public static VMInstr GETF(String field) {
+  // the field is its name or a VMShape.Field
+  public static VMInstr GETF(Object field) {
     return new VMInstr(OpCode.GETF, field);
   }
 
@@ -163,6 +250,11 @@ public class VMInstr {
     return new VMInstr(OpCode.ALLOCA);
   }
 
+  // the element type's name, for storing the elements unboxed
+  public static VMInstr ALLOCA(String elementType) {
+    return new VMInstr(OpCode.ALLOCA, elementType);
+  }
+
   public static VMInstr SETI() {
     return new VMInstr(OpCode.SETI);
   }
@@ -171,6 +263,18 @@ public class VMInstr {
     return new VMInstr(OpCode.GETI);
   }
 
+  public static VMInstr SETI_U() {
+    return new VMInstr(OpCode.SETI_U);
+  }
+
+  public static VMInstr GETI_U() {
+    return new VMInstr(OpCode.GETI_U);
+  }
+
+  public static VMInstr ALLOCA_L(String elementType) {
+    return new VMInstr(OpCode.ALLOCA_L, elementType);
+  }
+
   public static VMInstr DUP() {
     return new VMInstr(OpCode.DUP);
   }
@@ -179,12 +283,73 @@ public class VMInstr {
     return new VMInstr(OpCode.NOP);
   }
 
+  public static VMInstr INC_LOCAL(int memoryAddress) {
+    return new VMInstr(OpCode.INC_LOCAL, memoryAddress);
+  }
+
+  public static VMInstr LOAD_LOAD(int memoryAddress1, int memoryAddress2) {
+    return new VMInstr(OpCode.LOAD_LOAD, new Object[]{memoryAddress1, memoryAddress2});
+  }
+
+  public static VMInstr LOAD_PUSH(int memoryAddress, Object value) {
+    return new VMInstr(OpCode.LOAD_PUSH, new Object[]{memoryAddress, value});
+  }
+
+  public static VMInstr LOAD_GETF(int memoryAddress, Object field) {
+    return new VMInstr(OpCode.LOAD_GETF, new Object[]{memoryAddress, field});
+  }
+
+  public static VMInstr CMPLT_JMPF(int offset) {
+    return new VMInstr(OpCode.CMPLT_JMPF, offset);
+  }
+
+  public static VMInstr CMPLE_JMPF(int offset) {
+    return new VMInstr(OpCode.CMPLE_JMPF, offset);
+  }
+
+  public static VMInstr CMPEQ_JMPF(int offset) {
+    return new VMInstr(OpCode.CMPEQ_JMPF, offset);
+  }
+
+  public static VMInstr CMPNE_JMPF(int offset) {
+    return new VMInstr(OpCode.CMPNE_JMPF, offset);
+  }
+
+  public static VMInstr CMPLT_JMPT(int offset) {
+    return new VMInstr(OpCode.CMPLT_JMPT, offset);
+  }
+
+  public static VMInstr CMPLE_JMPT(int offset) {
+    return new VMInstr(OpCode.CMPLE_JMPT, offset);
+  }
+
+  /**
+   * Check if the instruction's operand is a jump target (an
+   * instruction offset).
+   */
+  public boolean isJump() {
+    return switch (opcode) {
+      case JMP, JMPF, JMPT, CMPLT_JMPF, CMPLE_JMPF, CMPEQ_JMPF, CMPNE_JMPF, CMPLT_JMPT, CMPLE_JMPT -> true;
+      default -> false;
+    };
+  }
+
+  /**
+   * Check if the instruction's operand is a called function.
+   */
+  public boolean isCall() {
+    return opcode == OpCode.CALL || opcode == OpCode.TAILCALL;
+  }
+
   /**
    * Pretty print an instruction.
    */
   public String toString() {
     String s = opcode + "(";
-    if (operand != null)
+    if (operand instanceof Object[] operands) {
+      for (int i = 0; i < operands.length; ++i)
+        s += (i > 0 ? ", " : "") + operands[i];
+    } else if (operand != null)
       s += operand;
     s += ")";
     if (!comment.equals(""))
@@ -0,0 +1,34 @@
+/**
+ * CPSC 326, Spring 2025
+ * Objects of the VM heap.
+ */
+
+package cpsc326;
+
+
+/**
+ * A heap object (a struct or an array). Objects are referenced
+ * directly (as REF values on the operand stack, in frame memory, and
+ * in other objects), so there is no oid to object mapping to look
+ * them up in, and the JVM reclaims an object once it is no longer
+ * referenced. Each object still has an oid, which is how it prints.
+ */
+public abstract class VMObject {
+
+  /* the object's id (unique within its VM) */
+  public final int oid;
+
+
+  /**
+   * Create an object with the given oid.
+   */
+  protected VMObject(int oid) {
+    this.oid = oid;
+  }
+
+  @Override
+  public String toString() {
+    return Integer.toString(oid);
+  }
+
+}
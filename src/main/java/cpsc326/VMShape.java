@@ -0,0 +1,105 @@
+/**
+ * CPSC 326, Spring 2025
+ * Struct object layouts for the VM.
+ */
+
+package cpsc326;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * The layout (or shape) of a struct object: the names of its fields
+ * in the order of its slots. The code generator creates a shape for
+ * each struct definition, so each field has a known slot, and its
+ * GETF and SETF instructions carry the field's slot (see Field). A
+ * struct allocated without a shape starts out with no fields, and
+ * setting a new field moves it to the shape with the field added
+ * (shared by all structs that add the same fields in the same order).
+ */
+public class VMShape {
+
+  /**
+   * A field of a shape, as the operand of GETF and SETF. A struct
+   * with the same shape has the field in the given slot (other
+   * structs are accessed by the field's name).
+   *
+   * @param name  the field's name
+   * @param shape the shape the slot is for
+   * @param slot  the field's slot in the shape's structs
+   */
+  public record Field(String name, VMShape shape, int slot) {
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  /* the shape of structs allocated without a shape */
+  public static final VMShape EMPTY = new VMShape("", List.of());
+
+  /* the struct's name (or empty if built up by SETF) */
+  public final String name;
+
+  /* the field names (by slot) */
+  public final List<String> fields;
+
+  /* the slot of each field (by name) */
+  private final Map<String, Integer> slots = new HashMap<>();
+
+  /* the shapes with one more field added (by the field's name) */
+  private final Map<String, VMShape> transitions = new ConcurrentHashMap<>();
+
+
+  /**
+   * Create a shape with the given fields.
+   *
+   * @param name   the struct's name
+   * @param fields the field names in slot order
+   */
+  public VMShape(String name, List<String> fields) {
+    this.name = name;
+    this.fields = List.copyOf(fields);
+    for (int i = 0; i < fields.size(); ++i)
+      slots.put(fields.get(i), i);
+  }
+
+  /**
+   * Get the slot of a field (or -1 if the shape doesn't have it).
+   */
+  public int slot(String field) {
+    Integer slot = slots.get(field);
+    return slot == null ? -1 : slot;
+  }
+
+  /**
+   * Get a field of the shape as an instruction operand.
+   *
+   * @param field the field's name (which the shape must have)
+   */
+  public Field field(String field) {
+    return new Field(field, this, slot(field));
+  }
+
+  /**
+   * Get the shape with a field added after this shape's fields.
+   */
+  public VMShape with(String field) {
+    return transitions.computeIfAbsent(field, f -> {
+      List<String> added = new ArrayList<>(fields);
+      added.add(f);
+      return new VMShape(name, added);
+    });
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+
+}
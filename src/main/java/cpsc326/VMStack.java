@@ -0,0 +1,213 @@
+/**
+ * CPSC 326, Spring 2025
+ * The VM value stack.
+ */
+
+package cpsc326;
+
+import java.util.Arrays;
+
+import static cpsc326.VMValue.*;
+
+/**
+ * A stack of tagged (unboxed) values stored in parallel tag, bits,
+ * and reference arrays (see VMValue). Pushing and popping ints,
+ * doubles, and bools never allocates. Each thread has one stack that
+ * holds the memory of its active frames as well as their operands
+ * (see VMFrame).
+ */
+public class VMStack {
+
+  /* the value tags */
+  public byte[] tags;
+
+  /* the value bits (for ints, doubles, and bools) */
+  public long[] vals;
+
+  /* the value references (for strings and heap objects) */
+  public Object[] refs;
+
+  /* the number of values on the stack (index of the next free slot) */
+  public int sp = 0;
+
+
+  /**
+   * Create an empty stack.
+   */
+  public VMStack() {
+    this(64);
+  }
+
+  /**
+   * Create an empty stack with the given initial capacity.
+   *
+   * @param capacity the number of values the stack can initially hold
+   */
+  public VMStack(int capacity) {
+    tags = new byte[capacity];
+    vals = new long[capacity];
+    refs = new Object[capacity];
+  }
+
+  /**
+   * Ensure there is room for the given number of additional values.
+   *
+   * @param n the number of values about to be pushed
+   */
+  public void ensureCapacity(int n) {
+    if (sp + n > tags.length) {
+      int capacity = Math.max(tags.length * 2, sp + n);
+      tags = Arrays.copyOf(tags, capacity);
+      vals = Arrays.copyOf(vals, capacity);
+      refs = Arrays.copyOf(refs, capacity);
+    }
+  }
+
+  /**
+   * Check if the stack is empty.
+   */
+  public boolean isEmpty() {
+    return sp == 0;
+  }
+
+  // pushing values
+
+  /**
+   * Push a tagged value. There must be room for it (the VM reserves
+   * room for each frame's operands when the frame is created).
+   */
+  public void push(byte tag, long bits, Object ref) {
+    tags[sp] = tag;
+    vals[sp] = bits;
+    refs[sp++] = ref;
+  }
+
+  /**
+   * Push a boxed value (Java null is pushed as VM.NULL).
+   */
+  public void push(Object value) {
+    byte tag = tagOf(value);
+    push(tag, bitsOf(value), tag == REF ? value : null);
+  }
+
+  public void pushInt(int value) {
+    push(INT, value, null);
+  }
+
+  public void pushDouble(double value) {
+    push(DOUBLE, bits(value), null);
+  }
+
+  public void pushBool(boolean value) {
+    push(BOOL, value ? 1 : 0, null);
+  }
+
+  public void pushRef(Object value) {
+    push(REF, 0, value);
+  }
+
+  public void pushNull() {
+    push(NULL, 0, null);
+  }
+
+  // popping values
+
+  /**
+   * Pop the top value (boxed).
+   */
+  public Object pop() {
+    --sp;
+    return box(tags[sp], vals[sp], refs[sp]);
+  }
+
+  /**
+   * Pop and discard the top value.
+   */
+  public void drop() {
+    --sp;
+  }
+
+  public int popInt() {
+    return (int) vals[--sp];
+  }
+
+  public double popDouble() {
+    return asDouble(vals[--sp]);
+  }
+
+  public boolean popBool() {
+    return vals[--sp] != 0;
+  }
+
+  public Object popRef() {
+    return refs[--sp];
+  }
+
+  // inspecting values
+
+  /**
+   * Get the top value (boxed) without popping it.
+   */
+  public Object peek() {
+    return box(tags[sp - 1], vals[sp - 1], refs[sp - 1]);
+  }
+
+  /**
+   * Get the tag of a value without popping it.
+   *
+   * @param depth the distance from the top of the stack (0 is the top)
+   */
+  public byte peekTag(int depth) {
+    return tags[sp - 1 - depth];
+  }
+
+  /**
+   * Push a copy of the top value.
+   */
+  public void dup() {
+    push(tags[sp - 1], vals[sp - 1], refs[sp - 1]);
+  }
+
+  /**
+   * Copy values down the stack.
+   *
+   * @param from the first slot to copy
+   * @param to   the slot to copy it to (at most from)
+   * @param n    the number of values to copy
+   */
+  public void moveDown(int from, int to, int n) {
+    for (int i = 0; i < n; ++i) {
+      tags[to + i] = tags[from + i];
+      vals[to + i] = vals[from + i];
+      refs[to + i] = refs[from + i];
+    }
+  }
+
+  /**
+   * Pop values down to the given stack pointer, clearing the references
+   * in the slots from there up to the given limit (which may be above
+   * the stack pointer, for values popped earlier), so that the stack
+   * doesn't keep the heap objects they refer to reachable.
+   *
+   * @param sp    the new stack pointer (at most the current one)
+   * @param limit the end of the slots to clear
+   */
+  public void popTo(int sp, int limit) {
+    Arrays.fill(refs, sp, Math.max(limit, this.sp), null);
+    this.sp = sp;
+  }
+
+  /**
+   * Pretty-print the stack (bottom to top).
+   */
+  public String toString() {
+    String s = "[";
+    for (int i = 0; i < sp; ++i) {
+      s += VMValue.toString(tags[i], vals[i], refs[i]);
+      if (i < sp - 1)
+        s += ", ";
+    }
+    return s + "]";
+  }
+
+}
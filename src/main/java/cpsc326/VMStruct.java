@@ -0,0 +1,70 @@
+/**
+ * CPSC 326, Spring 2025
+ * Struct objects of the VM heap.
+ */
+
+package cpsc326;
+
+import java.util.Arrays;
+
+
+/**
+ * A struct object: its field values stored in slots, laid out by its
+ * shape (see VMShape). Fields not yet set are null.
+ */
+public final class VMStruct extends VMObject {
+
+  /* the struct's layout */
+  private VMShape shape;
+
+  /* the field values (by slot) */
+  private Object[] slots;
+
+
+  /**
+   * Create a struct with the given oid and shape.
+   */
+  public VMStruct(int oid, VMShape shape) {
+    super(oid);
+    this.shape = shape;
+    slots = new Object[shape.fields.size()];
+    Arrays.fill(slots, VM.NULL);
+  }
+
+  /**
+   * Get the value of a field (the field's name or a VMShape.Field).
+   */
+  public Object get(Object field) {
+    if (field instanceof VMShape.Field f && f.shape() == shape)
+      return slots[f.slot()];
+    int slot = shape.slot(name(field));
+    return slot < 0 ? VM.NULL : slots[slot];
+  }
+
+  /**
+   * Set the value of a field (the field's name or a VMShape.Field),
+   * adding the field if the struct's shape doesn't have it.
+   */
+  public void set(Object field, Object value) {
+    if (field instanceof VMShape.Field f && f.shape() == shape) {
+      slots[f.slot()] = value;
+      return;
+    }
+    String name = name(field);
+    int slot = shape.slot(name);
+    if (slot < 0) {
+      shape = shape.with(name);
+      slots = Arrays.copyOf(slots, shape.fields.size());
+      slot = slots.length - 1;
+    }
+    slots[slot] = value;
+  }
+
+  /**
+   * Get the name of a field operand.
+   */
+  private static String name(Object field) {
+    return field instanceof VMShape.Field f ? f.name() : (String) field;
+  }
+
+}
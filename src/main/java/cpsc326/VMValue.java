@@ -0,0 +1,123 @@
+/**
+ * CPSC 326, Spring 2025
+ * Tagged (unboxed) value helpers for the VM.
+ */
+
+package cpsc326;
+
+/**
+ * Values on the operand stack and in frame memory are stored
+ * unboxed as a (tag, bits, ref) triple. The tag gives the kind of
+ * value, ints, doubles, and bools are stored in the bits (a double
+ * as its raw long bits), and strings and heap objects (see VMObject)
+ * are stored in the ref. These helpers convert between the tagged form
+ * and the boxed form used for constants, struct fields, and array
+ * elements.
+ */
+public final class VMValue {
+
+  /* the value tags */
+  public static final byte NULL = 0;
+  public static final byte INT = 1;
+  public static final byte DOUBLE = 2;
+  public static final byte BOOL = 3;
+  public static final byte REF = 4;
+
+  private VMValue() {
+  }
+
+  /**
+   * Get the double stored in the given bits.
+   */
+  public static double asDouble(long bits) {
+    return Double.longBitsToDouble(bits);
+  }
+
+  /**
+   * Get the bits that store the given double.
+   */
+  public static long bits(double value) {
+    return Double.doubleToRawLongBits(value);
+  }
+
+  /**
+   * Get the tag of a boxed value.
+   *
+   * @param value the boxed value (null is treated as VM.NULL)
+   * @return the value's tag
+   */
+  public static byte tagOf(Object value) {
+    if (value instanceof Integer)
+      return INT;
+    else if (value instanceof Double)
+      return DOUBLE;
+    else if (value instanceof Boolean)
+      return BOOL;
+    else if (value == null || value == VM.NULL)
+      return NULL;
+    return REF;
+  }
+
+  /**
+   * Get the bits of a boxed int, double, or bool value.
+   *
+   * @param value the boxed value
+   * @return the value's bits (0 for references and null)
+   */
+  public static long bitsOf(Object value) {
+    if (value instanceof Integer i)
+      return i;
+    else if (value instanceof Double d)
+      return bits(d);
+    else if (value instanceof Boolean b)
+      return b ? 1 : 0;
+    return 0;
+  }
+
+  /**
+   * Box a tagged value.
+   *
+   * @param tag  the value's tag
+   * @param bits the value's bits
+   * @param ref  the value's reference
+   * @return the boxed value
+   */
+  public static Object box(byte tag, long bits, Object ref) {
+    return switch (tag) {
+      case INT -> (int) bits;
+      case DOUBLE -> asDouble(bits);
+      case BOOL -> bits != 0;
+      case NULL -> VM.NULL;
+      default -> ref;
+    };
+  }
+
+  /**
+   * Check if two tagged values are equal (with the same semantics as
+   * equals() on the corresponding boxed values).
+   */
+  public static boolean equal(byte tag1, long bits1, Object ref1, byte tag2, long bits2, Object ref2) {
+    if (tag1 != tag2)
+      return false;
+    return switch (tag1) {
+      case NULL -> true;
+      case REF -> ref1.equals(ref2);
+      case DOUBLE -> Double.doubleToLongBits(asDouble(bits1)) == Double.doubleToLongBits(asDouble(bits2));
+      default -> bits1 == bits2;
+    };
+  }
+
+  /**
+   * Convert a tagged value to its printed (string) form.
+   */
+  public static String toString(byte tag, long bits, Object ref) {
+    return switch (tag) {
+      case INT -> Integer.toString((int) bits);
+      case DOUBLE -> Double.toString(asDouble(bits));
+      case BOOL -> bits != 0 ? "true" : "false";
+      case NULL -> "null";
+      default -> String.valueOf(ref);
+    };
+  }
+
+}
@@ -0,0 +1,270 @@
+/**
+ * CPSC 326, Spring 2025
+ * Verification of VM code before it is linked.
+ */
+
+package cpsc326;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Checks that each frame template can be run without the VM having
+ * to check its operand stack or memory accesses, and computes the
+ * sizes the VM needs to allocate for its frames. Every instruction
+ * must have valid operands (jump targets, called functions, and
+ * memory addresses). Following each template's control flow from
+ * its entry:
+ * <ul>
+ *   <li>the operand stack must have the same height on every path
+ *       to an instruction, and enough values for each instruction;
+ *   <li>a memory address must be stored on every path before it is
+ *       loaded, and memory is used one address at a time: each lower
+ *       address must be stored before it (unless the address is within
+ *       the template's declared maxLocals); and
+ *   <li>every RET must leave the same number of values.
+ * </ul>
+ * The stack effect of a CALL (or TAILCALL) is the number of values left by the
+ * callee's RETs minus the number of arguments it takes, so the
+ * templates are verified together, repeatedly, until nothing new is
+ * found out about them. Code after a call to a function that never
+ * returns is unreachable.
+ * <p>
+ * Only a template without memory addresses may pop more values than
+ * it pushes, consuming its caller's operands (see VMFunction).
+ */
+public class VMVerifier {
+
+  /**
+   * What the verifier found out about a template.
+   *
+   * @param numParams  the number of arguments stored by the template's
+   *                   parameters and prologue (see VMFunction)
+   * @param prologue   the number of STORE instructions in the prologue
+   * @param maxLocals  the number of memory addresses used
+   * @param maxStack   the most operands on the stack at once
+   * @param stackArgs  the number of caller operands consumed (beyond
+   *                   the arguments)
+   * @param returns    the number of values left by each RET (or null
+   *                   if the template never returns)
+   */
+  public record Summary(int numParams, int prologue, int maxLocals, int maxStack, int stackArgs,
+                        Integer returns) {
+  }
+
+  /* the templates to verify */
+  private final Map<String, VMFrameTemplate> templates;
+
+  /* the summaries found so far (by function name) */
+  private final Map<String, Summary> summaries = new HashMap<>();
+
+
+  /**
+   * Create a verifier for the given templates (by function name).
+   */
+  public VMVerifier(Map<String, VMFrameTemplate> templates) {
+    this.templates = templates;
+  }
+
+  /**
+   * Verify the templates.
+   *
+   * @return the summary of each template (by function name)
+   * @throws MyPLException if a template can't be verified
+   */
+  public Map<String, Summary> verify() {
+    for (VMFrameTemplate template : templates.values())
+      checkOperands(template);
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (VMFrameTemplate template : templates.values()) {
+        Summary summary = analyze(template);
+        if (!summary.equals(summaries.put(template.functionName, summary)))
+          changed = true;
+      }
+    }
+    return summaries;
+  }
+
+  // helper functions
+
+  /**
+   * Create and throw an error for an instruction.
+   */
+  private void error(String msg, VMFrameTemplate template, int index) {
+    String s = "%s in %s at %d: %s";
+    MyPLException.vmError(String.format(s, msg, template.functionName, index, template.get(index)));
+  }
+
+  /**
+   * Check the operands of every (even unreachable) instruction.
+   */
+  private void checkOperands(VMFrameTemplate template) {
+    List<VMInstr> instrs = template.instructions;
+    for (int i = 0; i < instrs.size(); ++i) {
+      VMInstr instr = instrs.get(i);
+      if (instr.isJump() && ((int) instr.operand < 0 || (int) instr.operand > instrs.size()))
+        error("Invalid jump target", template, i);
+      if (instr.isCall() && !templates.containsKey((String) instr.operand))
+        error("Undefined function '" + instr.operand + "' called", template, i);
+      for (int address : addresses(instr))
+        if (address < 0)
+          error("Invalid memory address", template, i);
+    }
+  }
+
+  /**
+   * Get the memory addresses an instruction uses.
+   */
+  static int[] addresses(VMInstr instr) {
+    return switch (instr.opcode) {
+      case LOAD, STORE, INC_LOCAL -> new int[]{(int) instr.operand};
+      case LOAD_LOAD -> new int[]{(int) ((Object[]) instr.operand)[0], (int) ((Object[]) instr.operand)[1]};
+      case LOAD_PUSH, LOAD_GETF -> new int[]{(int) ((Object[]) instr.operand)[0]};
+      default -> new int[0];
+    };
+  }
+
+  /**
+   * Get the number of operands an instruction pops (other than CALL
+   * and RET, which depend on the function).
+   */
+  static int pops(OpCode opcode) {
+    return switch (opcode) {
+      case PUSH, LOAD, JMP, READ, ALLOCS, NOP, INC_LOCAL, LOAD_LOAD, LOAD_PUSH, LOAD_GETF, CALL, TAILCALL,
+           RET -> 0;
+      case POP, STORE, NOT, JMPF, JMPT, WRITE, WRITELN, LEN, TOINT, TODBL, TOSTR, WAIT, GETF, ALLOCA,
+           ALLOCA_L, DUP -> 1;
+      case SETI, SETI_U -> 3;
+      default -> 2;
+    };
+  }
+
+  /**
+   * Get the number of values an instruction pushes (other than CALL
+   * and RET, which depend on the function).
+   */
+  static int pushes(OpCode opcode) {
+    return switch (opcode) {
+      case POP, STORE, JMP, JMPF, JMPT, WRITE, WRITELN, SETF, SETI, SETI_U, NOP, INC_LOCAL, CMPLT_JMPF, CMPLE_JMPF,
+           CMPEQ_JMPF, CMPNE_JMPF, CMPLT_JMPT, CMPLE_JMPT, CALL, TAILCALL, RET -> 0;
+      case DUP, LOAD_LOAD, LOAD_PUSH -> 2;
+      default -> 1;
+    };
+  }
+
+  /**
+   * Follow a template's control flow from its entry, checking each
+   * reachable instruction.
+   */
+  private Summary analyze(VMFrameTemplate template) {
+    List<VMInstr> instrs = template.instructions;
+    // the prologue of STORE(numParams), STORE(numParams + 1), ...
+    int numParams = template.numParams;
+    int prologue = 0;
+    while (prologue < instrs.size() && instrs.get(prologue).opcode == OpCode.STORE &&
+            instrs.get(prologue).operand.equals(numParams)) {
+      ++numParams;
+      ++prologue;
+    }
+    int maxLocals = Math.max(template.maxLocals, numParams);
+    for (VMInstr instr : instrs)
+      for (int address : addresses(instr))
+        maxLocals = Math.max(maxLocals, address + 1);
+
+    // the stack height and stored addresses before each instruction
+    // (null if not reached)
+    int[] heights = new int[instrs.size() + 1];
+    BitSet[] stored = new BitSet[instrs.size() + 1];
+    Deque<Integer> worklist = new ArrayDeque<>();
+    heights[prologue] = 0;
+    stored[prologue] = new BitSet();
+    stored[prologue].set(0, numParams);
+    worklist.push(prologue);
+    int maxStack = 0;
+    int minStack = 0;
+    Integer returns = null;
+
+    while (!worklist.isEmpty()) {
+      int i = worklist.pop();
+      if (i == instrs.size())
+        continue;
+      VMInstr instr = instrs.get(i);
+      int height = heights[i];
+      BitSet assigned = (BitSet) stored[i].clone();
+      // operand stack
+      int pops = pops(instr.opcode);
+      int pushes = pushes(instr.opcode);
+      boolean returnsHere = true;
+      if (instr.isCall()) {
+        Summary callee = summaries.get((String) instr.operand);
+        if (callee == null || callee.returns() == null)
+          returnsHere = false;
+        else {
+          pops = callee.numParams() + callee.stackArgs();
+          pushes = callee.stackArgs() + callee.returns();
+        }
+      }
+      if (height - pops < minStack) {
+        minStack = height - pops;
+        if (maxLocals > 0)
+          error("Operand stack underflow", template, i);
+      }
+      height += pushes - pops;
+      maxStack = Math.max(maxStack, height);
+      // memory
+      for (int address : addresses(instr)) {
+        if (instr.opcode == OpCode.STORE) {
+          if (address >= template.maxLocals && address > assigned.nextClearBit(0))
+            error("Invalid store index", template, i);
+          assigned.set(address);
+        }
+        else if (!assigned.get(address))
+          error("Invalid load index", template, i);
+      }
+      // successors
+      if (instr.opcode == OpCode.RET) {
+        if (returns != null && returns != height)
+          error("Inconsistent number of returned values", template, i);
+        returns = height;
+        continue;
+      }
+      if (!returnsHere)
+        continue;
+      if (instr.isJump())
+        merge(template, i, (int) instr.operand, height, assigned, heights, stored, worklist);
+      if (instr.opcode != OpCode.JMP)
+        merge(template, i, i + 1, height, assigned, heights, stored, worklist);
+    }
+    return new Summary(numParams, prologue, maxLocals, maxStack, -minStack, returns);
+  }
+
+  /**
+   * Merge the state after instruction i into the state before one of
+   * its successors, adding the successor to the worklist if its state
+   * changed.
+   */
+  private void merge(VMFrameTemplate template, int i, int target, int height, BitSet assigned,
+                     int[] heights, BitSet[] stored, Deque<Integer> worklist) {
+    if (stored[target] == null) {
+      heights[target] = height;
+      stored[target] = (BitSet) assigned.clone();
+      worklist.push(target);
+    } else if (heights[target] != height) {
+      error("Inconsistent stack height at " + target, template, i);
+    } else if (!assigned.equals(stored[target])) {
+      // only addresses stored on every path stay assigned
+      int before = stored[target].cardinality();
+      stored[target].and(assigned);
+      if (stored[target].cardinality() != before)
+        worklist.push(target);
+    }
+  }
+
+}
@@ -0,0 +1,384 @@
+/**
+ * CPSC 326, Spring 2025
+ * Global value numbering of generated VM code.
+ */
+
+package cpsc326;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import cpsc326.ControlFlowGraph.BasicBlock;
+
+
+/**
+ * Removes recomputation of values across each frame template's
+ * control flow graph. The instructions of each block are run
+ * symbolically, giving each operand stack entry a value: an
+ * expression of constants and locals built by the instructions that
+ * can't have side effects (see isPure). A STORE records the value
+ * held by its local, until the local or a local the value uses is
+ * stored again. The values held at the start of a block are those
+ * held at the end of all of its predecessors.
+ * <p>
+ * Values can also read struct fields and array elements (GETF and
+ * GETI), until a SETF of the same field, a SETI, or a call (or
+ * thread) might change them. As other threads can change the heap
+ * too, these values are only tracked within a block. Then:
+ * <pre>
+ *   LOAD(x)              =>  PUSH(c)    if x holds the constant c
+ *   LOAD(x)              =>  LOAD(y)    if x holds a copy of y
+ *   ... (value v)        =>  LOAD(t)    if t holds v
+ *   ... (value v) POP    =>  (removed)  if computing v can't fail
+ * </pre>
+ * where "..." is the sequence of instructions that computed the
+ * value. Replacing a sequence by a LOAD is safe even if it can fail,
+ * since the value held was already computed from the same operands.
+ */
+public class ValueNumberer {
+
+  /**
+   * An expression of constants (PUSH) and the values of locals
+   * (LOAD) built by pure instructions.
+   *
+   * @param opcode   the instruction computing the value
+   * @param operand  the instruction's operand (or null)
+   * @param operands the values of the instruction's operands
+   */
+  record Value(OpCode opcode, Object operand, List<Value> operands) {
+
+    /**
+     * Check if the value reads the heap with the given instruction
+     * (and operand, if not null).
+     */
+    boolean reads(OpCode read, Object field) {
+      if (opcode == read && (field == null || field.equals(operand)))
+        return true;
+      for (Value value : operands)
+        if (value.reads(read, field))
+          return true;
+      return false;
+    }
+
+    /**
+     * Check if the value reads the heap.
+     */
+    boolean readsHeap() {
+      return reads(OpCode.GETF, null) || readsArray();
+    }
+
+    /**
+     * Check if the value reads an array element.
+     */
+    boolean readsArray() {
+      return reads(OpCode.GETI, null) || reads(OpCode.GETI_U, null);
+    }
+
+    /**
+     * Check if the value uses the given local.
+     */
+    boolean uses(int address) {
+      if (opcode == OpCode.LOAD)
+        return operand.equals(address);
+      for (Value value : operands)
+        if (value.uses(address))
+          return true;
+      return false;
+    }
+  }
+
+  /**
+   * An operand stack entry: its value (or null if unknown) and the
+   * instructions of the block that computed it, from start up to end
+   * (start is -1 if other instructions are in between).
+   */
+  record Entry(Value value, int start, int end) {
+  }
+
+  /**
+   * Symbolically runs the instructions of a block, tracking the
+   * entries on the operand stack and the values held by locals. The
+   * stack starts out with unknown entries.
+   */
+  static class Tracker {
+
+    /* the value held by each local (by address) */
+    final Map<Integer, Value> locals;
+
+    /* the stack entries (top last) */
+    final List<Entry> stack = new ArrayList<>();
+
+    /**
+     * Create a tracker starting with the given values held by locals.
+     */
+    Tracker(Map<Integer, Value> locals) {
+      this.locals = new HashMap<>(locals);
+    }
+
+    /**
+     * Pop the top entry (unknown if it was on the stack at the start).
+     */
+    Entry pop() {
+      return stack.isEmpty() ? new Entry(null, -1, -1) : stack.removeLast();
+    }
+
+    /**
+     * Get the top entry without popping it.
+     */
+    Entry peek() {
+      return stack.isEmpty() ? new Entry(null, -1, -1) : stack.getLast();
+    }
+
+    /**
+     * Forget the values that use a stored local.
+     */
+    void kill(int address) {
+      locals.remove(address);
+      kill(value -> value.uses(address));
+    }
+
+    /**
+     * Forget the values that match a condition.
+     */
+    void kill(Predicate<Value> condition) {
+      locals.values().removeIf(condition);
+      for (int i = 0; i < stack.size(); ++i) {
+        Entry entry = stack.get(i);
+        if (entry.value() != null && condition.test(entry.value()))
+          stack.set(i, new Entry(null, entry.start(), entry.end()));
+      }
+    }
+
+    /**
+     * Forget the values read from the heap that an instruction might
+     * change.
+     */
+    void killWrites(VMInstr instr) {
+      switch (instr.opcode) {
+        case SETF -> kill(value -> value.reads(OpCode.GETF, instr.operand));
+        case SETI, SETI_U -> kill(Value::readsArray);
+        case CALL, TAILCALL, THREAD, WAIT -> kill(Value::readsHeap);
+        default -> {
+        }
+      }
+    }
+
+    /**
+     * Get the lowest local holding a value (or -1 if none).
+     */
+    int holder(Value value) {
+      int holder = -1;
+      for (var local : locals.entrySet())
+        if (local.getValue().equals(value) && (holder < 0 || local.getKey() < holder))
+          holder = local.getKey();
+      return holder;
+    }
+
+    /**
+     * Run the instruction at index i of the block.
+     */
+    void step(VMInstr instr, int i) {
+      OpCode opcode = instr.opcode;
+      killWrites(instr);
+      switch (opcode) {
+        case PUSH -> stack.add(new Entry(new Value(opcode, instr.operand, List.of()), i, i + 1));
+        case LOAD -> {
+          Value value = locals.get((int) instr.operand);
+          if (value == null)
+            value = new Value(opcode, instr.operand, List.of());
+          stack.add(new Entry(value, i, i + 1));
+        }
+        case STORE -> {
+          Entry entry = pop();
+          int address = (int) instr.operand;
+          kill(address);
+          if (entry.value() != null && !entry.value().uses(address))
+            locals.put(address, entry.value());
+        }
+        case DUP -> {
+          Entry entry = peek();
+          stack.add(new Entry(entry.value(), -1, i + 1));
+        }
+        // the number of operands of a call isn't known here
+        case CALL, TAILCALL, RET -> stack.clear();
+        default -> {
+          int pops = VMVerifier.pops(opcode);
+          List<Entry> operands = new ArrayList<>();
+          for (int j = 0; j < pops; ++j)
+            operands.addFirst(pop());
+          if (isPure(opcode) || isRead(opcode)) {
+            List<Value> values = new ArrayList<>();
+            boolean contiguous = true;
+            int end = i;
+            for (Entry entry : operands.reversed()) {
+              values.addFirst(entry.value());
+              contiguous &= entry.start() >= 0 && entry.end() == end;
+              end = entry.start();
+            }
+            Value value = values.contains(null) ? null : new Value(opcode, instr.operand, values);
+            stack.add(new Entry(value, contiguous ? end : -1, i + 1));
+            return;
+          }
+          if (opcode == OpCode.INC_LOCAL)
+            kill((int) instr.operand);
+          for (int j = 0; j < VMVerifier.pushes(opcode); ++j)
+            stack.add(new Entry(null, -1, i + 1));
+        }
+      }
+    }
+  }
+
+  /**
+   * A replacement of the instructions of a block from start up to end.
+   */
+  private record Replacement(int start, int end, List<VMInstr> instructions) {
+  }
+
+
+  /**
+   * Check if an instruction computes one value from its operands
+   * without side effects (other than possibly failing).
+   */
+  static boolean isPure(OpCode opcode) {
+    return switch (opcode) {
+      case ADD, SUB, MUL, DIV, CMPLT, CMPLE, CMPEQ, CMPNE, AND, OR, NOT, IADD, DADD, SCONCAT, ISUB, DSUB,
+           IMUL, DMUL, IDIV, DDIV, ICMPLT, DCMPLT, SCMPLT, ICMPLE, DCMPLE, SCMPLE, ICMPEQ, ICMPNE, LEN,
+           GETC, TOINT, TODBL, TOSTR -> true;
+      default -> false;
+    };
+  }
+
+  /**
+   * Check if an instruction reads a struct field or array element.
+   */
+  static boolean isRead(OpCode opcode) {
+    return opcode == OpCode.GETF || opcode == OpCode.GETI || opcode == OpCode.GETI_U;
+  }
+
+  /**
+   * Check if an instruction can't fail (or have side effects).
+   */
+  static boolean cannotFail(OpCode opcode) {
+    return switch (opcode) {
+      case PUSH, LOAD, CMPEQ, CMPNE, ICMPEQ, ICMPNE -> true;
+      default -> false;
+    };
+  }
+
+  /**
+   * Number the values in each of the given VM's frame templates. This
+   * should be done before the VM is linked.
+   *
+   * @param vm the vm whose templates are optimized
+   */
+  public void optimize(VM vm) {
+    for (VMFrameTemplate template : vm.templates().values())
+      optimize(template);
+  }
+
+  /**
+   * Number the values in the given frame template.
+   *
+   * @param template the template to optimize
+   */
+  public void optimize(VMFrameTemplate template) {
+    if (!ControlFlowGraph.isValid(template))
+      return;
+    ControlFlowGraph graph = new ControlFlowGraph(template);
+    List<Map<Integer, Value>> held = heldValues(graph);
+    boolean changed = false;
+    for (BasicBlock block : graph.blocks)
+      if (held.get(block.index) != null)
+        changed |= rewrite(block, held.get(block.index));
+    if (changed)
+      graph.lower();
+  }
+
+  /**
+   * Find the values held by locals at the start of each block (or
+   * null for unreachable blocks), intersecting the values held at the
+   * end of each predecessor until nothing changes.
+   */
+  private List<Map<Integer, Value>> heldValues(ControlFlowGraph graph) {
+    List<Map<Integer, Value>> held = new ArrayList<>();
+    for (BasicBlock block : graph.blocks)
+      held.add(null);
+    held.set(0, Map.of());
+    List<BasicBlock> order = graph.reversePostorder();
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (BasicBlock block : order) {
+        Tracker tracker = new Tracker(held.get(block.index));
+        for (int i = 0; i < block.instructions.size(); ++i)
+          tracker.step(block.instructions.get(i), i);
+        for (BasicBlock successor : block.successors) {
+          Map<Integer, Value> before = held.get(successor.index);
+          Map<Integer, Value> after = new HashMap<>(tracker.locals);
+          after.values().removeIf(Value::readsHeap);
+          if (before != null)
+            after.entrySet().removeIf(local -> !local.getValue().equals(before.get(local.getKey())));
+          if (!after.equals(before)) {
+            held.set(successor.index, after);
+            changed = true;
+          }
+        }
+      }
+    }
+    return held;
+  }
+
+  /**
+   * Rewrite a block's instructions that recompute held values.
+   *
+   * @return true if any instructions were rewritten
+   */
+  private boolean rewrite(BasicBlock block, Map<Integer, Value> held) {
+    List<VMInstr> instrs = block.instructions;
+    List<Replacement> replacements = new ArrayList<>();
+    Tracker tracker = new Tracker(held);
+    for (int i = 0; i < instrs.size(); ++i) {
+      VMInstr instr = instrs.get(i);
+      Entry popped = tracker.peek();
+      tracker.step(instr, i);
+      if (instr.opcode == OpCode.POP) {
+        if (popped.start() >= 0 && popped.end() == i && instrs.subList(popped.start(), i).stream().allMatch(x -> cannotFail(x.opcode)))
+          replace(replacements, popped.start(), i + 1, List.of());
+        continue;
+      }
+      if (instr.opcode != OpCode.LOAD && !isPure(instr.opcode) && !isRead(instr.opcode))
+        continue;
+      Entry entry = tracker.peek();
+      Value value = entry.value();
+      if (value == null || entry.start() < 0)
+        continue;
+      if (instr.opcode == OpCode.LOAD) {
+        if (value.opcode() == OpCode.PUSH)
+          replace(replacements, i, i + 1, List.of(CodeRewriter.copy(VMInstr.PUSH(value.operand()), instr)));
+        else if (value.opcode() == OpCode.LOAD && !value.operand().equals(instr.operand))
+          replace(replacements, i, i + 1, List.of(CodeRewriter.copy(VMInstr.LOAD((int) value.operand()), instr)));
+        continue;
+      }
+      int holder = tracker.holder(value);
+      if (holder >= 0)
+        replace(replacements, entry.start(), i + 1, List.of(CodeRewriter.copy(VMInstr.LOAD(holder), instr)));
+    }
+    for (Replacement replacement : replacements.reversed()) {
+      instrs.subList(replacement.start(), replacement.end()).clear();
+      instrs.addAll(replacement.start(), replacement.instructions());
+    }
+    return !replacements.isEmpty();
+  }
+
+  /**
+   * Add a replacement, dropping the replacements within it.
+   */
+  private void replace(List<Replacement> replacements, int start, int end, List<VMInstr> instructions) {
+    replacements.removeIf(replacement -> replacement.start() >= start);
+    replacements.add(new Replacement(start, end, instructions));
+  }
+
+}
@@ -17,12 +17,16 @@ public class VarTable {
   private final Deque<List<String>> environments = new ArrayDeque<>();
   // total number of variables that have been added
   private int totalVars = 0;
+  // the most variables in scope at once since the table was empty
+  private int maxVars = 0;
 
 
   /**
    *
    */
   public void pushEnvironment() {
+    if (environments.isEmpty())
+      maxVars = 0;
     environments.push(new ArrayList<>());
   }
 
@@ -43,6 +47,7 @@ public class VarTable {
     if (environments.size() > 0) {
       environments.peek().add(varName);
       ++totalVars;
+      maxVars = Math.max(maxVars, totalVars);
     }
   }
 
@@ -60,6 +65,18 @@ public class VarTable {
     return -1;
   }
 
+  /**
+   * Gives the most variables that were in scope at once since the
+   * outermost environment was pushed. Variables in sibling
+   * environments share indexes, so this is the number of indexes
+   * used.
+   *
+   * @return the maximum number of variables
+   */
+  public int maxVars() {
+    return maxVars;
+  }
+
   /**
    * Gives the number of environments in the symbol table
    *
@@ -15,6 +15,8 @@ import java.io.InputStream;
 import java.io.ByteArrayInputStream;
 import java.io.PrintStream;
 import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.List;
 
 
 class CodeGeneratorTests {
@@ -59,6 +61,27 @@ class CodeGeneratorTests {
     p.accept(new CodeGenerator(vm));
     return vm;
   }
+
+  /**
+   * Helper to generate a VM to run with small functions inlined
+   */
+  VM buildInlined(String program) {
+    Lexer lexer = new Lexer(istream(program));
+    ASTParser parser = new ASTParser(lexer);
+    Program p = parser.parse();
+    p.accept(new SemanticChecker());
+    VM vm = new VM();
+    p.accept(new CodeGenerator(vm, true));
+    return vm;
+  }
+
+  /**
+   * Helper to count the calls to a function in a template
+   */
+  long calls(VM vm, String caller, String callee) {
+    return vm.templates().get(caller).instructions.stream()
+            .filter(instr -> instr.isCall() && instr.operand.equals(callee)).count();
+  }
   
   //----------------------------------------------------------------------
   // Getting Started
@@ -279,6 +302,88 @@ class CodeGeneratorTests {
     assertEquals("true false", output.toString());
   }
 
+  @Test
+  void shortCircuitAnd() {
+    String p = """
+      bool t(s: string) {
+        print(s)
+        return true
+      }
+      void main() {
+        var xs: [int] = new int[2]
+        xs[0] = 4
+        xs[1] = 5
+        var i: int = 0
+        while (i < size(xs)) and (xs[i] != null) {
+          print(xs[i])
+          i = i + 1
+        }
+        var x: bool = false and t("a")
+        var y: bool = true and t("b")
+        if false and t("c") {
+          print("d")
+        }
+        print(x)
+        print(y)
+      }
+    """;
+    build(p).run();
+    assertEquals("45bfalsetrue", output.toString());
+  }
+
+  @Test
+  void shortCircuitOr() {
+    String p = """
+      bool t(s: string) {
+        print(s)
+        return true
+      }
+      void main() {
+        var x: bool = true or t("a")
+        var y: bool = false or t("b")
+        var z: bool = false or (false or t("c"))
+        while false or t("d") and false {
+          print("e")
+        }
+        print(x)
+        print(y)
+        print(z)
+      }
+    """;
+    build(p).run();
+    assertEquals("bcdtruetruetrue", output.toString());
+  }
+
+  @Test
+  void shortCircuitNullRightHandSide() {
+    String p = """
+      void main() {
+        var f: bool = false
+        var b: bool = null
+        if f and b {
+          print("a")
+        }
+        else {
+          print("b")
+        }
+        if true or b {
+          print("c")
+        }
+        print(f and b)
+        print(true or b)
+        print(true or null)
+        print(true or (not b))
+      }
+    """;
+    build(p).run();
+    assertEquals("bcfalsetruetruetrue", output.toString());
+    output.reset();
+    VM vm = buildInlined(p);
+    MyPL.optimize(vm);
+    vm.run();
+    assertEquals("bcfalsetruetruetrue", output.toString());
+  }
+
   //----------------------------------------------------------------------
   // COMPARISON OPERATORS
 
@@ -407,6 +512,33 @@ class CodeGeneratorTests {
     assertEquals("falsefalsefalse truetruetrue", output.toString());
   }
 
+  @Test
+  void testTypedComparisonsWithNullValues() {
+    String p = """
+      void main() {
+        var a: int = null
+        var b: int = null
+        var c: int = 0
+        var d: bool = null
+        print((a == b) and (a != c) and (d != true) and (d != false))
+      }
+    """;
+    build(p).run();
+    assertEquals("true", output.toString());
+  }
+
+  @Test
+  void testTypedArithmeticWithNullValue() {
+    String p = """
+      void main() {
+        var a: int = null
+        print(a + 1)
+      }
+    """;
+    Exception e = assertThrows(MyPLException.class, () -> build(p).run());
+    assertTrue(e.getMessage().startsWith("VM_ERROR: "));
+  }
+
   //----------------------------------------------------------------------
   // WHILE LOOPS
 
@@ -425,6 +557,31 @@ class CodeGeneratorTests {
     assertEquals("5", output.toString());
   }
 
+  @Test
+  void whileCompoundConditions() {
+    String p = """
+      void main() {
+        var i: int = 0
+        while (i < 5) and not (i == 3) {
+          print(i)
+          i = i + 1
+        }
+        while (i == 3) or (i > 3) and (i < 6) {
+          print(i)
+          i = i + 1
+        }
+        if not (i == 5) or (i < 0) {
+          print("x")
+        }
+        for j from 3 to 1 {
+          print("y")
+        }
+      }
+    """;
+    build(p).run();
+    assertEquals("012345x", output.toString());
+  }
+
   @Test
   void moreInvolvedWhile() {
     String p = """
@@ -516,6 +673,26 @@ class CodeGeneratorTests {
     assertEquals("0 1 2 3 4 32", output.toString());
   }
 
+  @Test
+  void forBodyShadowsBound() {
+    String p = """
+      void main() {
+        var n: int = 3
+        for j from 0 to n {
+          var n: int = 1
+          print(j + n)
+        }
+      }
+    """;
+    build(p).run();
+    assertEquals("1234", output.toString());
+    output.reset();
+    VM vm = buildInlined(p);
+    MyPL.optimize(vm);
+    vm.run();
+    assertEquals("1234", output.toString());
+  }
+
   //----------------------------------------------------------------------
   // IF STATEMENTS
 
@@ -702,6 +879,53 @@ class CodeGeneratorTests {
     assertEquals("redblue!green!", output.toString());
   }
 
+  @Test
+  void frameSizes() {
+    String p = """
+      int f(x: int, y: int) {
+        if x < y {
+          var a: int = x
+          var b: int = y
+          return a + b
+        }
+        else {
+          var c: int = x
+          return c
+        }
+      }
+      void main() {
+        print(f(1, 2))
+        print(f(2, 1))
+      }
+    """;
+    VM vm = build(p);
+    assertEquals(2, vm.templates().get("f").numParams);
+    assertEquals(4, vm.templates().get("f").maxLocals);
+    assertEquals(0, vm.templates().get("main").maxLocals);
+    vm.run();
+    assertEquals("32", output.toString());
+  }
+
+  @Test
+  void tailRecursion() {
+    String p = """
+      int count(n: int, acc: int) {
+        if n == 0 {
+          return acc
+        }
+        return count(n - 1, acc + 1)
+      }
+      void main() {
+        print(count(200000, 0))
+      }
+    """;
+    VM vm = build(p);
+    assertTrue(vm.templates().get("count").instructions.stream()
+               .anyMatch(instr -> instr.opcode == OpCode.TAILCALL));
+    vm.run();
+    assertEquals("200000", output.toString());
+  }
+
   @Test
   void basicRecursion() {
     String p = """
@@ -746,6 +970,294 @@ class CodeGeneratorTests {
     assertEquals("21", output.toString());
   }
   
+  @Test
+  void inlinedLeafFunctions() {
+    String p = """
+      struct Point {
+        x: int,
+        y: int
+      }
+      int get_x(p: Point) {
+        return p.x
+      }
+      int max(a: int, b: int) {
+        if a < b {
+          return b
+        }
+        return a
+      }
+      void show(x: int) {
+        print(x)
+      }
+      void main() {
+        var p: Point = new Point(3, 4)
+        var m: int = max(get_x(p), p.y)
+        show(m)
+        show(max(m + 1, 2))
+      }
+    """;
+    VM vm = buildInlined(p);
+    assertEquals(0, calls(vm, "main", "get_x") + calls(vm, "main", "max") + calls(vm, "main", "show"));
+    vm.run();
+    assertEquals("45", output.toString());
+  }
+
+  @Test
+  void inlinedLocalsKeepCallerVariables() {
+    String p = """
+      int sum_to(n: int) {
+        var total: int = 0
+        for i from 1 to n {
+          total = total + i
+        }
+        return total
+      }
+      void main() {
+        var total: int = 10
+        for i from 1 to 3 {
+          var s: int = sum_to(i) + sum_to(i)
+          print(s + total)
+          print(" ")
+        }
+        print(total)
+      }
+    """;
+    VM vm = buildInlined(p);
+    assertEquals(0, calls(vm, "main", "sum_to"));
+    vm.run();
+    assertEquals("12 16 22 10", output.toString());
+  }
+
+  @Test
+  void inlinedRecursionBounded() {
+    String p = """
+      int sum(n: int) {
+        if n <= 0 {
+          return 0
+        }
+        return n + sum(n - 1)
+      }
+      void main() {
+        print(sum(100))
+      }
+    """;
+    VM vm = buildInlined(p);
+    // inlined into itself once, and into main with one level unrolled
+    assertEquals(1, calls(vm, "sum", "sum"));
+    assertEquals(1, calls(vm, "main", "sum"));
+    vm.run();
+    assertEquals("5050", output.toString());
+  }
+
+  @Test
+  void countedLoopAccessesUnchecked() {
+    String p = """
+      void main() {
+        var xs: [int] = new int[5]
+        for i from 0 to size(xs) - 1 {
+          xs[i] = i * i
+        }
+        var s: int = 0
+        for i from 1 to size(xs) - 1 {
+          s = s + xs[i] - xs[i - 1]
+        }
+        print(s)
+      }
+    """;
+    VM vm = build(p);
+    List<OpCode> main = vm.templates().get("main").instructions.stream().map(i -> i.opcode).toList();
+    // xs[i - 1] is still checked
+    assertEquals(1, Collections.frequency(main, OpCode.SETI_U));
+    assertEquals(1, Collections.frequency(main, OpCode.GETI_U));
+    assertEquals(1, Collections.frequency(main, OpCode.GETI));
+    vm.run();
+    assertEquals("16", output.toString());
+  }
+
+  @Test
+  void typedArraysOfEachType() {
+    String p = """
+      struct P {
+        x: int
+      }
+      void main() {
+        var xs: [int] = new int[2]
+        var ys: [double] = new double[2]
+        var zs: [bool] = new bool[2]
+        var ps: [P] = new P[2]
+        xs[0] = 3
+        ys[0] = 1.5
+        zs[0] = true
+        ps[0] = new P(4)
+        print(xs[0] + xs[0])
+        print(ys[0] * 2.0)
+        print(not zs[0])
+        print(ps[0].x)
+        print(xs[1])
+        print(ys[1])
+        print(zs[1])
+        print(ps[1] == null)
+      }
+    """;
+    VM vm = build(p);
+    vm.run();
+    assertEquals("63.0false4nullnullnulltrue", output.toString());
+  }
+
+  @Test
+  void reassignedArrayAccessesChecked() {
+    String p = """
+      void main() {
+        var xs: [int] = new int[5]
+        var ys: [int] = new int[2]
+        for i from 0 to size(xs) - 1 {
+          xs[i] = i
+          if i == 2 {
+            xs = ys
+          }
+        }
+        for i from 0 to 3 {
+          ys[i] = i
+        }
+      }
+    """;
+    VM vm = build(p);
+    List<OpCode> main = vm.templates().get("main").instructions.stream().map(i -> i.opcode).toList();
+    assertEquals(0, Collections.frequency(main, OpCode.SETI_U));
+    Exception e = assertThrows(MyPLException.class, () -> vm.run());
+    assertTrue(e.getMessage().startsWith("VM_ERROR: "));
+  }
+
+  @Test
+  void localStructFieldsInLocals() {
+    String p = """
+      struct Node {
+        val: int,
+        next: Node
+      }
+      void main() {
+        var n: Node = new Node(1, null)
+        var tmp: Node = new Node(2, new Node(3, null))
+        n.next = tmp.next
+        n.val = n.val + tmp.val + n.next.val
+        print(n.val)
+        print(tmp.next.val)
+      }
+    """;
+    VM vm = buildInlined(p);
+    List<OpCode> main = vm.templates().get("main").instructions.stream().map(i -> i.opcode).toList();
+    // only new Node(3, null) is an actual struct
+    assertEquals(1, Collections.frequency(main, OpCode.ALLOCS));
+    assertEquals(2, Collections.frequency(main, OpCode.GETF));
+    vm.run();
+    assertEquals("63", output.toString());
+  }
+
+  @Test
+  void localArraysAllocatedInArena() {
+    String p = """
+      int sum(n: int) {
+        var xs: [int] = new int[n]
+        var s: int = 0
+        for i from 0 to size(xs) - 1 {
+          if xs[i] == null {
+            xs[i] = i
+          }
+          s = s + xs[i]
+        }
+        return s
+      }
+      void main() {
+        var t: int = 0
+        for n from 1 to 100 {
+          t = t + sum(n - (n / 4) * 4)
+        }
+        print(t)
+      }
+    """;
+    VM vm = buildInlined(p);
+    List<OpCode> sum = vm.templates().get("sum").instructions.stream().map(i -> i.opcode).toList();
+    assertEquals(1, Collections.frequency(sum, OpCode.ALLOCA_L));
+    assertEquals(0, Collections.frequency(sum, OpCode.ALLOCA));
+    vm.run();
+    // each call's array starts out null, whether reused or not
+    assertEquals("100", output.toString());
+  }
+
+  @Test
+  void fieldsAccessedBySlot() {
+    String p = """
+      struct Pair {
+        x: int,
+        y: int
+      }
+      void main() {
+        var p: Pair = new Pair(1, 2)
+        var q: Pair = p
+        q.y = q.x + q.y
+        print(p.y)
+      }
+    """;
+    VM vm = build(p);
+    for (VMInstr instr : vm.templates().get("main").instructions) {
+      if (instr.opcode == OpCode.GETF || instr.opcode == OpCode.SETF) {
+        VMShape.Field field = (VMShape.Field) instr.operand;
+        assertEquals(field.name().equals("x") ? 0 : 1, field.slot());
+        assertEquals("Pair", field.shape().name);
+      }
+    }
+    vm.run();
+    assertEquals("3", output.toString());
+  }
+
+  @Test
+  void noCodeAfterReturn() {
+    String p = """
+      int f(x: int) {
+        return x
+        print(x)
+      }
+      void main() {
+        print(f(3))
+      }
+    """;
+    VM vm = build(p);
+    // just LOAD(0) and RET
+    assertEquals(2, vm.templates().get("f").instructions.size());
+    vm.run();
+    assertEquals("3", output.toString());
+  }
+
+  @Test
+  void noReturnNullWhenAllBranchesReturn() {
+    String p = """
+      string sign(x: int) {
+        if x < 0 {
+          return "-"
+        }
+        else if x == 0 {
+          return "0"
+        }
+        else {
+          return "+"
+        }
+      }
+      void main() {
+        print(sign(0 - 2) + sign(0) + sign(2))
+      }
+    """;
+    VM vm = build(p);
+    VMFrameTemplate sign = vm.templates().get("sign");
+    assertEquals(OpCode.RET, sign.instructions.getLast().opcode);
+    assertEquals(0, sign.instructions.stream().filter(i -> i.opcode == OpCode.JMP).count());
+    assertEquals(0, sign.instructions.stream().filter(i -> i.opcode == OpCode.PUSH && i.operand == VM.NULL).count());
+    vm.run();
+    assertEquals("-0+", output.toString());
+    output.reset();
+    buildInlined(p).run();
+    assertEquals("-0+", output.toString());
+  }
+
   //----------------------------------------------------------------------
   // STRUCTS
 
@@ -0,0 +1,250 @@
+/**
+ * CPSC 326, Spring 2025
+ * Unit tests for constant folding and propagation.
+ */
+
+package cpsc326;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.AfterEach;
+import java.io.InputStream;
+import java.io.ByteArrayInputStream;
+import java.io.PrintStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+
+class ConstantFolderTests {
+
+  /** For dealing with program output **/
+  private PrintStream stdout = System.out;
+  private ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+  @BeforeEach
+  public void changeSystemOut() {
+    // redirect System.out to output
+    System.setOut(new PrintStream(output));
+  }
+
+  @AfterEach
+  public void restoreSystemOut() {
+    // reset System.out to standard out
+    System.setOut(stdout);
+  }
+
+  /**
+   * Helper to build an input string.
+   */
+  InputStream istream(String str) {
+    try {
+      return new ByteArrayInputStream(str.getBytes("UTF-8"));
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    return null;
+  }
+
+  /**
+   * Helper to generate and fold a VM to run
+   */
+  VM build(String program) {
+    Lexer lexer = new Lexer(istream(program));
+    ASTParser parser = new ASTParser(lexer);
+    Program p = parser.parse();
+    p.accept(new SemanticChecker());
+    VM vm = new VM();
+    p.accept(new CodeGenerator(vm));
+    new ConstantFolder().optimize(vm);
+    return vm;
+  }
+
+  /**
+   * Helper to get the opcodes of a template
+   */
+  List<OpCode> opcodes(VMFrameTemplate template) {
+    return template.instructions.stream().map(instr -> instr.opcode).toList();
+  }
+
+  //----------------------------------------------------------------------
+  // Folding
+
+  @Test
+  void foldArithmetic() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(2));
+    m.add(VMInstr.PUSH(3));
+    m.add(VMInstr.PUSH(4));
+    m.add(VMInstr.MUL());
+    m.add(VMInstr.ADD());
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.PUSH(7.0));
+    m.add(VMInstr.PUSH(2.0));
+    m.add(VMInstr.DDIV());
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.PUSH("ab"));
+    m.add(VMInstr.PUSH("cd"));
+    m.add(VMInstr.SCONCAT());
+    m.add(VMInstr.WRITE());
+    new ConstantFolder().optimize(m);
+    assertEquals(List.of(OpCode.PUSH, OpCode.WRITE, OpCode.PUSH, OpCode.WRITE, OpCode.PUSH, OpCode.WRITE),
+            opcodes(m));
+    VM vm = new VM();
+    vm.add(m);
+    vm.run();
+    assertEquals("143.5abcd", output.toString());
+  }
+
+  @Test
+  void foldLogicAndComparisons() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(true));
+    m.add(VMInstr.NOT());
+    m.add(VMInstr.PUSH(3));
+    m.add(VMInstr.PUSH(4));
+    m.add(VMInstr.CMPLT());
+    m.add(VMInstr.OR());
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.PUSH(VM.NULL));
+    m.add(VMInstr.PUSH(VM.NULL));
+    m.add(VMInstr.CMPEQ());
+    m.add(VMInstr.WRITE());
+    new ConstantFolder().optimize(m);
+    assertEquals(List.of(OpCode.PUSH, OpCode.WRITE, OpCode.PUSH, OpCode.WRITE), opcodes(m));
+    VM vm = new VM();
+    vm.add(m);
+    vm.run();
+    assertEquals("truetrue", output.toString());
+  }
+
+  @Test
+  void divisionByZeroNotFolded() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.PUSH(0));
+    m.add(VMInstr.DIV());
+    new ConstantFolder().optimize(m);
+    assertEquals(List.of(OpCode.PUSH, OpCode.PUSH, OpCode.DIV), opcodes(m));
+    VM vm = new VM();
+    vm.add(m);
+    Exception e = assertThrows(MyPLException.class, () -> vm.run());
+    assertTrue(e.getMessage().startsWith("VM_ERROR: "));
+  }
+
+  @Test
+  void nullOperandNotFolded() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.PUSH(VM.NULL));
+    m.add(VMInstr.ADD());
+    new ConstantFolder().optimize(m);
+    assertEquals(List.of(OpCode.PUSH, OpCode.PUSH, OpCode.ADD), opcodes(m));
+  }
+
+  @Test
+  void constantBranches() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(true));
+    m.add(VMInstr.JMPF(4));
+    m.add(VMInstr.PUSH("a"));
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.PUSH(false));
+    m.add(VMInstr.JMPF(8));
+    m.add(VMInstr.PUSH("b"));
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.PUSH("c"));
+    m.add(VMInstr.WRITE());
+    new ConstantFolder().optimize(m);
+    assertEquals(List.of(OpCode.PUSH, OpCode.WRITE, OpCode.JMP, OpCode.PUSH, OpCode.WRITE, OpCode.PUSH,
+            OpCode.WRITE), opcodes(m));
+    assertEquals(5, m.get(2).operand);
+    VM vm = new VM();
+    vm.add(m);
+    vm.run();
+    assertEquals("ac", output.toString());
+  }
+
+  @Test
+  void constantJumpTrue() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(false));
+    m.add(VMInstr.JMPT(4));
+    m.add(VMInstr.PUSH("a"));
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.PUSH(true));
+    m.add(VMInstr.JMPT(8));
+    m.add(VMInstr.PUSH("b"));
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.PUSH("c"));
+    m.add(VMInstr.WRITE());
+    new ConstantFolder().optimize(m);
+    assertEquals(List.of(OpCode.PUSH, OpCode.WRITE, OpCode.JMP, OpCode.PUSH, OpCode.WRITE, OpCode.PUSH,
+            OpCode.WRITE), opcodes(m));
+    VM vm = new VM();
+    vm.add(m);
+    vm.run();
+    assertEquals("ac", output.toString());
+  }
+
+  //----------------------------------------------------------------------
+  // Propagation
+
+  @Test
+  void propagateSingleStore() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(3));
+    m.add(VMInstr.STORE(0));
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.MUL());
+    m.add(VMInstr.WRITE());
+    new ConstantFolder().optimize(m);
+    assertEquals(List.of(OpCode.PUSH, OpCode.STORE, OpCode.PUSH, OpCode.WRITE), opcodes(m));
+    assertEquals(9, m.get(2).operand);
+  }
+
+  @Test
+  void noPropagationOfReassignedLocal() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(3));
+    m.add(VMInstr.STORE(0));
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.ADD());
+    m.add(VMInstr.STORE(0));
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.WRITE());
+    new ConstantFolder().optimize(m);
+    assertEquals(OpCode.LOAD, m.get(2).opcode);
+    assertEquals(OpCode.LOAD, m.get(6).opcode);
+  }
+
+  @Test
+  void foldedProgram() {
+    String p = """
+      void main() {
+        var n: int = 2 * 3
+        var s: string = "a" + "b"
+        var d: double = 1.5
+        var x: int = 0
+        for i from 1 to n {
+          x = x + n
+        }
+        if not false and (n > 5) {
+          println(s + str_val(d))
+        }
+        print(x)
+      }
+    """;
+    VM vm = build(p);
+    vm.run();
+    assertEquals("ab1.5\n36", output.toString());
+    // the string built in the if statement is a single constant
+    assertTrue(vm.templates().get("main").instructions.stream()
+            .anyMatch(instr -> instr.opcode == OpCode.PUSH && "ab1.5".equals(instr.operand)));
+  }
+
+}
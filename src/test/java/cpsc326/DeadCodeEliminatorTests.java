@@ -0,0 +1,187 @@
+/**
+ * CPSC 326, Spring 2025
+ * Unit tests for dead code and dead store elimination.
+ */
+
+package cpsc326;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.AfterEach;
+import java.io.InputStream;
+import java.io.ByteArrayInputStream;
+import java.io.PrintStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+
+class DeadCodeEliminatorTests {
+
+  /** For dealing with program output **/
+  private PrintStream stdout = System.out;
+  private ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+  @BeforeEach
+  public void changeSystemOut() {
+    // redirect System.out to output
+    System.setOut(new PrintStream(output));
+  }
+
+  @AfterEach
+  public void restoreSystemOut() {
+    // reset System.out to standard out
+    System.setOut(stdout);
+  }
+
+  /**
+   * Helper to build an input string.
+   */
+  InputStream istream(String str) {
+    try {
+      return new ByteArrayInputStream(str.getBytes("UTF-8"));
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    return null;
+  }
+
+  /**
+   * Helper to generate and optimize a VM to run
+   */
+  VM build(String program) {
+    Lexer lexer = new Lexer(istream(program));
+    ASTParser parser = new ASTParser(lexer);
+    Program p = parser.parse();
+    p.accept(new SemanticChecker());
+    VM vm = new VM();
+    p.accept(new CodeGenerator(vm));
+    new DeadCodeEliminator().optimize(vm);
+    return vm;
+  }
+
+  /**
+   * Helper to get the instructions of a template as strings
+   */
+  List<String> code(VMFrameTemplate template) {
+    return template.instructions.stream().map(VMInstr::toString).toList();
+  }
+
+  //----------------------------------------------------------------------
+  // Unreachable code
+
+  @Test
+  void unreachableBlockRemoved() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.JMP(3));
+    m.add(VMInstr.PUSH("a"));
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.PUSH("b"));
+    m.add(VMInstr.WRITE());
+    new DeadCodeEliminator().optimize(m);
+    assertEquals(List.of("JMP(1)", "PUSH(b)", "WRITE()"), code(m));
+  }
+
+  @Test
+  void codeAfterReturnRemoved() {
+    VMFrameTemplate m = new VMFrameTemplate("f");
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.RET());
+    m.add(VMInstr.PUSH(VM.NULL));
+    m.add(VMInstr.RET());
+    new DeadCodeEliminator().optimize(m);
+    assertEquals(List.of("PUSH(1)", "RET()"), code(m));
+  }
+
+  //----------------------------------------------------------------------
+  // Dead stores
+
+  @Test
+  void deadStoreRemoved() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.numParams = 1;
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.STORE(1));
+    m.add(VMInstr.PUSH(2));
+    m.add(VMInstr.STORE(1));
+    m.add(VMInstr.LOAD(1));
+    m.add(VMInstr.WRITE());
+    new DeadCodeEliminator().optimize(m);
+    assertEquals(List.of("PUSH(2)", "STORE(1)", "LOAD(1)", "WRITE()"), code(m));
+  }
+
+  @Test
+  void deadStoreOfCallPopped() {
+    // the call still happens
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.CALL("f"));
+    m.add(VMInstr.STORE(0));
+    new DeadCodeEliminator().optimize(m);
+    assertEquals(List.of("CALL(f)", "POP()"), code(m));
+  }
+
+  @Test
+  void deadStoreOfFailingValuePopped() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.numParams = 1;
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.IDIV());
+    m.add(VMInstr.STORE(1));
+    new DeadCodeEliminator().optimize(m);
+    assertEquals(List.of("PUSH(1)", "LOAD(0)", "IDIV()", "POP()"), code(m));
+  }
+
+  @Test
+  void storeLiveInLoopKept() {
+    // x is loaded on the next iteration
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(0));
+    m.add(VMInstr.STORE(0));
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.STORE(0));
+    m.add(VMInstr.JMP(2));
+    new DeadCodeEliminator().optimize(m);
+    assertEquals(7, m.instructions.size());
+  }
+
+  @Test
+  void chainedDeadStoresRemoved() {
+    // y is only used by the dead store to z
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.STORE(0));
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.STORE(1));
+    m.add(VMInstr.PUSH("a"));
+    m.add(VMInstr.WRITE());
+    new DeadCodeEliminator().optimize(m);
+    assertEquals(List.of("PUSH(a)", "WRITE()"), code(m));
+  }
+
+  @Test
+  void unusedThreadResultPopped() {
+    String p = """
+      struct Input {
+        x: int
+      }
+      int f(input: Input) {
+        return input.x * 2
+      }
+      void main() {
+        var t: int = thread_create("f", new Input(3))
+        var r: int = thread_wait(t)
+        print("done")
+      }
+    """;
+    VM vm = build(p);
+    List<String> main = code(vm.templates().get("main"));
+    assertEquals(1, main.stream().filter(s -> s.equals("WAIT()")).count());
+    assertEquals(1, main.stream().filter(s -> s.startsWith("STORE")).count());
+    vm.run();
+    assertEquals("done", output.toString());
+  }
+
+}
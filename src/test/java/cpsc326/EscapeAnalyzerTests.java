@@ -0,0 +1,199 @@
+/**
+ * CPSC 326, Spring 2025
+ * Unit tests for escape analysis of struct variables.
+ */
+
+package cpsc326;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+import java.io.InputStream;
+import java.io.ByteArrayInputStream;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+
+class EscapeAnalyzerTests {
+
+  /**
+   * Helper to build an input string.
+   */
+  InputStream istream(String str) {
+    try {
+      return new ByteArrayInputStream(str.getBytes("UTF-8"));
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    return null;
+  }
+
+  /**
+   * Helper to get the names of the struct variables that don't escape
+   */
+  Set<String> localStructs(String program) {
+    Lexer lexer = new Lexer(istream(program));
+    ASTParser parser = new ASTParser(lexer);
+    Program p = parser.parse();
+    p.accept(new SemanticChecker());
+    EscapeAnalyzer analyzer = new EscapeAnalyzer();
+    p.accept(analyzer);
+    return analyzer.localStructs().stream().map(s -> s.varName.lexeme).collect(Collectors.toSet());
+  }
+
+  /**
+   * Helper to get the names of the array variables that don't escape
+   */
+  Set<String> localArrays(String program) {
+    Lexer lexer = new Lexer(istream(program));
+    ASTParser parser = new ASTParser(lexer);
+    Program p = parser.parse();
+    p.accept(new SemanticChecker());
+    EscapeAnalyzer analyzer = new EscapeAnalyzer();
+    p.accept(analyzer);
+    return analyzer.localArrays().stream().map(s -> s.varName.lexeme).collect(Collectors.toSet());
+  }
+
+  static final String PAIR = """
+    struct Pair {
+      x: int,
+      y: int
+    }
+  """;
+
+  @Test
+  void fieldAccessesDontEscape() {
+    String p = PAIR + """
+      void main() {
+        var p: Pair = new Pair(1, 2)
+        p.x = p.x + p.y
+        print(p.x)
+      }
+    """;
+    assertEquals(Set.of("p"), localStructs(p));
+  }
+
+  @Test
+  void passedStructEscapes() {
+    String p = PAIR + """
+      int sum(p: Pair) {
+        return p.x + p.y
+      }
+      void main() {
+        var p: Pair = new Pair(1, 2)
+        var q: Pair = new Pair(3, 4)
+        print(sum(q) + p.x)
+      }
+    """;
+    assertEquals(Set.of("p"), localStructs(p));
+  }
+
+  @Test
+  void returnedAndStoredStructsEscape() {
+    String p = PAIR + """
+      Pair make() {
+        var p: Pair = new Pair(1, 2)
+        return p
+      }
+      void main() {
+        var p: Pair = new Pair(1, 2)
+        var q: Pair = p
+        var r: Pair = new Pair(3, 4)
+        var xs: [Pair] = new Pair[1]
+        xs[0] = r
+      }
+    """;
+    assertEquals(Set.of(), localStructs(p));
+  }
+
+  @Test
+  void reassignedOrComparedStructsEscape() {
+    String p = PAIR + """
+      void main() {
+        var p: Pair = new Pair(1, 2)
+        p = new Pair(3, 4)
+        var q: Pair = new Pair(1, 2)
+        if q != null {
+          print(q.x)
+        }
+        var r: Pair = null
+      }
+    """;
+    assertEquals(Set.of(), localStructs(p));
+  }
+
+  @Test
+  void redeclaredStructEscapes() {
+    String p = PAIR + """
+      void main() {
+        if true {
+          var p: Pair = new Pair(1, 2)
+          print(p.x)
+        }
+        else {
+          var p: Pair = new Pair(3, 4)
+          print(p.y)
+        }
+      }
+    """;
+    assertEquals(Set.of(), localStructs(p));
+  }
+
+  @Test
+  void indexedArraysDontEscape() {
+    String p = PAIR + """
+      void main() {
+        var xs: [int] = new int[3]
+        var ps: [Pair] = new Pair[size(xs)]
+        for i from 0 to size(xs) - 1 {
+          xs[i] = i
+          ps[i] = new Pair(xs[i], 0)
+          ps[i].y = ps[i].x
+        }
+        print(xs[2] + ps[1].y)
+      }
+    """;
+    assertEquals(Set.of("xs", "ps"), localArrays(p));
+  }
+
+  @Test
+  void passedReturnedAndStoredArraysEscape() {
+    String p = """
+      struct Box {
+        xs: [int]
+      }
+      int first(xs: [int]) {
+        return xs[0]
+      }
+      [int] make() {
+        var xs: [int] = new int[1]
+        return xs
+      }
+      void main() {
+        var xs: [int] = new int[1]
+        print(first(xs))
+        var ys: [int] = new int[1]
+        var b: Box = new Box(ys)
+        var zs: [int] = new int[1]
+        var ws: [int] = zs
+      }
+    """;
+    assertEquals(Set.of(), localArrays(p));
+  }
+
+  @Test
+  void arraysDeclaredInLoopsOrReassignedEscape() {
+    String p = """
+      void main() {
+        for i from 0 to 2 {
+          var xs: [int] = new int[1]
+          xs[0] = i
+        }
+        var ys: [int] = new int[1]
+        ys = new int[2]
+        var zs: [int] = null
+      }
+    """;
+    assertEquals(Set.of(), localArrays(p));
+  }
+
+}
@@ -0,0 +1,173 @@
+/**
+ * CPSC 326, Spring 2025
+ * Unit tests for loop-invariant code motion and the control flow graph.
+ */
+
+package cpsc326;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.AfterEach;
+import java.io.InputStream;
+import java.io.ByteArrayInputStream;
+import java.io.PrintStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+
+class LoopOptimizerTests {
+
+  /** For dealing with program output **/
+  private PrintStream stdout = System.out;
+  private ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+  @BeforeEach
+  public void changeSystemOut() {
+    // redirect System.out to output
+    System.setOut(new PrintStream(output));
+  }
+
+  @AfterEach
+  public void restoreSystemOut() {
+    // reset System.out to standard out
+    System.setOut(stdout);
+  }
+
+  /**
+   * Helper to build an input string.
+   */
+  InputStream istream(String str) {
+    try {
+      return new ByteArrayInputStream(str.getBytes("UTF-8"));
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    return null;
+  }
+
+  /**
+   * Helper to generate and optimize a VM to run
+   */
+  VM build(String program) {
+    Lexer lexer = new Lexer(istream(program));
+    ASTParser parser = new ASTParser(lexer);
+    Program p = parser.parse();
+    p.accept(new SemanticChecker());
+    VM vm = new VM();
+    p.accept(new CodeGenerator(vm));
+    new LoopOptimizer().optimize(vm);
+    new ValueNumberer().optimize(vm);
+    return vm;
+  }
+
+  /**
+   * Helper to get the instructions of a template as strings
+   */
+  List<String> code(VMFrameTemplate template) {
+    return template.instructions.stream().map(VMInstr::toString).toList();
+  }
+
+  /**
+   * Helper to build a loop over the array in address 0, with the
+   * given instructions computing its bound:
+   *   0: PUSH(0) STORE(1) JMP(cond) body: INC_LOCAL(1) cond: LOAD(1) bound ICMPLT JMPT(body)
+   */
+  VMFrameTemplate loop(VMInstr... bound) {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.numParams = 1;
+    m.add(VMInstr.PUSH(0));
+    m.add(VMInstr.STORE(1));
+    m.add(VMInstr.JMP(4));
+    m.add(VMInstr.INC_LOCAL(1));
+    m.add(VMInstr.LOAD(1));
+    for (VMInstr instr : bound)
+      m.add(instr);
+    m.add(VMInstr.ICMPLT());
+    m.add(VMInstr.JMPT(3));
+    return m;
+  }
+
+  //----------------------------------------------------------------------
+  // Control flow graph
+
+  @Test
+  void blocksAndLoops() {
+    VMFrameTemplate m = loop(VMInstr.LOAD(0), VMInstr.LEN());
+    ControlFlowGraph graph = new ControlFlowGraph(m);
+    // entry, body, condition, and exit blocks
+    assertEquals(4, graph.blocks.size());
+    ControlFlowGraph.BasicBlock body = graph.blocks.get(1);
+    ControlFlowGraph.BasicBlock condition = graph.blocks.get(2);
+    assertEquals(List.of(condition), graph.blocks.get(0).successors);
+    assertEquals(List.of(body, graph.blocks.get(3)), condition.successors);
+    assertTrue(graph.dominates(condition, body));
+    assertFalse(graph.dominates(body, condition));
+    assertEquals(2, graph.loop(body, condition).cardinality());
+  }
+
+  @Test
+  void loweringFixesJumps() {
+    VMFrameTemplate m = loop(VMInstr.LOAD(0), VMInstr.LEN());
+    ControlFlowGraph graph = new ControlFlowGraph(m);
+    graph.blocks.get(0).instructions.addFirst(VMInstr.NOP());
+    graph.lower();
+    assertEquals("JMP(5)", m.get(3).toString());
+    assertEquals("JMPT(4)", m.get(9).toString());
+  }
+
+  //----------------------------------------------------------------------
+  // Hoisting
+
+  @Test
+  void invariantBoundHoisted() {
+    VMFrameTemplate m = loop(VMInstr.LOAD(0), VMInstr.LEN(), VMInstr.PUSH(1), VMInstr.ISUB());
+    new LoopOptimizer().optimize(m);
+    assertEquals(List.of("PUSH(0)", "STORE(1)", "LOAD(0)", "LEN()", "PUSH(1)", "ISUB()", "STORE(2)", "JMP(9)",
+                         "INC_LOCAL(1)", "LOAD(1)", "LOAD(2)", "ICMPLT()", "JMPT(8)"), code(m));
+    assertEquals(3, m.maxLocals);
+  }
+
+  @Test
+  void variantBoundNotHoisted() {
+    // the bound uses the loop variable
+    VMFrameTemplate m = loop(VMInstr.LOAD(1), VMInstr.PUSH(2), VMInstr.IMUL());
+    new LoopOptimizer().optimize(m);
+    assertEquals(10, m.instructions.size());
+  }
+
+  @Test
+  void boundAfterFailureNotHoisted() {
+    // i / 0 fails before the bound is computed
+    VMFrameTemplate m = loop(VMInstr.PUSH(0), VMInstr.IDIV(), VMInstr.LOAD(0), VMInstr.LEN(), VMInstr.IADD());
+    new LoopOptimizer().optimize(m);
+    assertEquals(12, m.instructions.size());
+  }
+
+  @Test
+  void hoistedProgram() {
+    String p = """
+      void main() {
+        var xs: [int] = new int[4]
+        for i from 0 to size(xs) - 1 {
+          xs[i] = i * (size(xs) - 1)
+        }
+        var i: int = 0
+        var s: string = ""
+        while i < size(xs) {
+          s = s + str_val(xs[i])
+          i = i + 1
+        }
+        print(s)
+      }
+    """;
+    VM vm = build(p);
+    // each loop computes the size once, before the loop
+    assertEquals(2, code(vm.templates().get("main")).stream().filter(s -> s.equals("LEN()")).count());
+    vm.run();
+    assertEquals("0369", output.toString());
+  }
+
+}
@@ -0,0 +1,179 @@
+/**
+ * CPSC 326, Spring 2025
+ * Unit tests for caching struct and array access paths.
+ */
+
+package cpsc326;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.AfterEach;
+import java.io.InputStream;
+import java.io.ByteArrayInputStream;
+import java.io.PrintStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+
+class PathOptimizerTests {
+
+  /** For dealing with program output **/
+  private PrintStream stdout = System.out;
+  private ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+  @BeforeEach
+  public void changeSystemOut() {
+    // redirect System.out to output
+    System.setOut(new PrintStream(output));
+  }
+
+  @AfterEach
+  public void restoreSystemOut() {
+    // reset System.out to standard out
+    System.setOut(stdout);
+  }
+
+  /**
+   * Helper to build an input string.
+   */
+  InputStream istream(String str) {
+    try {
+      return new ByteArrayInputStream(str.getBytes("UTF-8"));
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    return null;
+  }
+
+  /**
+   * Helper to generate and optimize a VM to run
+   */
+  VM build(String program) {
+    Lexer lexer = new Lexer(istream(program));
+    ASTParser parser = new ASTParser(lexer);
+    Program p = parser.parse();
+    p.accept(new SemanticChecker());
+    VM vm = new VM();
+    p.accept(new CodeGenerator(vm));
+    MyPL.optimize(vm);
+    return vm;
+  }
+
+  /**
+   * Helper to get the instructions of a template as strings
+   */
+  List<String> code(VMFrameTemplate template) {
+    return template.instructions.stream().map(VMInstr::toString).toList();
+  }
+
+  /**
+   * Helper to count the instructions of a template with an opcode
+   */
+  long count(VMFrameTemplate template, OpCode opcode) {
+    return template.instructions.stream().filter(instr -> instr.opcode == opcode).count();
+  }
+
+  /**
+   * Helper to build a template writing n.left.right, then running the
+   * given instructions, then writing n.left.right again
+   */
+  VMFrameTemplate paths(VMInstr... between) {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.numParams = 1;
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.GETF("left"));
+    m.add(VMInstr.GETF("right"));
+    m.add(VMInstr.WRITE());
+    for (VMInstr instr : between)
+      m.add(instr);
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.GETF("left"));
+    m.add(VMInstr.GETF("right"));
+    m.add(VMInstr.WRITE());
+    return m;
+  }
+
+  //----------------------------------------------------------------------
+  // Caching
+
+  @Test
+  void repeatedPathCached() {
+    VMFrameTemplate m = paths();
+    new PathOptimizer().optimize(m);
+    assertEquals(List.of("LOAD(0)", "GETF(left)", "GETF(right)", "DUP()", "STORE(1)", "WRITE()", "LOAD(1)",
+                         "WRITE()"), code(m));
+    assertEquals(2, m.maxLocals);
+  }
+
+  @Test
+  void otherFieldSetKeepsPath() {
+    VMFrameTemplate m = paths(VMInstr.LOAD(0), VMInstr.PUSH(1), VMInstr.SETF("val"));
+    new PathOptimizer().optimize(m);
+    assertEquals(2, count(m, OpCode.GETF));
+  }
+
+  @Test
+  void fieldSetChangesPath() {
+    VMFrameTemplate m = paths(VMInstr.LOAD(0), VMInstr.PUSH(null), VMInstr.SETF("right"));
+    new PathOptimizer().optimize(m);
+    // only n.left is still cached
+    assertEquals(List.of("LOAD(1)", "GETF(right)", "WRITE()"), code(m).subList(9, 12));
+    assertEquals(3, count(m, OpCode.GETF));
+  }
+
+  @Test
+  void callChangesPath() {
+    VMFrameTemplate m = paths(VMInstr.CALL("f"), VMInstr.POP());
+    new PathOptimizer().optimize(m);
+    assertEquals(4, count(m, OpCode.GETF));
+  }
+
+  @Test
+  void storeChangesPath() {
+    VMFrameTemplate m = paths(VMInstr.PUSH(null), VMInstr.STORE(0));
+    new PathOptimizer().optimize(m);
+    assertEquals(4, count(m, OpCode.GETF));
+  }
+
+  @Test
+  void arrayElementPathCached() {
+    // xs[i].val twice, with a set of another field in between
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.numParams = 2;
+    for (int j = 0; j < 2; ++j) {
+      m.add(VMInstr.LOAD(0));
+      m.add(VMInstr.LOAD(1));
+      m.add(VMInstr.GETI());
+      m.add(VMInstr.GETF("val"));
+      m.add(VMInstr.WRITE());
+    }
+    new PathOptimizer().optimize(m);
+    assertEquals(1, count(m, OpCode.GETI));
+    assertEquals(1, count(m, OpCode.GETF));
+  }
+
+  @Test
+  void cachedProgram() {
+    String p = """
+      struct Node {
+        val: int,
+        left: Node,
+        right: Node
+      }
+      void main() {
+        var n: Node = new Node(1, new Node(2, null, null), null)
+        n.left.right = new Node(3, null, null)
+        var s: int = n.left.right.val + n.left.val
+        n.left.right.val = 4
+        print(n.left.right.val + n.left.val)
+        print(" ")
+        print(s)
+      }
+    """;
+    VM vm = build(p);
+    vm.run();
+    assertEquals("6 5", output.toString());
+  }
+
+}
@@ -0,0 +1,343 @@
+/**
+ * CPSC 326, Spring 2025
+ * Unit tests for the peephole optimizer.
+ */
+
+package cpsc326;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.AfterEach;
+import java.io.InputStream;
+import java.io.ByteArrayInputStream;
+import java.io.PrintStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+
+class PeepholeOptimizerTests {
+
+  /** For dealing with program output **/
+  private PrintStream stdout = System.out;
+  private ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+  @BeforeEach
+  public void changeSystemOut() {
+    // redirect System.out to output
+    System.setOut(new PrintStream(output));
+  }
+
+  @AfterEach
+  public void restoreSystemOut() {
+    // reset System.out to standard out
+    System.setOut(stdout);
+  }
+
+  /**
+   * Helper to build an input string.
+   */
+  InputStream istream(String str) {
+    try {
+      return new ByteArrayInputStream(str.getBytes("UTF-8"));
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    return null;
+  }
+
+  /**
+   * Helper to generate and optimize a VM to run
+   */
+  VM build(String program) {
+    Lexer lexer = new Lexer(istream(program));
+    ASTParser parser = new ASTParser(lexer);
+    Program p = parser.parse();
+    p.accept(new SemanticChecker());
+    VM vm = new VM();
+    p.accept(new CodeGenerator(vm));
+    new PeepholeOptimizer().optimize(vm);
+    return vm;
+  }
+
+  /**
+   * Helper to get the opcodes of a template
+   */
+  List<OpCode> opcodes(VMFrameTemplate template) {
+    return template.instructions.stream().map(instr -> instr.opcode).toList();
+  }
+
+  //----------------------------------------------------------------------
+  // Individual patterns
+
+  @Test
+  void notEqualRewritten() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH("a"));
+    m.add(VMInstr.PUSH("b"));
+    m.add(VMInstr.CMPEQ());
+    m.add(VMInstr.NOT());
+    m.add(VMInstr.WRITE());
+    new PeepholeOptimizer().optimize(m);
+    assertEquals(List.of(OpCode.PUSH, OpCode.PUSH, OpCode.CMPNE, OpCode.WRITE), opcodes(m));
+  }
+
+  @Test
+  void writeNewlineRewritten() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH("a"));
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.PUSH("\n"));
+    m.add(VMInstr.WRITE());
+    new PeepholeOptimizer().optimize(m);
+    assertEquals(List.of(OpCode.PUSH, OpCode.WRITELN), opcodes(m));
+  }
+
+  @Test
+  void pushPopRemoved() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH("a"));
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.PUSH(VM.NULL));
+    m.add(VMInstr.POP());
+    new PeepholeOptimizer().optimize(m);
+    assertEquals(List.of(OpCode.PUSH, OpCode.WRITE), opcodes(m));
+  }
+
+  @Test
+  void storeLoadRewritten() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.STORE(0));
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.WRITE());
+    new PeepholeOptimizer().optimize(m);
+    assertEquals(List.of(OpCode.PUSH, OpCode.DUP, OpCode.STORE, OpCode.WRITE), opcodes(m));
+  }
+
+  @Test
+  void jumpsFixedUp() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(VM.NULL));
+    m.add(VMInstr.POP());
+    m.add(VMInstr.PUSH(false));
+    m.add(VMInstr.JMPF(7));
+    m.add(VMInstr.PUSH("a"));
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.JMP(7));
+    m.add(VMInstr.PUSH("b"));
+    m.add(VMInstr.WRITE());
+    new PeepholeOptimizer().optimize(m);
+    assertEquals(List.of(OpCode.PUSH, OpCode.JMPF, OpCode.PUSH, OpCode.WRITE, OpCode.PUSH, OpCode.WRITE),
+            opcodes(m));
+    assertEquals(4, m.get(1).operand);
+  }
+
+  @Test
+  void patternsDoNotSpanJumpTargets() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(true));
+    m.add(VMInstr.JMPF(5));
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.STORE(0));
+    m.add(VMInstr.JMP(7));
+    m.add(VMInstr.PUSH(2));
+    m.add(VMInstr.STORE(0));
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.WRITE());
+    new PeepholeOptimizer().optimize(m);
+    assertEquals(List.of(OpCode.PUSH, OpCode.JMPF, OpCode.PUSH, OpCode.STORE, OpCode.JMP, OpCode.PUSH,
+            OpCode.STORE, OpCode.LOAD, OpCode.WRITE), opcodes(m));
+    VM vm = new VM();
+    vm.add(m);
+    vm.run();
+    assertEquals("1", output.toString());
+  }
+
+  //----------------------------------------------------------------------
+  // Superinstructions
+
+  @Test
+  void incrementFused() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.STORE(0));
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.ADD());
+    m.add(VMInstr.STORE(0));
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.WRITE());
+    new PeepholeOptimizer().optimize(m);
+    assertEquals(List.of(OpCode.PUSH, OpCode.STORE, OpCode.INC_LOCAL, OpCode.LOAD, OpCode.WRITE), opcodes(m));
+    VM vm = new VM();
+    vm.add(m);
+    vm.run();
+    assertEquals("2", output.toString());
+  }
+
+  @Test
+  void loadsFused() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.ALLOCS());
+    m.add(VMInstr.DUP());
+    m.add(VMInstr.PUSH("a"));
+    m.add(VMInstr.SETF("f"));
+    m.add(VMInstr.STORE(0));
+    m.add(VMInstr.PUSH("b"));
+    m.add(VMInstr.STORE(1));
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.GETF("f"));
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.LOAD(1));
+    m.add(VMInstr.LOAD(1));
+    m.add(VMInstr.ADD());
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.LOAD(1));
+    m.add(VMInstr.PUSH("c"));
+    m.add(VMInstr.ADD());
+    m.add(VMInstr.WRITE());
+    new PeepholeOptimizer().optimize(m);
+    assertEquals(List.of(OpCode.ALLOCS, OpCode.DUP, OpCode.PUSH, OpCode.SETF, OpCode.STORE, OpCode.PUSH,
+            OpCode.STORE, OpCode.LOAD_GETF, OpCode.WRITE, OpCode.LOAD_LOAD, OpCode.ADD, OpCode.WRITE,
+            OpCode.LOAD_PUSH, OpCode.ADD, OpCode.WRITE), opcodes(m));
+    assertEquals("LOAD_LOAD(1, 1)", m.get(9).toString());
+    VM vm = new VM();
+    vm.add(m);
+    vm.run();
+    assertEquals("abbbc", output.toString());
+  }
+
+  @Test
+  void compareAndBranchFused() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(0));
+    m.add(VMInstr.STORE(0));
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.PUSH(3));
+    m.add(VMInstr.CMPLT());
+    m.add(VMInstr.JMPF(13));
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.ADD());
+    m.add(VMInstr.STORE(0));
+    m.add(VMInstr.JMP(2));
+    new PeepholeOptimizer().optimize(m);
+    assertEquals(List.of(OpCode.PUSH, OpCode.STORE, OpCode.LOAD_PUSH, OpCode.CMPLT_JMPF, OpCode.LOAD,
+            OpCode.WRITE, OpCode.INC_LOCAL, OpCode.JMP), opcodes(m));
+    assertEquals(8, m.get(3).operand);
+    assertEquals(2, m.get(7).operand);
+    VM vm = new VM();
+    vm.add(m);
+    vm.run();
+    assertEquals("012", output.toString());
+  }
+
+  @Test
+  void rotatedLoopFused() {
+    String p = """
+      void main() {
+        var i: int = 0
+        while i < 3 {
+          print(i)
+          i = i + 1
+        }
+      }
+    """;
+    VM vm = build(p);
+    assertEquals(List.of(OpCode.PUSH, OpCode.STORE, OpCode.JMP, OpCode.LOAD, OpCode.WRITE, OpCode.INC_LOCAL,
+            OpCode.LOAD_PUSH, OpCode.CMPLT_JMPT, OpCode.PUSH, OpCode.RET), opcodes(vm.templates().get("main")));
+    assertEquals(3, vm.templates().get("main").get(7).operand);
+    vm.run();
+    assertEquals("012", output.toString());
+  }
+
+  @Test
+  void negatedBranchRewritten() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(false));
+    m.add(VMInstr.NOT());
+    m.add(VMInstr.JMPT(5));
+    m.add(VMInstr.PUSH("a"));
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.PUSH("b"));
+    m.add(VMInstr.WRITE());
+    new PeepholeOptimizer().optimize(m);
+    assertEquals(List.of(OpCode.PUSH, OpCode.JMPF, OpCode.PUSH, OpCode.WRITE, OpCode.PUSH, OpCode.WRITE),
+            opcodes(m));
+    VM vm = new VM();
+    vm.add(m);
+    vm.run();
+    assertEquals("b", output.toString());
+  }
+
+  @Test
+  void incrementOfNullLocal() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(VM.NULL));
+    m.add(VMInstr.STORE(0));
+    m.add(VMInstr.INC_LOCAL(0));
+    VM vm = new VM();
+    vm.add(m);
+    Exception e = assertThrows(MyPLException.class, () -> vm.run());
+    assertTrue(e.getMessage().startsWith("VM_ERROR: "));
+  }
+
+  //----------------------------------------------------------------------
+  // Whole programs
+
+  @Test
+  void optimizedPrintlnAndCalls() {
+    String p = """
+      void f(x: int) {
+        print(x)
+      }
+      void main() {
+        var x: int = 3
+        println(x)
+        f(x)
+        println("")
+        if x != 4 {
+          println("ne")
+        }
+      }
+    """;
+    VM vm = build(p);
+    vm.run();
+    assertEquals("3\n3\nne\n", output.toString());
+    assertEquals(List.of(OpCode.PUSH, OpCode.DUP, OpCode.STORE, OpCode.WRITELN, OpCode.LOAD, OpCode.CALL,
+            OpCode.POP, OpCode.PUSH, OpCode.WRITELN, OpCode.LOAD_PUSH, OpCode.CMPNE_JMPF, OpCode.PUSH,
+            OpCode.WRITELN, OpCode.PUSH, OpCode.RET), opcodes(vm.templates().get("main")));
+  }
+
+  @Test
+  void optimizedLoops() {
+    String p = """
+      void main() {
+        var total: int = 0
+        for i from 1 to 10 {
+          var half: int = i / 2
+          if i != half * 2 {
+            total = total + i
+          }
+          else {
+            total = total - 1
+          }
+        }
+        var j: int = 0
+        while j < 3 {
+          j = j + 1
+          print(j)
+        }
+        println(total)
+      }
+    """;
+    build(p).run();
+    assertEquals("12320", output.toString().trim());
+  }
+
+}
@@ -7,6 +7,8 @@
 package cpsc326;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.Test;
@@ -14,6 +16,8 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.AfterEach;
 import java.io.PrintStream;
 import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.List;
 
 
 class VMTests {
@@ -123,6 +127,41 @@ class VMTests {
     assertTrue(e.getMessage().startsWith("VM_ERROR: "));
   }
   
+  @Test
+  void badLoadIndex() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH("blue"));
+    m.add(VMInstr.STORE(0));
+    m.add(VMInstr.LOAD(1));
+    VM vm = new VM();
+    vm.add(m);
+    Exception e = assertThrows(MyPLException.class, () -> vm.run());
+    assertTrue(e.getMessage().startsWith("VM_ERROR: "));
+  }
+
+  @Test
+  void storeDifferentTypes() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(3.5));
+    m.add(VMInstr.STORE(0));
+    m.add(VMInstr.PUSH("blue"));
+    m.add(VMInstr.STORE(0));
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.PUSH(VM.NULL));
+    m.add(VMInstr.STORE(0));
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.PUSH(true));
+    m.add(VMInstr.STORE(0));
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.WRITE());
+    VM vm = new VM();
+    vm.add(m);
+    vm.run();
+    assertEquals("bluenulltrue", output.toString());
+  }
+  
   //----------------------------------------------------------------------
   // Operations
 
@@ -907,6 +946,224 @@ class VMTests {
     assertEquals("false", output.toString());
   }
   
+  // type-specialized operators
+
+  @Test
+  void typedArithmetic() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(7));
+    m.add(VMInstr.PUSH(2));
+    m.add(VMInstr.IDIV());
+    m.add(VMInstr.PUSH(5));
+    m.add(VMInstr.IMUL());
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.ISUB());
+    m.add(VMInstr.PUSH(4));
+    m.add(VMInstr.IADD());
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.PUSH(7.0));
+    m.add(VMInstr.PUSH(2.0));
+    m.add(VMInstr.DDIV());
+    m.add(VMInstr.PUSH(2.0));
+    m.add(VMInstr.DMUL());
+    m.add(VMInstr.PUSH(0.5));
+    m.add(VMInstr.DSUB());
+    m.add(VMInstr.PUSH(1.25));
+    m.add(VMInstr.DADD());
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.PUSH("ab"));
+    m.add(VMInstr.PUSH("cd"));
+    m.add(VMInstr.SCONCAT());
+    m.add(VMInstr.WRITE());
+    VM vm = new VM();
+    vm.add(m);
+    vm.run();
+    assertEquals("187.75abcd", output.toString());
+  }
+
+  @Test
+  void typedComparisons() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(3));
+    m.add(VMInstr.PUSH(3));
+    m.add(VMInstr.ICMPLT());
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.PUSH(3));
+    m.add(VMInstr.PUSH(3));
+    m.add(VMInstr.ICMPLE());
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.PUSH(1.5));
+    m.add(VMInstr.PUSH(2.5));
+    m.add(VMInstr.DCMPLT());
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.PUSH(2.5));
+    m.add(VMInstr.PUSH(1.5));
+    m.add(VMInstr.DCMPLE());
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.PUSH("abc"));
+    m.add(VMInstr.PUSH("abd"));
+    m.add(VMInstr.SCMPLT());
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.PUSH("abd"));
+    m.add(VMInstr.PUSH("abd"));
+    m.add(VMInstr.SCMPLE());
+    m.add(VMInstr.WRITE());
+    VM vm = new VM();
+    vm.add(m);
+    vm.run();
+    assertEquals("falsetruetruefalsetruetrue", output.toString());
+  }
+
+  @Test
+  void stringComparisonDropsReference() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH("abc"));
+    m.add(VMInstr.PUSH("abd"));
+    m.add(VMInstr.CMPLE());
+    VM vm = new VM();
+    vm.add(m);
+    vm.link();
+    VMStack stack = new VMStack(8);
+    vm.process("main", stack, new ArrayDeque<>());
+    assertEquals(1, stack.sp);
+    assertEquals(VMValue.BOOL, stack.tags[0]);
+    assertNull(stack.refs[0]);
+  }
+
+  @Test
+  void typedEqualityWithNull() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(VM.NULL));
+    m.add(VMInstr.PUSH(VM.NULL));
+    m.add(VMInstr.ICMPEQ());
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.PUSH(0));
+    m.add(VMInstr.PUSH(VM.NULL));
+    m.add(VMInstr.ICMPEQ());
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.PUSH(4));
+    m.add(VMInstr.PUSH(4));
+    m.add(VMInstr.ICMPNE());
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.PUSH(true));
+    m.add(VMInstr.PUSH(false));
+    m.add(VMInstr.ICMPNE());
+    m.add(VMInstr.WRITE());
+    VM vm = new VM();
+    vm.add(m);
+    vm.run();
+    assertEquals("truefalsefalsetrue", output.toString());
+  }
+
+  @Test
+  void typedAddNullOperand() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.PUSH(VM.NULL));
+    m.add(VMInstr.IADD());
+    VM vm = new VM();
+    vm.add(m);
+    Exception e = assertThrows(MyPLException.class, () -> vm.run());
+    assertTrue(e.getMessage().startsWith("VM_ERROR: "));
+  }
+
+  @Test
+  void typedIntDivideByZero() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.PUSH(0));
+    m.add(VMInstr.IDIV());
+    VM vm = new VM();
+    vm.add(m);
+    Exception e = assertThrows(MyPLException.class, () -> vm.run());
+    assertTrue(e.getMessage().startsWith("VM_ERROR: "));
+  }
+  
+  // quickening
+
+  @Test
+  void genericAddQuickened() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.PUSH(2));
+    m.add(VMInstr.ADD());
+    m.add(VMInstr.WRITE());
+    VM vm = new VM();
+    vm.add(m);
+    vm.run();
+    assertEquals("3", output.toString());
+    assertEquals(OpCode.IADD.ordinal(), vm.function("main").code[4]);
+  }
+
+  @Test
+  void quickenedAddWithChangingTypes() {
+    VMFrameTemplate f = new VMFrameTemplate("f");
+    f.add(VMInstr.ADD());
+    f.add(VMInstr.RET());
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.PUSH(2));
+    m.add(VMInstr.CALL("f"));
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.PUSH(1.5));
+    m.add(VMInstr.PUSH(2.0));
+    m.add(VMInstr.CALL("f"));
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.PUSH("a"));
+    m.add(VMInstr.PUSH("b"));
+    m.add(VMInstr.CALL("f"));
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.PUSH(3));
+    m.add(VMInstr.PUSH(4));
+    m.add(VMInstr.CALL("f"));
+    m.add(VMInstr.WRITE());
+    VM vm = new VM();
+    vm.add(f);
+    vm.add(m);
+    vm.run();
+    assertEquals("33.5ab7", output.toString());
+  }
+
+  @Test
+  void typedOperatorFallsBackToGeneric() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(1.5));
+    m.add(VMInstr.PUSH(2.0));
+    m.add(VMInstr.IADD());
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.PUSH("a"));
+    m.add(VMInstr.PUSH("a"));
+    m.add(VMInstr.ICMPEQ());
+    m.add(VMInstr.WRITE());
+    VM vm = new VM();
+    vm.add(m);
+    vm.run();
+    assertEquals("3.5true", output.toString());
+    assertEquals(OpCode.ADD.ordinal(), vm.function("main").code[4]);
+    assertEquals(OpCode.CMPEQ.ordinal(), vm.function("main").code[10]);
+  }
+
+  @Test
+  void quickenedCompareWithNullOperand() {
+    VMFrameTemplate f = new VMFrameTemplate("f");
+    f.add(VMInstr.CMPLT());
+    f.add(VMInstr.RET());
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.PUSH(2));
+    m.add(VMInstr.CALL("f"));
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.PUSH(VM.NULL));
+    m.add(VMInstr.CALL("f"));
+    VM vm = new VM();
+    vm.add(f);
+    vm.add(m);
+    Exception e = assertThrows(MyPLException.class, () -> vm.run());
+    assertTrue(e.getMessage().startsWith("VM_ERROR: "));
+    assertEquals("true", output.toString());
+  }
+  
   //----------------------------------------------------------------------
   // Jumps
 
@@ -978,6 +1235,78 @@ class VMTests {
     assertEquals("bluebluegreen", output.toString());
   }
 
+  @Test
+  void jumpTrueBackwards() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(0));
+    m.add(VMInstr.STORE(0));
+    m.add(VMInstr.JMP(9));
+    m.add(VMInstr.PUSH("blue"));
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.ADD());
+    m.add(VMInstr.STORE(0));
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.PUSH(2));
+    m.add(VMInstr.CMPLT());
+    m.add(VMInstr.JMPT(3));
+    m.add(VMInstr.PUSH("green"));
+    m.add(VMInstr.WRITE());
+    VM vm = new VM();
+    vm.add(m);
+    vm.run();
+    assertEquals("bluebluegreen", output.toString());
+  }
+
+  @Test
+  void jumpTrueOnNull() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(VM.NULL));
+    m.add(VMInstr.JMPT(2));
+    m.add(VMInstr.NOP());
+    VM vm = new VM();
+    vm.add(m);
+    Exception e = assertThrows(MyPLException.class, () -> vm.run());
+    assertTrue(e.getMessage().startsWith("VM_ERROR: "));
+  }
+
+  @Test
+  void jumpFalseOnNull() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(VM.NULL));
+    m.add(VMInstr.JMPF(2));
+    VM vm = new VM();
+    vm.add(m);
+    Exception e = assertThrows(MyPLException.class, () -> vm.run());
+    assertTrue(e.getMessage().startsWith("VM_ERROR: "));
+  }
+
+  @Test
+  void jumpToEnd() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH("blue"));
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.JMP(5));
+    m.add(VMInstr.PUSH("green"));
+    m.add(VMInstr.WRITE());
+    VM vm = new VM();
+    vm.add(m);
+    vm.run();
+    assertEquals("blue", output.toString());
+  }
+
+  @Test
+  void jumpOutOfRange() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(true));
+    m.add(VMInstr.JMPF(3));
+    VM vm = new VM();
+    vm.add(m);
+    Exception e = assertThrows(MyPLException.class, () -> vm.run());
+    assertTrue(e.getMessage().startsWith("VM_ERROR: "));
+  }
+
   //----------------------------------------------------------------------
   // User-Defined Functions
 
@@ -1138,22 +1467,284 @@ class VMTests {
     assertEquals("23", output.toString());
   }
 
-  //----------------------------------------------------------------------
-  // Structs
-
   @Test
-  void createTwoNoFieldStructs() {
+  void parametersPassedInPlace() {
+    // int f(x: int, y: int) { var z: int = x - y  return z }
+    VMFrameTemplate f = new VMFrameTemplate("f");
+    f.numParams = 2;
+    f.add(VMInstr.LOAD(0));
+    f.add(VMInstr.LOAD(1));
+    f.add(VMInstr.SUB());
+    f.add(VMInstr.STORE(2));
+    f.add(VMInstr.LOAD(2));
+    f.add(VMInstr.RET());
+    // void main() { print(f(4, 3)) }
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(3));
+    m.add(VMInstr.PUSH(4));
+    m.add(VMInstr.CALL("f"));
+    m.add(VMInstr.WRITE());
+    VM vm = new VM();
+    vm.add(f);
+    vm.add(m);
+    vm.run();
+    assertEquals("1", output.toString());
+    assertEquals(2, vm.function("f").numParams);
+    assertEquals(3, vm.function("f").maxLocals);
+  }
+
+  @Test
+  void calleeMemoryKeepsCallerState() {
+    // int f(x: int) { var y: int = x  var z: int = y  return z }
+    VMFrameTemplate f = new VMFrameTemplate("f");
+    f.add(VMInstr.STORE(0));
+    f.add(VMInstr.LOAD(0));
+    f.add(VMInstr.STORE(1));
+    f.add(VMInstr.LOAD(1));
+    f.add(VMInstr.STORE(2));
+    f.add(VMInstr.LOAD(2));
+    f.add(VMInstr.RET());
+    // caller memory and pending operands survive the call
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH("a"));
+    m.add(VMInstr.STORE(0));
+    m.add(VMInstr.PUSH("b"));
+    m.add(VMInstr.PUSH("c"));
+    m.add(VMInstr.CALL("f"));
+    m.add(VMInstr.ADD());
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.ADD());
+    m.add(VMInstr.WRITE());
+    VM vm = new VM();
+    vm.add(f);
+    vm.add(m);
+    vm.run();
+    assertEquals("bca", output.toString());
+    assertEquals(1, vm.function("f").numParams);
+  }
+
+  @Test
+  void deepRecursionReusesStack() {
+    // int sum(x: int) { if x == 0 {return 0} return sum(x-1) + x }
+    VMFrameTemplate f = new VMFrameTemplate("sum");
+    f.numParams = 1;
+    f.add(VMInstr.LOAD(0));
+    f.add(VMInstr.PUSH(0));
+    f.add(VMInstr.CMPEQ());
+    f.add(VMInstr.JMPF(6));
+    f.add(VMInstr.PUSH(0));
+    f.add(VMInstr.RET());
+    f.add(VMInstr.LOAD(0));
+    f.add(VMInstr.PUSH(1));
+    f.add(VMInstr.SUB());
+    f.add(VMInstr.CALL("sum"));
+    f.add(VMInstr.LOAD(0));
+    f.add(VMInstr.ADD());
+    f.add(VMInstr.RET());
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(5000));
+    m.add(VMInstr.CALL("sum"));
+    m.add(VMInstr.WRITE());
+    VM vm = new VM();
+    vm.add(f);
+    vm.add(m);
+    vm.run();
+    assertEquals("12502500", output.toString());
+  }
+
+  @Test
+  void tailCallReusesFrame() {
+    // int count(n: int, acc: int) { if n == 0 {return acc} return count(n-1, acc+1) }
+    VMFrameTemplate f = new VMFrameTemplate("count");
+    f.numParams = 2;
+    f.add(VMInstr.LOAD(0));
+    f.add(VMInstr.PUSH(0));
+    f.add(VMInstr.CMPEQ());
+    f.add(VMInstr.JMPF(6));
+    f.add(VMInstr.LOAD(1));
+    f.add(VMInstr.RET());
+    f.add(VMInstr.LOAD(1));
+    f.add(VMInstr.PUSH(1));
+    f.add(VMInstr.ADD());
+    f.add(VMInstr.LOAD(0));
+    f.add(VMInstr.PUSH(1));
+    f.add(VMInstr.SUB());
+    f.add(VMInstr.TAILCALL("count"));
+    f.add(VMInstr.RET());
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(0));
+    m.add(VMInstr.PUSH(100000));
+    m.add(VMInstr.CALL("count"));
+    m.add(VMInstr.WRITE());
+    VM vm = new VM();
+    vm.add(f);
+    vm.add(m);
+    vm.link();
+    VMStack stack = new VMStack(8);
+    vm.process("main", stack, new ArrayDeque<>());
+    assertEquals("100000", output.toString());
+    assertTrue(stack.tags.length <= 16);
+  }
+
+  @Test
+  void returnClearsFrameReferences() {
+    VMFrameTemplate f = new VMFrameTemplate("f");
+    f.add(VMInstr.ALLOCS());
+    f.add(VMInstr.STORE(0));
+    f.add(VMInstr.PUSH(3));
+    f.add(VMInstr.ALLOCA());
+    f.add(VMInstr.DUP());
+    f.add(VMInstr.POP());
+    f.add(VMInstr.LEN());
+    f.add(VMInstr.RET());
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.CALL("f"));
+    m.add(VMInstr.WRITE());
+    VM vm = new VM();
+    vm.add(f);
+    vm.add(m);
+    vm.link();
+    VMStack stack = new VMStack(8);
+    vm.process("main", stack, new ArrayDeque<>());
+    assertEquals("3", output.toString());
+    for (Object ref : stack.refs)
+      assertNull(ref);
+  }
+
+  @Test
+  void returnAfterTailCallClearsFrameReferences() {
+    // f's frame is reused for the smaller g
+    VMFrameTemplate f = new VMFrameTemplate("f");
+    for (int i = 0; i < 3; ++i) {
+      f.add(VMInstr.ALLOCS());
+      f.add(VMInstr.STORE(i));
+    }
+    f.add(VMInstr.PUSH(1));
+    f.add(VMInstr.TAILCALL("g"));
+    f.add(VMInstr.RET());
+    VMFrameTemplate g = new VMFrameTemplate("g");
+    g.numParams = 1;
+    g.add(VMInstr.LOAD(0));
+    g.add(VMInstr.RET());
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.CALL("f"));
+    m.add(VMInstr.WRITE());
+    VM vm = new VM();
+    vm.add(f);
+    vm.add(g);
+    vm.add(m);
+    vm.link();
+    VMStack stack = new VMStack(8);
+    vm.process("main", stack, new ArrayDeque<>());
+    assertEquals("1", output.toString());
+    for (Object ref : stack.refs)
+      assertFalse(ref instanceof VMStruct);
+  }
+
+  @Test
+  void tailCallWithPendingOperands() {
+    // the operand under the arguments must be returned too
+    VMFrameTemplate g = new VMFrameTemplate("g");
+    g.numParams = 1;
+    g.add(VMInstr.LOAD(0));
+    g.add(VMInstr.PUSH(1));
+    g.add(VMInstr.ADD());
+    g.add(VMInstr.RET());
+    VMFrameTemplate f = new VMFrameTemplate("f");
+    f.numParams = 1;
+    f.add(VMInstr.PUSH("a"));
+    f.add(VMInstr.LOAD(0));
+    f.add(VMInstr.TAILCALL("g"));
+    f.add(VMInstr.RET());
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.CALL("f"));
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.WRITE());
+    VM vm = new VM();
+    vm.add(g);
+    vm.add(f);
+    vm.add(m);
+    vm.run();
+    assertEquals("2a", output.toString());
+  }
+
+  @Test
+  void negativeMemoryAddress() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.LOAD(-1));
+    VM vm = new VM();
+    vm.add(m);
+    Exception e = assertThrows(MyPLException.class, () -> vm.link());
+    assertTrue(e.getMessage().startsWith("VM_ERROR: "));
+  }
+
+  @Test
+  void callUndefinedFunction() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH("blue"));
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.CALL("f"));
+    VM vm = new VM();
+    vm.add(m);
+    Exception e = assertThrows(MyPLException.class, () -> vm.link());
+    assertTrue(e.getMessage().startsWith("VM_ERROR: "));
+    assertEquals("", output.toString());
+  }
+
+  //----------------------------------------------------------------------
+  // Structs
+
+  @Test
+  void createTwoNoFieldStructs() {
     VMFrameTemplate m = new VMFrameTemplate("main");
     m.add(VMInstr.ALLOCS());
     m.add(VMInstr.WRITE());
-    m.add(VMInstr.ALLOCS());
-    m.add(VMInstr.WRITE());
+    m.add(VMInstr.ALLOCS());
+    m.add(VMInstr.WRITE());
     VM vm = new VM();
     vm.add(m);
     vm.run();
     assertEquals("20252026", output.toString());
   }
   
+  @Test
+  void structReferencesKeepIdentity() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.ALLOCS());
+    m.add(VMInstr.STORE(0));
+    m.add(VMInstr.PUSH(1));     // array length
+    m.add(VMInstr.ALLOCA());
+    m.add(VMInstr.STORE(1));
+    m.add(VMInstr.LOAD(1));
+    m.add(VMInstr.PUSH(0));
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.SETI());
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.LOAD(1));
+    m.add(VMInstr.SETF("xs"));
+    // the struct read back through the array and its own field
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.GETF("xs"));
+    m.add(VMInstr.PUSH(0));
+    m.add(VMInstr.GETI());
+    m.add(VMInstr.DUP());
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.CMPEQ());
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.LOAD(1));
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.ALLOCS());
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.CMPEQ());
+    m.add(VMInstr.WRITE());
+    VM vm = new VM();
+    vm.add(m);
+    vm.run();
+    assertEquals("2025true2026false", output.toString());
+  }
+
   @Test
   void createOneFieldStruct() {
     VMFrameTemplate m = new VMFrameTemplate("main");
@@ -1226,6 +1817,53 @@ class VMTests {
     assertEquals("bluegreen", output.toString());
   }
 
+  @Test
+  void shapedStructSlots() {
+    VMShape pair = new VMShape("Pair", List.of("x", "y"));
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.ALLOCS(pair));
+    m.add(VMInstr.STORE(0));
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.PUSH("blue"));
+    m.add(VMInstr.SETF(pair.field("y")));
+    // the fields can also be accessed by name
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.GETF("y"));
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.GETF(pair.field("x")));
+    m.add(VMInstr.WRITE());
+    VM vm = new VM();
+    vm.add(m);
+    vm.run();
+    assertEquals("bluenull", output.toString());
+  }
+
+  @Test
+  void slotOfOtherShapeUsesName() {
+    // a struct built up by SETF has a different shape than Pair
+    VMShape pair = new VMShape("Pair", List.of("x", "y"));
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.ALLOCS());
+    m.add(VMInstr.STORE(0));
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.PUSH("blue"));
+    m.add(VMInstr.SETF("y"));
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.PUSH("green"));
+    m.add(VMInstr.SETF(pair.field("x")));
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.GETF(pair.field("y")));
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.GETF("x"));
+    m.add(VMInstr.SCONCAT());
+    m.add(VMInstr.WRITE());
+    VM vm = new VM();
+    vm.add(m);
+    vm.run();
+    assertEquals("bluegreen", output.toString());
+  }
+
   @Test
   void getFieldOnNullObject() {
     VMFrameTemplate m = new VMFrameTemplate("main");
@@ -1408,6 +2046,175 @@ class VMTests {
     assertEquals("101112", output.toString());
   }
 
+  @Test
+  void arenaArraysReleasedOnReturn() {
+    // f leaks its arena array to show that the next call reuses it
+    VMFrameTemplate f = new VMFrameTemplate("f");
+    f.add(VMInstr.PUSH(2));
+    f.add(VMInstr.ALLOCA_L("int"));
+    f.add(VMInstr.STORE(0));
+    f.add(VMInstr.LOAD(0));
+    f.add(VMInstr.PUSH(1));
+    f.add(VMInstr.GETI());
+    f.add(VMInstr.WRITE());
+    f.add(VMInstr.LOAD(0));
+    f.add(VMInstr.PUSH(1));
+    f.add(VMInstr.PUSH(7));
+    f.add(VMInstr.SETI());
+    f.add(VMInstr.LOAD(0));
+    f.add(VMInstr.RET());
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.CALL("f"));
+    m.add(VMInstr.CALL("f"));
+    m.add(VMInstr.CMPEQ());
+    m.add(VMInstr.WRITE());
+    VM vm = new VM();
+    vm.add(f);
+    vm.add(m);
+    vm.run();
+    assertEquals("nullnulltrue", output.toString());
+  }
+
+  @Test
+  void releasedArenaArraysCleared() {
+    // f leaks its arena array to show that it was cleared on return
+    VMFrameTemplate f = new VMFrameTemplate("f");
+    f.add(VMInstr.PUSH(1));
+    f.add(VMInstr.ALLOCA_L("string"));
+    f.add(VMInstr.STORE(0));
+    f.add(VMInstr.LOAD(0));
+    f.add(VMInstr.PUSH(0));
+    f.add(VMInstr.PUSH("red"));
+    f.add(VMInstr.SETI());
+    f.add(VMInstr.LOAD(0));
+    f.add(VMInstr.RET());
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.CALL("f"));
+    m.add(VMInstr.PUSH(0));
+    m.add(VMInstr.GETI());
+    m.add(VMInstr.WRITE());
+    VM vm = new VM();
+    vm.add(f);
+    vm.add(m);
+    vm.run();
+    assertEquals("null", output.toString());
+  }
+
+  @Test
+  void uncheckedArrayAccess() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(2));     // array length
+    m.add(VMInstr.ALLOCA());
+    m.add(VMInstr.STORE(0));
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.PUSH("red"));
+    m.add(VMInstr.SETI_U());
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.GETI_U());
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.PUSH(0));
+    m.add(VMInstr.GETI_U());
+    m.add(VMInstr.WRITE());
+    VM vm = new VM();
+    vm.add(m);
+    vm.run();
+    assertEquals("rednull", output.toString());
+  }
+
+  @Test
+  void typedArrayElements() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    for (Object[] elem : new Object[][] {{"int", 42}, {"double", 2.5}, {"bool", false}, {"string", "red"}}) {
+      m.add(VMInstr.PUSH(2));   // array length
+      m.add(VMInstr.ALLOCA((String) elem[0]));
+      m.add(VMInstr.STORE(0));
+      m.add(VMInstr.LOAD(0));
+      m.add(VMInstr.PUSH(1));
+      m.add(VMInstr.PUSH(elem[1]));
+      m.add(VMInstr.SETI());
+      m.add(VMInstr.LOAD(0));
+      m.add(VMInstr.PUSH(1));
+      m.add(VMInstr.GETI());
+      m.add(VMInstr.WRITE());
+      m.add(VMInstr.LOAD(0));
+      m.add(VMInstr.PUSH(0));
+      m.add(VMInstr.GETI());
+      m.add(VMInstr.WRITE());
+      m.add(VMInstr.LOAD(0));
+      m.add(VMInstr.LEN());
+      m.add(VMInstr.WRITE());
+    }
+    VM vm = new VM();
+    vm.add(m);
+    vm.run();
+    assertEquals("42null22.5null2falsenull2rednull2", output.toString());
+  }
+
+  @Test
+  void offHeapArrayElements() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    for (Object[] elem : new Object[][] {{"int", -42}, {"double", 2.5}}) {
+      m.add(VMInstr.PUSH(VMArray.OFF_HEAP_LENGTH + 1));
+      m.add(VMInstr.ALLOCA((String) elem[0]));
+      m.add(VMInstr.STORE(0));
+      m.add(VMInstr.LOAD(0));
+      m.add(VMInstr.PUSH(VMArray.OFF_HEAP_LENGTH));
+      m.add(VMInstr.PUSH(elem[1]));
+      m.add(VMInstr.SETI());
+      m.add(VMInstr.LOAD(0));
+      m.add(VMInstr.PUSH(VMArray.OFF_HEAP_LENGTH));
+      m.add(VMInstr.GETI());
+      m.add(VMInstr.WRITE());
+      m.add(VMInstr.LOAD(0));
+      m.add(VMInstr.PUSH(0));
+      m.add(VMInstr.GETI());
+      m.add(VMInstr.WRITE());
+      m.add(VMInstr.LOAD(0));
+      m.add(VMInstr.PUSH(VMArray.OFF_HEAP_LENGTH));
+      m.add(VMInstr.PUSH(VM.NULL));
+      m.add(VMInstr.SETI());
+      m.add(VMInstr.LOAD(0));
+      m.add(VMInstr.PUSH(VMArray.OFF_HEAP_LENGTH));
+      m.add(VMInstr.GETI());
+      m.add(VMInstr.WRITE());
+      m.add(VMInstr.LOAD(0));
+      m.add(VMInstr.LEN());
+      m.add(VMInstr.WRITE());
+    }
+    VM vm = new VM();
+    vm.add(m);
+    vm.run();
+    String length = String.valueOf(VMArray.OFF_HEAP_LENGTH + 1);
+    assertEquals("-42nullnull" + length + "2.5nullnull" + length, output.toString());
+  }
+
+  @Test
+  void typedArrayElementSetToNull() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(1));     // array length
+    m.add(VMInstr.ALLOCA("int"));
+    m.add(VMInstr.STORE(0));
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.PUSH(0));
+    m.add(VMInstr.PUSH(7));
+    m.add(VMInstr.SETI_U());
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.PUSH(0));
+    m.add(VMInstr.PUSH(VM.NULL));
+    m.add(VMInstr.SETI_U());
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.PUSH(0));
+    m.add(VMInstr.GETI_U());
+    m.add(VMInstr.WRITE());
+    VM vm = new VM();
+    vm.add(m);
+    vm.run();
+    assertEquals("null", output.toString());
+  }
+
   @Test
   void invalidNullArraySetField() {
     VMFrameTemplate m = new VMFrameTemplate("main");
@@ -0,0 +1,231 @@
+/**
+ * CPSC 326, Spring 2025
+ * Unit tests for the VM code verifier.
+ */
+
+package cpsc326;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import java.io.InputStream;
+import java.io.ByteArrayInputStream;
+import java.util.Map;
+
+
+class VMVerifierTests {
+
+  /**
+   * Helper to build an input string.
+   */
+  InputStream istream(String str) {
+    try {
+      return new ByteArrayInputStream(str.getBytes("UTF-8"));
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    return null;
+  }
+
+  /**
+   * Helper to generate the VM code for a program
+   */
+  VM build(String program) {
+    Lexer lexer = new Lexer(istream(program));
+    ASTParser parser = new ASTParser(lexer);
+    Program p = parser.parse();
+    p.accept(new SemanticChecker());
+    VM vm = new VM();
+    p.accept(new CodeGenerator(vm));
+    return vm;
+  }
+
+  /**
+   * Helper to verify the given templates
+   */
+  Map<String, VMVerifier.Summary> verify(VMFrameTemplate... templates) {
+    VM vm = new VM();
+    for (VMFrameTemplate template : templates)
+      vm.add(template);
+    return new VMVerifier(vm.templates()).verify();
+  }
+
+  /**
+   * Helper to check that the given templates are rejected
+   */
+  void assertRejected(VMFrameTemplate... templates) {
+    Exception e = assertThrows(MyPLException.class, () -> verify(templates));
+    assertTrue(e.getMessage().startsWith("VM_ERROR: "));
+  }
+
+  //----------------------------------------------------------------------
+  // Sizes
+
+  @Test
+  void stackAndMemorySizes() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.STORE(0));
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.PUSH(2));
+    m.add(VMInstr.ADD());
+    m.add(VMInstr.ADD());
+    m.add(VMInstr.WRITE());
+    VMVerifier.Summary summary = verify(m).get("main");
+    assertEquals(1, summary.maxLocals());
+    assertEquals(3, summary.maxStack());
+    assertEquals(0, summary.stackArgs());
+    assertNull(summary.returns());
+  }
+
+  @Test
+  void prologueFolded() {
+    VMFrameTemplate f = new VMFrameTemplate("f");
+    f.add(VMInstr.STORE(0));
+    f.add(VMInstr.STORE(1));
+    f.add(VMInstr.LOAD(1));
+    f.add(VMInstr.RET());
+    VMVerifier.Summary summary = verify(f).get("f");
+    assertEquals(2, summary.numParams());
+    assertEquals(2, summary.prologue());
+    assertEquals(2, summary.maxLocals());
+    assertEquals(1, summary.returns());
+  }
+
+  @Test
+  void recursiveCallEffects() {
+    String p = """
+      int fib(n: int) {
+        if n < 2 {
+          return n
+        }
+        return fib(n - 1) + fib(n - 2)
+      }
+      void main() {
+        println(fib(10))
+      }
+    """;
+    Map<String, VMVerifier.Summary> summaries = new VMVerifier(build(p).templates()).verify();
+    assertEquals(1, summaries.get("fib").numParams());
+    assertEquals(1, summaries.get("fib").returns());
+    assertEquals(3, summaries.get("fib").maxStack());
+    assertEquals(1, summaries.get("main").returns());
+  }
+
+  @Test
+  void callerOperandsConsumed() {
+    // a function without memory may use its arguments in place
+    VMFrameTemplate f = new VMFrameTemplate("f");
+    f.add(VMInstr.ADD());
+    f.add(VMInstr.RET());
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.PUSH(2));
+    m.add(VMInstr.CALL("f"));
+    m.add(VMInstr.WRITE());
+    Map<String, VMVerifier.Summary> summaries = verify(f, m);
+    assertEquals(2, summaries.get("f").stackArgs());
+    assertEquals(-1, summaries.get("f").returns());
+    assertEquals(2, summaries.get("main").maxStack());
+  }
+
+  @Test
+  void storeWithinDeclaredMemory() {
+    // a declared address can be stored before the lower ones
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.maxLocals = 3;
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.STORE(2));
+    m.add(VMInstr.LOAD(2));
+    m.add(VMInstr.WRITE());
+    assertEquals(3, verify(m).get("main").maxLocals());
+  }
+
+  @Test
+  void storeBeyondMemoryRejected() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.STORE(1));
+    assertRejected(m);
+  }
+
+  //----------------------------------------------------------------------
+  // Rejected code
+
+  @Test
+  void badJumpTarget() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.JMP(2));
+    m.add(VMInstr.JMP(-1));
+    assertRejected(m);
+  }
+
+  @Test
+  void inconsistentStackHeight() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(true));
+    m.add(VMInstr.JMPF(3));
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.NOP());
+    assertRejected(m);
+  }
+
+  @Test
+  void growingLoop() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.JMP(0));
+    assertRejected(m);
+  }
+
+  @Test
+  void stackUnderflowWithMemory() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.STORE(0));
+    m.add(VMInstr.POP());
+    assertRejected(m);
+  }
+
+  @Test
+  void loadNotStoredOnEveryPath() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(true));
+    m.add(VMInstr.JMPF(4));
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.STORE(0));
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.WRITE());
+    assertRejected(m);
+  }
+
+  @Test
+  void inconsistentReturns() {
+    VMFrameTemplate f = new VMFrameTemplate("f");
+    f.numParams = 1;
+    f.add(VMInstr.LOAD(0));
+    f.add(VMInstr.JMPF(4));
+    f.add(VMInstr.PUSH(1));
+    f.add(VMInstr.RET());
+    f.add(VMInstr.RET());
+    assertRejected(f);
+  }
+
+  @Test
+  void callWithoutArguments() {
+    VMFrameTemplate f = new VMFrameTemplate("f");
+    f.numParams = 2;
+    f.add(VMInstr.LOAD(1));
+    f.add(VMInstr.RET());
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.STORE(0));
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.CALL("f"));
+    assertRejected(f, m);
+  }
+
+}
@@ -0,0 +1,209 @@
+/**
+ * CPSC 326, Spring 2025
+ * Unit tests for global value numbering.
+ */
+
+package cpsc326;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.AfterEach;
+import java.io.InputStream;
+import java.io.ByteArrayInputStream;
+import java.io.PrintStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+
+class ValueNumbererTests {
+
+  /** For dealing with program output **/
+  private PrintStream stdout = System.out;
+  private ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+  @BeforeEach
+  public void changeSystemOut() {
+    // redirect System.out to output
+    System.setOut(new PrintStream(output));
+  }
+
+  @AfterEach
+  public void restoreSystemOut() {
+    // reset System.out to standard out
+    System.setOut(stdout);
+  }
+
+  /**
+   * Helper to build an input string.
+   */
+  InputStream istream(String str) {
+    try {
+      return new ByteArrayInputStream(str.getBytes("UTF-8"));
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    return null;
+  }
+
+  /**
+   * Helper to generate and number a VM to run
+   */
+  VM build(String program) {
+    Lexer lexer = new Lexer(istream(program));
+    ASTParser parser = new ASTParser(lexer);
+    Program p = parser.parse();
+    p.accept(new SemanticChecker());
+    VM vm = new VM();
+    p.accept(new CodeGenerator(vm));
+    new ValueNumberer().optimize(vm);
+    return vm;
+  }
+
+  /**
+   * Helper to get the instructions of a template as strings
+   */
+  List<String> code(VMFrameTemplate template) {
+    return template.instructions.stream().map(VMInstr::toString).toList();
+  }
+
+  //----------------------------------------------------------------------
+  // Copies and constants
+
+  @Test
+  void copyPropagated() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.numParams = 1;
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.STORE(1));
+    m.add(VMInstr.LOAD(1));
+    m.add(VMInstr.WRITE());
+    new ValueNumberer().optimize(m);
+    assertEquals(List.of("LOAD(0)", "STORE(1)", "LOAD(0)", "WRITE()"), code(m));
+  }
+
+  @Test
+  void constantPropagatedThroughBranches() {
+    // the local is stored twice, with the same constant on each path
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.numParams = 1;
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.JMPF(5));
+    m.add(VMInstr.PUSH(2));
+    m.add(VMInstr.STORE(1));
+    m.add(VMInstr.JMP(7));
+    m.add(VMInstr.PUSH(2));
+    m.add(VMInstr.STORE(1));
+    m.add(VMInstr.LOAD(1));
+    m.add(VMInstr.WRITE());
+    new ValueNumberer().optimize(m);
+    assertEquals("PUSH(2)", m.get(7).toString());
+  }
+
+  @Test
+  void differentValuesNotPropagated() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.numParams = 1;
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.JMPF(5));
+    m.add(VMInstr.PUSH(2));
+    m.add(VMInstr.STORE(1));
+    m.add(VMInstr.JMP(7));
+    m.add(VMInstr.PUSH(3));
+    m.add(VMInstr.STORE(1));
+    m.add(VMInstr.LOAD(1));
+    m.add(VMInstr.WRITE());
+    new ValueNumberer().optimize(m);
+    assertEquals("LOAD(1)", m.get(7).toString());
+  }
+
+  //----------------------------------------------------------------------
+  // Redundant computations
+
+  @Test
+  void redundantComputationReplaced() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.numParams = 2;
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.LOAD(1));
+    m.add(VMInstr.IMUL());
+    m.add(VMInstr.STORE(2));
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.LOAD(1));
+    m.add(VMInstr.IMUL());
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.IADD());
+    m.add(VMInstr.WRITE());
+    new ValueNumberer().optimize(m);
+    assertEquals(List.of("LOAD(0)", "LOAD(1)", "IMUL()", "STORE(2)", "LOAD(2)", "PUSH(1)", "IADD()", "WRITE()"),
+                 code(m));
+  }
+
+  @Test
+  void storedOperandNotReplaced() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.numParams = 2;
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.LOAD(1));
+    m.add(VMInstr.IMUL());
+    m.add(VMInstr.STORE(2));
+    m.add(VMInstr.PUSH(5));
+    m.add(VMInstr.STORE(1));
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.LOAD(1));
+    m.add(VMInstr.IMUL());
+    m.add(VMInstr.WRITE());
+    new ValueNumberer().optimize(m);
+    assertEquals(List.of("LOAD(0)", "PUSH(5)", "IMUL()", "WRITE()"), code(m).subList(6, 10));
+  }
+
+  @Test
+  void unusedValueRemoved() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.numParams = 2;
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.LOAD(1));
+    m.add(VMInstr.CMPEQ());
+    m.add(VMInstr.POP());
+    m.add(VMInstr.PUSH("a"));
+    m.add(VMInstr.WRITE());
+    new ValueNumberer().optimize(m);
+    assertEquals(List.of("PUSH(a)", "WRITE()"), code(m));
+  }
+
+  @Test
+  void unusedFailingValueKept() {
+    // division by zero still fails
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(1));
+    m.add(VMInstr.PUSH(0));
+    m.add(VMInstr.IDIV());
+    m.add(VMInstr.POP());
+    new ValueNumberer().optimize(m);
+    assertEquals(4, m.instructions.size());
+  }
+
+  @Test
+  void numberedProgram() {
+    String p = """
+      void main() {
+        var x: int = 3
+        var y: int = 4
+        var z: int = x * y + 1
+        var w: int = x
+        if z > 10 {
+          w = y
+        }
+        print(x * y + 1)
+        print(" ")
+        print(w)
+      }
+    """;
+    VM vm = build(p);
+    // the second x * y + 1 (i.e., x * (y + 1)) loads z
+    assertEquals(1, code(vm.templates().get("main")).stream().filter(s -> s.equals("IMUL()")).count());
+    vm.run();
+    assertEquals("15 4", output.toString());
+  }
+
+}